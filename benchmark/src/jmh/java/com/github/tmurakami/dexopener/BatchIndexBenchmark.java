@@ -0,0 +1,95 @@
+/*
+ * Copyright 2016 Tsuyoshi Murakami
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.tmurakami.dexopener;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the lookup of the batch of a class by {@link BatchIndex} with that by the
+ * {@link HashMap} that had been used before. See {@link RetainedHeap} for the memory usage.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class BatchIndexBenchmark {
+
+    private static final int QUERY_COUNT = 4096;
+
+    @Param({"1000", "10000", "50000"})
+    public int classCount;
+
+    private Map<String, Object> hashMap;
+    private BatchIndex batchIndex;
+    private List<Object> batches;
+    private String[] queries;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        List<List<String>> names = SyntheticClassNames.generate(classCount);
+        hashMap = new HashMap<>();
+        batches = new ArrayList<>();
+        List<String> allNames = new ArrayList<>();
+        for (List<String> list : names) {
+            Object batch = new Object();
+            batches.add(batch);
+            for (String name : list) {
+                hashMap.put(name, batch);
+            }
+            allNames.addAll(list);
+        }
+        batchIndex = new BatchIndex(names);
+        Collections.shuffle(allNames, new Random(0));
+        queries = new String[QUERY_COUNT];
+        for (int i = 0; i < QUERY_COUNT; i++) {
+            // The names are converted from the Java names for each lookup, so their hash codes
+            // have not been cached in the real use.
+            queries[i] = new String(allNames.get(i % allNames.size()).toCharArray());
+        }
+    }
+
+    @Benchmark
+    public Object hashMap() {
+        return hashMap.get(nextQuery());
+    }
+
+    @Benchmark
+    public Object batchIndex() {
+        int batchId = batchIndex.get(nextQuery());
+        return batchId == -1 ? null : batches.get(batchId);
+    }
+
+    private String nextQuery() {
+        return queries[next++ & (QUERY_COUNT - 1)];
+    }
+
+}
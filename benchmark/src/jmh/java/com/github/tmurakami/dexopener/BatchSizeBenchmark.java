@@ -0,0 +1,277 @@
+/*
+ * Copyright 2016 Tsuyoshi Murakami
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.tmurakami.dexopener;
+
+import com.github.tmurakami.dexopener.repackaged.org.jf.dexlib2.Opcodes;
+import com.github.tmurakami.dexopener.repackaged.org.jf.dexlib2.dexbacked.DexBackedClassDef;
+import com.github.tmurakami.dexopener.repackaged.org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import com.github.tmurakami.dexopener.repackaged.org.jf.dexlib2.iface.ClassDef;
+import com.github.tmurakami.dexopener.repackaged.org.jf.dexlib2.iface.DexFile;
+import com.github.tmurakami.dexopener.repackaged.org.jf.dexlib2.rewriter.DexRewriter;
+import com.github.tmurakami.dexopener.repackaged.org.jf.dexlib2.writer.io.MemoryDataStore;
+import com.github.tmurakami.dexopener.repackaged.org.jf.dexlib2.writer.pool.DexPool;
+
+import org.jf.dexlib2.AccessFlags;
+import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.iface.instruction.Instruction;
+import org.jf.dexlib2.immutable.ImmutableClassDef;
+import org.jf.dexlib2.immutable.ImmutableDexFile;
+import org.jf.dexlib2.immutable.ImmutableMethod;
+import org.jf.dexlib2.immutable.ImmutableMethodImplementation;
+import org.jf.dexlib2.immutable.instruction.ImmutableInstruction10x;
+import org.jf.dexlib2.immutable.instruction.ImmutableInstruction21c;
+import org.jf.dexlib2.immutable.instruction.ImmutableInstruction35c;
+import org.jf.dexlib2.immutable.reference.ImmutableFieldReference;
+import org.jf.dexlib2.immutable.reference.ImmutableMethodReference;
+import org.jf.dexlib2.immutable.reference.ImmutableStringReference;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures opening the final classes in batches cut by {@link BatchPartitioner} with each cost
+ * budget, to re-check {@link BatchPartitioner#MAX_COST_PER_BATCH}. Each operation opens all the
+ * classes, so the results of the different budgets are comparable.
+ * <p>
+ * The classes are read from the dex file, or all the classes*.dex entries of the APK, at the path
+ * given by the system property {@value #DEX_PROPERTY}, which is set from the {@code jmh.dex}
+ * Gradle property. Otherwise, a synthetic dex file is used.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class BatchSizeBenchmark {
+
+    static final String DEX_PROPERTY = "dexopener.benchmark.dex";
+
+    private static final int FINAL = AccessFlags.FINAL.getValue();
+    // The upper bound of the classes to be opened, so that a large app does not take too long.
+    private static final int MAX_CLASS_COUNT = 2000;
+    private static final int QUERY_COUNT = 4096;
+
+    // From a quarter to four times MAX_COST_PER_BATCH, in KiB.
+    @Param({"48", "96", "192", "384", "768"})
+    public int maxCostKiB;
+
+    private List<Batch> batches;
+    private BatchIndex batchIndex;
+    private String[] queries;
+    private int next;
+
+    @Setup
+    public void setUp() throws IOException {
+        String path = System.getProperty(DEX_PROPERTY, "");
+        List<byte[]> dexes = new ArrayList<>();
+        if (path.isEmpty()) {
+            dexes.add(newSyntheticDex());
+        } else if (path.endsWith(".apk")) {
+            try (ApkReader reader = new ApkReader(new File(path))) {
+                for (String entryName : reader.getDexEntryCrcs().keySet()) {
+                    dexes.add(reader.read(entryName));
+                }
+            }
+        } else {
+            dexes.add(Files.readAllBytes(new File(path).toPath()));
+        }
+        long maxCost = maxCostKiB * 1024L;
+        batches = new ArrayList<>();
+        List<List<String>> batchNames = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        int classCount = 0;
+        for (byte[] dex : dexes) {
+            if (classCount >= MAX_CLASS_COUNT) {
+                break;
+            }
+            DexBackedDexFile dexFile = new DexBackedDexFile(null, dex);
+            List<DexBackedClassDef> classSection = dexFile.getClassSection();
+            // The batches of each entry are cut from its classes, as ClassPath does.
+            List<DexBackedClassDef> classes = new ArrayList<>();
+            Map<String, Integer> indexMap = new HashMap<>();
+            for (int i = 0, n = classSection.size(); i < n && classCount < MAX_CLASS_COUNT; i++) {
+                DexBackedClassDef def = classSection.get(i);
+                if (FinalModifierRemoverModule.hasFinalModifier(def)) {
+                    classes.add(def);
+                    indexMap.put(def.getType(), i);
+                    classCount++;
+                }
+            }
+            for (BatchPartitioner.Partition<DexBackedClassDef> partition
+                    : BatchPartitioner.partition(classes, maxCost)) {
+                int size = partition.classes.size();
+                int[] classDefIndices = new int[size];
+                List<String> batchNameList = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    String type = partition.classes.get(i).getType();
+                    classDefIndices[i] = indexMap.get(type);
+                    batchNameList.add(ClassNameFilter.toClassName(type));
+                }
+                batches.add(new Batch(dex,
+                                      dexFile.getOpcodes(),
+                                      classDefIndices,
+                                      DexIndex.getClasses(dexFile, classDefIndices)));
+                batchNames.add(batchNameList);
+                names.addAll(batchNameList);
+            }
+        }
+        batchIndex = new BatchIndex(batchNames);
+        Collections.shuffle(names, new Random(0));
+        queries = new String[QUERY_COUNT];
+        for (int i = 0; i < QUERY_COUNT; i++) {
+            queries[i] = new String(names.get(i % names.size()).toCharArray());
+        }
+    }
+
+    /**
+     * Writes the classes of each batch with DexPool as they are, which is the baseline of
+     * {@link #rewrite()}.
+     */
+    @Benchmark
+    public int write() throws IOException {
+        int size = 0;
+        for (Batch batch : batches) {
+            size += writeTo(batch);
+        }
+        return size;
+    }
+
+    /**
+     * Rewrites the classes of each batch with {@link FinalModifierRemoverModule}, and writes them
+     * with DexPool. DexRewriter rewrites the classes while DexPool is reading them, so the cost
+     * of rewriting is the difference from {@link #write()}.
+     */
+    @Benchmark
+    public int rewrite() throws IOException {
+        DexRewriter dexRewriter = new DexRewriter(new FinalModifierRemoverModule());
+        int size = 0;
+        for (Batch batch : batches) {
+            size += writeTo(dexRewriter.getDexFileRewriter().rewrite(batch));
+        }
+        return size;
+    }
+
+    /**
+     * Writes the classes of each batch with {@link DexSubsetWriter}, which is used by default.
+     */
+    @Benchmark
+    public int writeSubset() {
+        int size = 0;
+        for (Batch batch : batches) {
+            byte[] written = DexSubsetWriter.write(batch.dex, batch.classDefIndices);
+            size += written == null ? 0 : written.length;
+        }
+        return size;
+    }
+
+    /**
+     * Looks up the batch of a class, the depth of which grows as the batches get smaller.
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public int lookup() {
+        return batchIndex.get(queries[next++ & (QUERY_COUNT - 1)]);
+    }
+
+    private static int writeTo(DexFile dexFile) throws IOException {
+        MemoryDataStore dataStore = new MemoryDataStore();
+        DexPool.writeTo(dataStore, dexFile);
+        return dataStore.getSize();
+    }
+
+    private static byte[] newSyntheticDex() throws IOException {
+        Set<ImmutableClassDef> classes = new LinkedHashSet<>();
+        for (List<String> batch : SyntheticClassNames.generate(MAX_CLASS_COUNT)) {
+            for (String type : batch) {
+                List<ImmutableMethod> methods = new ArrayList<>();
+                for (int i = 0; i < 4; i++) {
+                    methods.add(new ImmutableMethod(type, "m" + i, null, "V", FINAL, null, null,
+                                                    newMethodImplementation(type, i)));
+                }
+                classes.add(new ImmutableClassDef(
+                        type, FINAL, "Ljava/lang/Object;", null, null, null, null, methods));
+            }
+        }
+        org.jf.dexlib2.writer.io.MemoryDataStore dataStore =
+                new org.jf.dexlib2.writer.io.MemoryDataStore();
+        org.jf.dexlib2.writer.pool.DexPool.writeTo(
+                dataStore, new ImmutableDexFile(org.jf.dexlib2.Opcodes.getDefault(), classes));
+        return dataStore.getData();
+    }
+
+    private static ImmutableMethodImplementation newMethodImplementation(String type,
+                                                                         int methodIndex) {
+        List<Instruction> instructions = new ArrayList<>();
+        for (int i = 0; i < 30; i += 3) {
+            instructions.add(new ImmutableInstruction21c(
+                    Opcode.CONST_STRING, 0, new ImmutableStringReference("s" + methodIndex + i)));
+            instructions.add(new ImmutableInstruction21c(
+                    Opcode.SPUT_OBJECT, 0,
+                    new ImmutableFieldReference(type, "f" + i % 4, "Ljava/lang/String;")));
+            instructions.add(new ImmutableInstruction35c(
+                    Opcode.INVOKE_STATIC, 1, 0, 0, 0, 0, 0,
+                    new ImmutableMethodReference("Ljava/lang/String;", "valueOf",
+                                                 Collections.singletonList("Ljava/lang/Object;"),
+                                                 "Ljava/lang/String;")));
+        }
+        instructions.add(new ImmutableInstruction10x(Opcode.RETURN_VOID));
+        return new ImmutableMethodImplementation(1, instructions, null, null);
+    }
+
+    private static final class Batch implements DexFile {
+
+        final byte[] dex;
+        final int[] classDefIndices;
+        private final Opcodes opcodes;
+        private final Set<? extends ClassDef> classes;
+
+        Batch(byte[] dex, Opcodes opcodes, int[] classDefIndices, Set<? extends ClassDef> classes) {
+            this.dex = dex;
+            this.opcodes = opcodes;
+            this.classDefIndices = classDefIndices;
+            this.classes = classes;
+        }
+
+        @Override
+        public Opcodes getOpcodes() {
+            return opcodes;
+        }
+
+        @Override
+        public Set<? extends ClassDef> getClasses() {
+            return classes;
+        }
+
+    }
+
+}
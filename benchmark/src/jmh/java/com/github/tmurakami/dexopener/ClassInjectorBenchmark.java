@@ -0,0 +1,129 @@
+/*
+ * Copyright 2016 Tsuyoshi Murakami
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.tmurakami.dexopener;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the overhead that DexOpener adds to the load of a class that is not opened, such as a
+ * library class, by the app's class loader.
+ * <p>
+ * The app's class loader is simulated by a loader that returns a class for any name without
+ * defining it, so that the class is looked up through the parent every time. The parent of the
+ * app's class loader, which is the boot class loader on Android, is simulated by a loader that
+ * only finds the bootstrap classes, and throws a ClassNotFoundException for the others.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class ClassInjectorBenchmark {
+
+    private static final String ROOT_PACKAGE = "com.example.app";
+    private static final String[] CLASS_NAMES = {
+            "androidx.test.espresso.Espresso",
+            "com.google.gson.Gson",
+            "kotlin.collections.CollectionsKt",
+            "okhttp3.OkHttpClient",
+    };
+
+    private ClassLoader withoutDexOpener;
+    private ClassLoader withDexOpener;
+    private ClassLoader withLegacyDexOpener;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        ClassLoader boot = new ClassLoader(null) {
+        };
+        ClassPath classPath = new ClassPath(null,
+                                            ROOT_PACKAGE,
+                                            new ClassNameFilter(ROOT_PACKAGE),
+                                            new DexFileLoader(),
+                                            Runnable::run,
+                                            new ClassPath.Options());
+        withoutDexOpener = new AppClassLoader(boot);
+        withDexOpener = new AppClassLoader(boot);
+        ClassLoaderHelper.setParent(withDexOpener, new ClassInjector(withDexOpener, classPath));
+        withLegacyDexOpener = new AppClassLoader(boot);
+        ClassLoaderHelper.setParent(withLegacyDexOpener,
+                                    new LegacyClassInjector(withLegacyDexOpener, classPath));
+    }
+
+    @Benchmark
+    public Class<?> withoutDexOpener() throws ClassNotFoundException {
+        return withoutDexOpener.loadClass(nextClassName());
+    }
+
+    @Benchmark
+    public Class<?> withDexOpener() throws ClassNotFoundException {
+        return withDexOpener.loadClass(nextClassName());
+    }
+
+    @Benchmark
+    public Class<?> withLegacyDexOpener() throws ClassNotFoundException {
+        return withLegacyDexOpener.loadClass(nextClassName());
+    }
+
+    private String nextClassName() {
+        return CLASS_NAMES[next++ & (CLASS_NAMES.length - 1)];
+    }
+
+    private static final class AppClassLoader extends ClassLoader {
+
+        AppClassLoader(ClassLoader parent) {
+            super(parent);
+        }
+
+        @Override
+        protected Class<?> findClass(String name) {
+            return Object.class;
+        }
+
+    }
+
+    /**
+     * The ClassInjector that had been used before, which threw a ClassNotFoundException from
+     * {@link #findClass(String)} for every class that was not opened.
+     */
+    private static final class LegacyClassInjector extends ClassLoader {
+
+        private final ClassLoader target;
+        private final ClassPath classPath;
+
+        LegacyClassInjector(ClassLoader target, ClassPath classPath) {
+            super(target.getParent());
+            this.target = target;
+            this.classPath = classPath;
+        }
+
+        @Override
+        protected Class<?> findClass(String name) throws ClassNotFoundException {
+            Class<?> c = classPath.loadClass(name, target);
+            return c == null ? super.findClass(name) : c;
+        }
+
+    }
+
+}
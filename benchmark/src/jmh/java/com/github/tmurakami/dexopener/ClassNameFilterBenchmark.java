@@ -0,0 +1,132 @@
+/*
+ * Copyright 2016 Tsuyoshi Murakami
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.tmurakami.dexopener;
+
+import org.jf.dexlib2.analysis.reflection.util.ReflectionUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link ClassNameFilter} with the filter that had been used before, which converted
+ * each binary name into a dex name and then matched the dex name.
+ * <p>
+ * Run with {@code -prof gc} to see the allocation rate.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class ClassNameFilterBenchmark {
+
+    private static final String ROOT_PACKAGE = "com.example.app";
+    // The classes loaded by a test run, most of which are library classes.
+    private static final String[] CLASS_NAMES = {
+            "androidx.appcompat.app.AppCompatActivity",
+            "androidx.recyclerview.widget.RecyclerView$Adapter",
+            "androidx.test.espresso.Espresso",
+            "com.example.app.BuildConfig",
+            "com.example.app.MainActivity",
+            "com.example.app.R$id",
+            "com.example.app.feature.login.LoginViewModel",
+            "com.example.app.feature.login.LoginViewModel$onSubmit$1",
+            "com.google.gson.Gson",
+            "io.reactivex.Observable",
+            "kotlin.collections.CollectionsKt",
+            "kotlinx.coroutines.BuildersKt",
+            "okhttp3.OkHttpClient",
+            "org.mockito.Mockito",
+            "retrofit2.Retrofit",
+            "android.databinding.DataBindingUtil",
+    };
+
+    private final ClassNameFilter classNameFilter = new ClassNameFilter(ROOT_PACKAGE);
+    private final LegacyDexNameFilter legacyDexNameFilter = new LegacyDexNameFilter(ROOT_PACKAGE);
+    private String[] classNames;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        classNames = new String[CLASS_NAMES.length];
+        for (int i = 0; i < classNames.length; i++) {
+            // The names are given by the runtime as new strings.
+            classNames[i] = new String(CLASS_NAMES[i].toCharArray());
+        }
+    }
+
+    @Benchmark
+    public boolean classNameFilter() {
+        return classNameFilter.apply(nextClassName());
+    }
+
+    @Benchmark
+    public boolean legacyDexNameFilter() {
+        return legacyDexNameFilter.apply(ReflectionUtils.javaToDexName(nextClassName()));
+    }
+
+    private String nextClassName() {
+        return classNames[next++ & (CLASS_NAMES.length - 1)];
+    }
+
+    private static final class LegacyDexNameFilter {
+
+        private static final String[] INCLUDED_DEX_NAME_PREFIXES = {
+                "Landroid/databinding/generated/",
+        };
+
+        private static final String[] INCLUDED_DEX_NAMES = {
+                "Landroid/databinding/DataBinderMapper;",
+                "Landroid/databinding/DataBindingComponent;",
+                "Landroid/databinding/DataBindingUtil;",
+        };
+
+        private final String includedDexNamePrefix;
+        private final Set<String> excludedDexNames = new HashSet<>();
+
+        LegacyDexNameFilter(String rootPackage) {
+            this.includedDexNamePrefix = 'L' + rootPackage.replace('.', '/') + '/';
+        }
+
+        boolean apply(String dexName) {
+            for (String pkg : INCLUDED_DEX_NAME_PREFIXES) {
+                if (dexName.startsWith(pkg)) {
+                    return true;
+                }
+            }
+            for (String cls : INCLUDED_DEX_NAMES) {
+                if (dexName.equals(cls)) {
+                    return true;
+                }
+            }
+            return dexName.startsWith(includedDexNamePrefix) &&
+                   !dexName.endsWith("/BR;") &&
+                   !dexName.endsWith("/BuildConfig;") &&
+                   !dexName.endsWith("/R;") &&
+                   !dexName.contains("/R$") &&
+                   !excludedDexNames.contains(dexName);
+        }
+
+    }
+
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2016 Tsuyoshi Murakami
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.tmurakami.dexopener;
+
+import com.github.tmurakami.dexopener.repackaged.org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import com.github.tmurakami.dexopener.repackaged.org.jf.dexlib2.writer.io.DexDataStore;
+import com.github.tmurakami.dexopener.repackaged.org.jf.dexlib2.writer.io.FileDataStore;
+import com.github.tmurakami.dexopener.repackaged.org.jf.dexlib2.writer.pool.DexPool;
+
+import org.jf.dexlib2.AccessFlags;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.immutable.ImmutableClassDef;
+import org.jf.dexlib2.immutable.ImmutableDexFile;
+import org.jf.dexlib2.immutable.ImmutableMethod;
+import org.jf.dexlib2.writer.io.MemoryDataStore;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares writing a batch of classes with FileDataStore with that with
+ * {@link FileChannelDataStore}. The number of the write system calls of this process per batch is
+ * read from /proc/self/io, so it is only reported on Linux.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class DexDataStoreBenchmark {
+
+    private static final int FINAL = AccessFlags.FINAL.getValue();
+
+    private DexBackedDexFile dexFile;
+    private File dir;
+
+    @Setup
+    public void setUp() throws IOException {
+        Set<ImmutableClassDef> classes = new LinkedHashSet<>();
+        for (String type : SyntheticClassNames.generate(SyntheticClassNames.CLASSES_PER_BATCH)
+                                              .get(0)) {
+            List<ImmutableMethod> methods = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                methods.add(new ImmutableMethod(type, "m" + i, null, "V", FINAL, null, null, null));
+            }
+            classes.add(new ImmutableClassDef(
+                    type, FINAL, "Ljava/lang/Object;", null, null, null, null, methods));
+        }
+        MemoryDataStore dataStore = new MemoryDataStore();
+        org.jf.dexlib2.writer.pool.DexPool.writeTo(
+                dataStore, new ImmutableDexFile(Opcodes.getDefault(), classes));
+        dexFile = new DexBackedDexFile(null, dataStore.getData());
+        dir = Files.createTempDirectory("dexopener").toFile();
+    }
+
+    @TearDown
+    public void tearDown() {
+        FileUtils.delete(dir);
+    }
+
+    @Benchmark
+    public File fileDataStore(SystemCalls systemCalls) throws IOException {
+        File file = new File(dir, "classes.dex");
+        return write(new FileDataStore(file), file, systemCalls);
+    }
+
+    @Benchmark
+    public File fileChannelDataStore(SystemCalls systemCalls) throws IOException {
+        File file = new File(dir, "classes.dex");
+        return write(new FileChannelDataStore(file), file, systemCalls);
+    }
+
+    private File write(DexDataStore dataStore, File file, SystemCalls systemCalls)
+            throws IOException {
+        long start = SystemCalls.readWriteCount();
+        DexPool.writeTo(dataStore, dexFile);
+        systemCalls.writes += SystemCalls.readWriteCount() - start;
+        systemCalls.batches++;
+        return file;
+    }
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class SystemCalls {
+
+        public long writes;
+        public long batches;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            writes = 0;
+            batches = 0;
+        }
+
+        static long readWriteCount() throws IOException {
+            File file = new File("/proc/self/io");
+            if (!file.isFile()) {
+                return 0;
+            }
+            try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith("syscw:")) {
+                        return Long.parseLong(line.substring(6).trim());
+                    }
+                }
+            }
+            return 0;
+        }
+
+    }
+
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2016 Tsuyoshi Murakami
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.tmurakami.dexopener;
+
+import com.github.tmurakami.dexopener.repackaged.org.jf.dexlib2.rewriter.DexRewriter;
+
+import org.jf.dexlib2.AccessFlags;
+import org.jf.dexlib2.AnnotationVisibility;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.immutable.ImmutableAnnotation;
+import org.jf.dexlib2.immutable.ImmutableAnnotationElement;
+import org.jf.dexlib2.immutable.ImmutableClassDef;
+import org.jf.dexlib2.immutable.ImmutableDexFile;
+import org.jf.dexlib2.immutable.ImmutableMethod;
+import org.jf.dexlib2.immutable.value.ImmutableIntEncodedValue;
+import org.jf.dexlib2.immutable.value.ImmutableStringEncodedValue;
+import org.jf.dexlib2.writer.io.MemoryDataStore;
+import org.jf.dexlib2.writer.pool.DexPool;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares opening all the classes of a dex file through {@link ClassTransformer}, which uses
+ * {@link DexPatcher}, with rewriting them with DexRewriter and DexPool as
+ * {@link ClassTransformer} does if the dex file cannot be handled. Loading the generated file is
+ * not measured.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class DexPatcherBenchmark {
+
+    private static final int FINAL = AccessFlags.FINAL.getValue();
+
+    @Param({"100", "1000", "5000"})
+    public int classCount;
+
+    private byte[] dex;
+    private int[] classDefIndices;
+    private File dir;
+    private DexFileLoader dexFileLoader;
+
+    @Setup
+    public void setUp() throws IOException {
+        Set<ImmutableClassDef> classes = new LinkedHashSet<>();
+        for (List<String> batch : SyntheticClassNames.generate(classCount)) {
+            for (String type : batch) {
+                classes.add(newClass(type));
+            }
+        }
+        MemoryDataStore dataStore = new MemoryDataStore();
+        DexPool.writeTo(dataStore, new ImmutableDexFile(Opcodes.getDefault(), classes));
+        dex = dataStore.getData();
+        classDefIndices = new int[classes.size()];
+        for (int i = 0; i < classDefIndices.length; i++) {
+            classDefIndices[i] = i;
+        }
+        dir = Files.createTempDirectory("dexopener").toFile();
+        dexFileLoader = new DexFileLoader() {
+            @SuppressWarnings("deprecation")
+            @Override
+            dalvik.system.DexFile loadDex(String sourcePathName, String outputPathName) {
+                return null;
+            }
+        };
+    }
+
+    @TearDown
+    public void tearDown() {
+        FileUtils.delete(dir);
+    }
+
+    @Benchmark
+    public File rewrite() throws IOException {
+        // The transformer is only used as the dex file of the classes.
+        ClassTransformer transformer = new ClassTransformer(
+                dex, classDefIndices, ClassTransformer.PATCH, null, null, null);
+        DexRewriter dexRewriter = new DexRewriter(new FinalModifierRemoverModule());
+        File sourceFile = new File(dir, "classes.src.dex");
+        com.github.tmurakami.dexopener.repackaged.org.jf.dexlib2.writer.pool.DexPool.writeTo(
+                new FileChannelDataStore(sourceFile),
+                dexRewriter.getDexFileRewriter().rewrite(transformer));
+        return sourceFile;
+    }
+
+    @Benchmark
+    public File patch() throws IOException {
+        return transform(ClassTransformer.PATCH);
+    }
+
+    private File transform(int mode) throws IOException {
+        File sourceFile = new File(dir, "classes.src.dex");
+        new ClassTransformer(dex,
+                             classDefIndices,
+                             mode,
+                             sourceFile,
+                             new File(dir, "classes.dex"),
+                             dexFileLoader).call();
+        return sourceFile;
+    }
+
+    private static ImmutableClassDef newClass(String type) {
+        List<ImmutableMethod> methods = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            methods.add(new ImmutableMethod(type, "m" + i, null, "V", FINAL, null, null, null));
+        }
+        Set<ImmutableAnnotation> annotations = null;
+        int dollarPos = type.indexOf('$');
+        if (dollarPos != -1) {
+            List<ImmutableAnnotationElement> elements = new ArrayList<>();
+            elements.add(new ImmutableAnnotationElement(
+                    "accessFlags", new ImmutableIntEncodedValue(FINAL)));
+            elements.add(new ImmutableAnnotationElement(
+                    "name", new ImmutableStringEncodedValue(
+                    type.substring(dollarPos + 1, type.length() - 1))));
+            annotations = Collections.singleton(new ImmutableAnnotation(
+                    AnnotationVisibility.SYSTEM, "Ldalvik/annotation/InnerClass;", elements));
+        }
+        return new ImmutableClassDef(
+                type, FINAL, "Ljava/lang/Object;", null, null, annotations, null, methods);
+    }
+
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2016 Tsuyoshi Murakami
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.tmurakami.dexopener;
+
+import com.github.tmurakami.dexopener.repackaged.org.jf.dexlib2.rewriter.DexRewriter;
+
+import org.jf.dexlib2.AccessFlags;
+import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.iface.instruction.Instruction;
+import org.jf.dexlib2.immutable.ImmutableClassDef;
+import org.jf.dexlib2.immutable.ImmutableDexFile;
+import org.jf.dexlib2.immutable.ImmutableMethod;
+import org.jf.dexlib2.immutable.ImmutableMethodImplementation;
+import org.jf.dexlib2.immutable.instruction.ImmutableInstruction10x;
+import org.jf.dexlib2.immutable.instruction.ImmutableInstruction21c;
+import org.jf.dexlib2.immutable.instruction.ImmutableInstruction35c;
+import org.jf.dexlib2.immutable.reference.ImmutableFieldReference;
+import org.jf.dexlib2.immutable.reference.ImmutableMethodReference;
+import org.jf.dexlib2.immutable.reference.ImmutableStringReference;
+import org.jf.dexlib2.writer.io.MemoryDataStore;
+import org.jf.dexlib2.writer.pool.DexPool;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares writing a batch of classes with large methods through {@link ClassTransformer}, which
+ * uses {@link DexSubsetWriter}, with rewriting them with DexRewriter and DexPool as
+ * {@link ClassTransformer} does if the dex file cannot be handled. Loading the generated file is
+ * not measured.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class DexSubsetWriterBenchmark {
+
+    private static final int FINAL = AccessFlags.FINAL.getValue();
+    private static final int METHODS_PER_CLASS = 4;
+
+    @Param({"100", "1000"})
+    public int instructionsPerMethod;
+
+    private byte[] dex;
+    private int[] classDefIndices;
+    private File dir;
+    private DexFileLoader dexFileLoader;
+
+    @Setup
+    public void setUp() throws IOException {
+        // The batch is every other class of a dex file with twice as many classes, since a batch
+        // is usually a part of a dex file.
+        Set<ImmutableClassDef> classes = new LinkedHashSet<>();
+        for (List<String> batch : SyntheticClassNames.generate(
+                SyntheticClassNames.CLASSES_PER_BATCH * 2)) {
+            for (String type : batch) {
+                classes.add(newClass(type));
+            }
+        }
+        MemoryDataStore dataStore = new MemoryDataStore();
+        DexPool.writeTo(dataStore, new ImmutableDexFile(Opcodes.getDefault(), classes));
+        dex = dataStore.getData();
+        classDefIndices = new int[classes.size() / 2];
+        for (int i = 0; i < classDefIndices.length; i++) {
+            classDefIndices[i] = i * 2;
+        }
+        dir = Files.createTempDirectory("dexopener").toFile();
+        dexFileLoader = new DexFileLoader() {
+            @SuppressWarnings("deprecation")
+            @Override
+            dalvik.system.DexFile loadDex(String sourcePathName, String outputPathName) {
+                return null;
+            }
+        };
+    }
+
+    @TearDown
+    public void tearDown() {
+        FileUtils.delete(dir);
+    }
+
+    @Benchmark
+    public File rewrite() throws IOException {
+        // The transformer is only used as the dex file of the classes.
+        ClassTransformer transformer = new ClassTransformer(
+                dex, classDefIndices, ClassTransformer.WRITE_SUBSET, null, null, null);
+        DexRewriter dexRewriter = new DexRewriter(new FinalModifierRemoverModule());
+        File sourceFile = new File(dir, "classes.src.dex");
+        com.github.tmurakami.dexopener.repackaged.org.jf.dexlib2.writer.pool.DexPool.writeTo(
+                new FileChannelDataStore(sourceFile),
+                dexRewriter.getDexFileRewriter().rewrite(transformer));
+        return sourceFile;
+    }
+
+    @Benchmark
+    public File write() throws IOException {
+        return transform(ClassTransformer.WRITE_SUBSET);
+    }
+
+    private File transform(int mode) throws IOException {
+        File sourceFile = new File(dir, "classes.src.dex");
+        new ClassTransformer(dex,
+                             classDefIndices,
+                             mode,
+                             sourceFile,
+                             new File(dir, "classes.dex"),
+                             dexFileLoader).call();
+        return sourceFile;
+    }
+
+    private ImmutableClassDef newClass(String type) {
+        List<ImmutableMethod> methods = new ArrayList<>();
+        for (int i = 0; i < METHODS_PER_CLASS; i++) {
+            methods.add(new ImmutableMethod(type, "m" + i, null, "V", FINAL, null, null,
+                                            newMethodImplementation(type, i)));
+        }
+        return new ImmutableClassDef(
+                type, FINAL, "Ljava/lang/Object;", null, null, null, null, methods);
+    }
+
+    private ImmutableMethodImplementation newMethodImplementation(String type, int methodIndex) {
+        List<Instruction> instructions = new ArrayList<>();
+        // The strings and the fields are shared so as not to exceed the limit of the ids.
+        for (int i = 0; i < instructionsPerMethod; i += 3) {
+            instructions.add(new ImmutableInstruction21c(
+                    Opcode.CONST_STRING, 0, new ImmutableStringReference("s" + methodIndex + i)));
+            instructions.add(new ImmutableInstruction21c(
+                    Opcode.SPUT_OBJECT, 0,
+                    new ImmutableFieldReference(type, "f" + i % 16, "Ljava/lang/String;")));
+            instructions.add(new ImmutableInstruction35c(
+                    Opcode.INVOKE_STATIC, 1, 0, 0, 0, 0, 0,
+                    new ImmutableMethodReference("Ljava/lang/String;", "valueOf",
+                                                 Collections.singletonList("Ljava/lang/Object;"),
+                                                 "Ljava/lang/String;")));
+        }
+        instructions.add(new ImmutableInstruction10x(Opcode.RETURN_VOID));
+        return new ImmutableMethodImplementation(1, instructions, null, null);
+    }
+
+}
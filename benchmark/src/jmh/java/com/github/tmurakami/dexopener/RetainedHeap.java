@@ -0,0 +1,95 @@
+/*
+ * Copyright 2016 Tsuyoshi Murakami
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.tmurakami.dexopener;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Prints the heap retained by the class-to-batch lookup structures, measured by the difference
+ * of the used heap before and after creating them.
+ */
+public final class RetainedHeap {
+
+    private static final int[] CLASS_COUNTS = {1000, 10000, 50000};
+    private static final int REPEAT_COUNT = 5;
+
+    // The JIT compiler cannot drop a store to a volatile field, so this keeps each structure
+    // reachable while it is measured.
+    private static volatile Object sink;
+
+    private RetainedHeap() {
+        throw new AssertionError("Do not instantiate");
+    }
+
+    public static void main(String[] args) {
+        System.out.println("classes\thashMap(bytes)\tbatchIndex(bytes)");
+        for (int classCount : CLASS_COUNTS) {
+            // The names are read from the index file as new strings, so they are retained only
+            // by the HashMap.
+            long hashMap = measure(() -> {
+                Map<String, Object> map = new HashMap<>();
+                for (List<String> names : SyntheticClassNames.generate(classCount)) {
+                    Object batch = new Object();
+                    for (String name : names) {
+                        map.put(name, batch);
+                    }
+                }
+                return map;
+            });
+            long batchIndex = measure(() -> {
+                List<List<String>> names = SyntheticClassNames.generate(classCount);
+                List<Object> batches = new ArrayList<>();
+                for (int i = 0, size = names.size(); i < size; i++) {
+                    batches.add(new Object());
+                }
+                return new Object[]{new BatchIndex(names), batches};
+            });
+            System.out.println(classCount + "\t" + hashMap + '\t' + batchIndex);
+        }
+    }
+
+    private static long measure(Factory factory) {
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < REPEAT_COUNT; i++) {
+            sink = null;
+            long before = usedHeap();
+            Object retained = factory.create();
+            long after = usedHeap();
+            // Keep the structure reachable until the heap has been measured.
+            sink = retained;
+            min = Math.min(min, after - before);
+        }
+        sink = null;
+        return min;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private interface Factory {
+        Object create();
+    }
+
+}
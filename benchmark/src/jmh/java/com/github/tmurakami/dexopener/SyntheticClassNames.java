@@ -0,0 +1,51 @@
+/*
+ * Copyright 2016 Tsuyoshi Murakami
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.tmurakami.dexopener;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates the dex names of the classes of a fictitious app, split into batches.
+ */
+final class SyntheticClassNames {
+
+    static final int CLASSES_PER_BATCH = 100;
+
+    private static final String[] SUFFIXES = {"", "$1", "$Companion", "$onCreate$1", "Impl"};
+
+    private SyntheticClassNames() {
+        throw new AssertionError("Do not instantiate");
+    }
+
+    static List<List<String>> generate(int classCount) {
+        Random random = new Random(0);
+        List<List<String>> batches = new ArrayList<>();
+        List<String> batch = null;
+        for (int i = 0; i < classCount; i++) {
+            if (i % CLASSES_PER_BATCH == 0) {
+                batch = new ArrayList<>(CLASSES_PER_BATCH);
+                batches.add(batch);
+            }
+            batch.add("Lcom/example/app/feature" + random.nextInt(50) + "/ui/Class" + i
+                      + SUFFIXES[random.nextInt(SUFFIXES.length)] + ';');
+        }
+        return batches;
+    }
+
+}
@@ -13,28 +13,43 @@
     *;
 }
 
--keep class com.google.common.base.Functions {
-    public static com.google.common.base.Function constant(java.lang.Object);
+-keep class org.jf.dexlib2.dexbacked.DexBackedClassDef {
+    public java.lang.Iterable getMethods();
 }
--keep class com.google.common.base.Predicates {
-    public static com.google.common.base.Predicate compose(com.google.common.base.Predicate, com.google.common.base.Function);
+-keep class org.jf.dexlib2.dexbacked.DexBackedDexFile {
+    public <init>(org.jf.dexlib2.Opcodes, byte[]);
+    public org.jf.dexlib2.dexbacked.DexBackedDexFile$IndexedSection getClassSection();
 }
--keep class com.google.common.collect.Iterables {
-    public static java.lang.Iterable filter(java.lang.Iterable, com.google.common.base.Predicate);
-    public static java.lang.Iterable partition(java.lang.Iterable, int);
+-keep class org.jf.dexlib2.dexbacked.DexBackedMethod {
+    public org.jf.dexlib2.dexbacked.DexBackedMethodImplementation getImplementation();
 }
--keep class com.google.common.collect.Maps {
-    public static com.google.common.collect.ImmutableMap toMap(java.lang.Iterable, com.google.common.base.Function);
-    public static java.util.Map transformValues(java.util.Map, com.google.common.base.Function);
+-keep class org.jf.dexlib2.dexbacked.DexBackedMethodImplementation {
+    public int getSize();
 }
--keep class com.google.common.io.ByteStreams {
-    public static byte[] toByteArray(java.io.InputStream);
+-keep class org.jf.dexlib2.iface.Annotation {
+    public java.lang.String getType();
+    public java.util.Set getElements();
 }
--keep class org.jf.dexlib2.analysis.reflection.util.ReflectionUtils {
-    public static java.lang.String javaToDexName(java.lang.String);
+-keep class org.jf.dexlib2.iface.AnnotationElement {
+    public java.lang.String getName();
+    public org.jf.dexlib2.iface.value.EncodedValue getValue();
 }
--keep class org.jf.dexlib2.dexbacked.DexBackedDexFile {
-    public <init>(org.jf.dexlib2.Opcodes, byte[]);
+-keep class org.jf.dexlib2.iface.ClassDef {
+    public int getAccessFlags();
+    public java.util.Set getAnnotations();
+    public java.lang.Iterable getMethods();
+}
+-keep class org.jf.dexlib2.iface.Method {
+    public int getAccessFlags();
+}
+-keep class org.jf.dexlib2.iface.value.IntEncodedValue {
+    public int getValue();
+}
+-keep class org.jf.dexlib2.iface.value.MethodEncodedValue {
+    public org.jf.dexlib2.iface.reference.MethodReference getValue();
+}
+-keep class org.jf.dexlib2.iface.value.TypeEncodedValue {
+    public java.lang.String getValue();
 }
 -keep class org.jf.dexlib2.rewriter.DexRewriter {
     public <init>(org.jf.dexlib2.rewriter.RewriterModule);
@@ -47,6 +62,12 @@
 -keep class org.jf.dexlib2.writer.io.FileDataStore {
     public <init>(java.io.File);
 }
+-keep class org.jf.dexlib2.writer.io.MemoryDataStore {
+    public <init>();
+    public byte[] getBuffer();
+    public int getSize();
+    public void close();
+}
 -keep class org.jf.dexlib2.writer.pool.DexPool {
     public static void writeTo(org.jf.dexlib2.writer.io.DexDataStore, org.jf.dexlib2.iface.DexFile);
 }
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2016 Tsuyoshi Murakami
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.tmurakami.dexopener;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The default executor of the batches, whose daemon threads go away when they have been idle for
+ * a while.
+ * <p>
+ * The best number of threads depends on the device, since the threads compete with the app under
+ * test. So this executor measures the throughput of the tasks, and climbs the hill: it adds or
+ * removes a thread at a time between the given bounds, and turns back when the last step did not
+ * improve the throughput.
+ */
+final class AdaptiveExecutor extends ThreadPoolExecutor {
+
+    private static final int INITIAL_POOL_SIZE = 4;
+    private static final long KEEP_ALIVE_SECONDS = 1;
+    // A step is kept only if it improves the throughput by more than this ratio, since the
+    // throughput of the batches is noisy.
+    private static final double TOLERANCE = 0.05;
+
+    private final int minPoolSize;
+    private final int maxPoolSize;
+    private int step = 1;
+    private int completedCount;
+    private long sampleStartNanos;
+    private double lastThroughput;
+
+    /**
+     * @param name        the prefix of the names of the threads
+     * @param minPoolSize the minimum number of threads, which must be positive
+     * @param maxPoolSize the maximum number of threads, which must not be less than the minimum
+     */
+    AdaptiveExecutor(String name, int minPoolSize, int maxPoolSize) {
+        super(clamp(INITIAL_POOL_SIZE, minPoolSize, maxPoolSize),
+              clamp(INITIAL_POOL_SIZE, minPoolSize, maxPoolSize),
+              KEEP_ALIVE_SECONDS,
+              TimeUnit.SECONDS,
+              new LinkedBlockingQueue<>(),
+              newThreadFactory(name));
+        this.minPoolSize = minPoolSize;
+        this.maxPoolSize = maxPoolSize;
+        allowCoreThreadTimeOut(true);
+        sampleStartNanos = System.nanoTime();
+    }
+
+    @Override
+    protected void afterExecute(Runnable r, Throwable t) {
+        super.afterExecute(r, t);
+        long now = System.nanoTime();
+        synchronized (this) {
+            // A sample is taken over twice as many tasks as the threads.
+            if (++completedCount < getCorePoolSize() * 2) {
+                return;
+            }
+            int size = adjust(getCorePoolSize(), completedCount, now - sampleStartNanos);
+            completedCount = 0;
+            sampleStartNanos = now;
+            resize(size);
+        }
+    }
+
+    /**
+     * Returns the number of threads for the next sample, given the throughput of the current
+     * one.
+     */
+    synchronized int adjust(int poolSize, int completedCount, long elapsedNanos) {
+        double throughput = (double) completedCount / Math.max(elapsedNanos, 1);
+        if (lastThroughput > 0 && throughput <= lastThroughput * (1 + TOLERANCE)) {
+            step = -step;
+        }
+        lastThroughput = throughput;
+        int size = poolSize + step;
+        if (size < minPoolSize || size > maxPoolSize) {
+            step = -step;
+            size = clamp(poolSize + step, minPoolSize, maxPoolSize);
+        }
+        return size;
+    }
+
+    private void resize(int size) {
+        // The maximum must not be less than the core size.
+        if (size > getMaximumPoolSize()) {
+            setMaximumPoolSize(size);
+            setCorePoolSize(size);
+        } else {
+            setCorePoolSize(size);
+            setMaximumPoolSize(size);
+        }
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(value, max));
+    }
+
+    private static ThreadFactory newThreadFactory(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(r, name + " #" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+}
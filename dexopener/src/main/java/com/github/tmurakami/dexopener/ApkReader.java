@@ -0,0 +1,240 @@
+/*
+ * Copyright 2016 Tsuyoshi Murakami
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.tmurakami.dexopener;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+
+import static java.util.Collections.list;
+
+/**
+ * Reads the dex entries in an APK file.
+ * <p>
+ * The dex entries of an APK file are usually stored without compression, so they are read
+ * directly from the memory-mapped APK file instead of through {@link ZipFile}. This requires the
+ * offset of the local header of each entry, which {@link ZipEntry} does not provide, so this class
+ * reads the central directory by itself. This also allows the CRCs of the dex entries to be read
+ * without opening the APK file as a {@link ZipFile}, which reads all the entries. The compressed
+ * entries and the entries of a ZIP64 file are inflated through {@link ZipFile} instead.
+ */
+final class ApkReader implements Closeable {
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CENTRAL_DIRECTORY_SIGNATURE = 0x02014b50;
+    private static final int CENTRAL_DIRECTORY_HEADER_SIZE = 46;
+    private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+    private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+    private static final int MAX_COMMENT_SIZE = 0xffff;
+
+    private final File apk;
+    private final RandomAccessFile file;
+    private final Map<String, Entry> dexEntries;
+    private ZipFile zipFile;
+
+    ApkReader(File apk) throws IOException {
+        this.apk = apk;
+        this.file = new RandomAccessFile(apk, "r");
+        try {
+            Map<String, Entry> entries = readDexEntries(file.getChannel());
+            if (entries == null) {
+                entries = new LinkedHashMap<>();
+                for (ZipEntry entry : list(getZipFile().entries())) {
+                    String name = entry.getName();
+                    if (isDexEntryName(name)) {
+                        entries.put(name, new Entry(
+                                entry.getMethod(), entry.getCrc(), entry.getSize(), -1));
+                    }
+                }
+            }
+            this.dexEntries = entries;
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    static boolean isDexEntryName(String name) {
+        return name.startsWith("classes") && name.endsWith(".dex");
+    }
+
+    /**
+     * Returns the CRCs of the dex entries, keyed by the entry names in the order of the central
+     * directory.
+     */
+    Map<String, Long> getDexEntryCrcs() {
+        Map<String, Long> crcs = new LinkedHashMap<>();
+        for (Map.Entry<String, Entry> e : dexEntries.entrySet()) {
+            crcs.put(e.getKey(), e.getValue().crc);
+        }
+        return crcs;
+    }
+
+    /**
+     * Reads the whole data of the given dex entry.
+     * <p>
+     * Since dexlib2 only accepts a byte array, the data is copied once into an array of the exact
+     * size, without any intermediate buffer.
+     */
+    byte[] read(String entryName) throws IOException {
+        Entry entry = dexEntries.get(entryName);
+        if (entry == null) {
+            throw new ZipException("Missing " + entryName + " in " + apk);
+        }
+        long size = entry.size;
+        if (size < 0 || size > Integer.MAX_VALUE) {
+            throw new ZipException("Unsupported entry size: " + entryName + " " + size);
+        }
+        byte[] bytes = new byte[(int) size];
+        if (entry.method == ZipEntry.STORED && entry.localHeaderOffset != -1) {
+            FileChannel channel = file.getChannel();
+            long offset = entry.localHeaderOffset;
+            ByteBuffer header = read(channel, offset, LOCAL_HEADER_SIZE);
+            if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+                throw new ZipException("Invalid local header: " + entryName);
+            }
+            int nameLength = header.getShort(26) & 0xffff;
+            int extraLength = header.getShort(28) & 0xffff;
+            long dataOffset = offset + LOCAL_HEADER_SIZE + nameLength + extraLength;
+            channel.map(FileChannel.MapMode.READ_ONLY, dataOffset, size).get(bytes);
+        } else {
+            ZipFile zipFile = getZipFile();
+            ZipEntry zipEntry = zipFile.getEntry(entryName);
+            if (zipEntry == null) {
+                throw new ZipException("Missing " + entryName + " in " + apk);
+            }
+            try (InputStream in = zipFile.getInputStream(zipEntry)) {
+                new DataInputStream(in).readFully(bytes);
+            }
+        }
+        return bytes;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            file.close();
+        } finally {
+            synchronized (this) {
+                if (zipFile != null) {
+                    zipFile.close();
+                }
+            }
+        }
+    }
+
+    private synchronized ZipFile getZipFile() throws IOException {
+        if (zipFile == null) {
+            zipFile = new ZipFile(apk);
+        }
+        return zipFile;
+    }
+
+    /**
+     * Returns the dex entries in the given file, or null if it is a ZIP64 file.
+     */
+    private static Map<String, Entry> readDexEntries(FileChannel channel) throws IOException {
+        long fileSize = channel.size();
+        int tailSize = (int) Math.min(fileSize, END_OF_CENTRAL_DIRECTORY_SIZE + MAX_COMMENT_SIZE);
+        ByteBuffer tail = read(channel, fileSize - tailSize, tailSize);
+        int eocd = tailSize - END_OF_CENTRAL_DIRECTORY_SIZE;
+        while (eocd >= 0 && tail.getInt(eocd) != END_OF_CENTRAL_DIRECTORY_SIGNATURE) {
+            eocd--;
+        }
+        if (eocd < 0) {
+            throw new ZipException("End of central directory not found");
+        }
+        int entryCount = tail.getShort(eocd + 10) & 0xffff;
+        long size = tail.getInt(eocd + 12) & 0xffffffffL;
+        long offset = tail.getInt(eocd + 16) & 0xffffffffL;
+        if (entryCount == 0xffff || offset == 0xffffffffL || offset + size > fileSize) {
+            return null;
+        }
+        ByteBuffer cd = channel.map(FileChannel.MapMode.READ_ONLY, offset, size)
+                               .order(ByteOrder.LITTLE_ENDIAN);
+        Map<String, Entry> entries = new LinkedHashMap<>();
+        int pos = 0;
+        for (int i = 0; i < entryCount; i++) {
+            if (cd.getInt(pos) != CENTRAL_DIRECTORY_SIGNATURE) {
+                throw new ZipException("Invalid central directory");
+            }
+            int method = cd.getShort(pos + 10) & 0xffff;
+            long crc = cd.getInt(pos + 16) & 0xffffffffL;
+            long uncompressedSize = cd.getInt(pos + 24) & 0xffffffffL;
+            int nameLength = cd.getShort(pos + 28) & 0xffff;
+            int extraLength = cd.getShort(pos + 30) & 0xffff;
+            int commentLength = cd.getShort(pos + 32) & 0xffff;
+            long localHeaderOffset = cd.getInt(pos + 42) & 0xffffffffL;
+            byte[] name = new byte[nameLength];
+            cd.position(pos + CENTRAL_DIRECTORY_HEADER_SIZE);
+            cd.get(name);
+            // The names of the dex entries are ASCII.
+            String entryName = new String(name, "UTF-8");
+            if (isDexEntryName(entryName)) {
+                if (uncompressedSize == 0xffffffffL || localHeaderOffset == 0xffffffffL) {
+                    return null;
+                }
+                entries.put(entryName,
+                            new Entry(method, crc, uncompressedSize, localHeaderOffset));
+            }
+            pos += CENTRAL_DIRECTORY_HEADER_SIZE + nameLength + extraLength + commentLength;
+        }
+        return entries;
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int size)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+        return buffer;
+    }
+
+    private static final class Entry {
+
+        final int method;
+        final long crc;
+        final long size;
+        // -1 if unknown
+        final long localHeaderOffset;
+
+        Entry(int method, long crc, long size, long localHeaderOffset) {
+            this.method = method;
+            this.crc = crc;
+            this.size = size;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+
+    }
+
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2016 Tsuyoshi Murakami
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.tmurakami.dexopener;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A read-only map from the names of the classes to the ids of their batches.
+ * <p>
+ * This index is held for the whole life of the process, so it does not hold any object per
+ * class. The names are sorted and concatenated into a single array, which is a byte array if all
+ * the names are in Latin-1, and a name is looked up by binary search over the offsets of the
+ * names. Since the names of the classes in the same package share a long prefix, the search skips
+ * the prefix shared by both ends of the current range.
+ */
+final class BatchIndex {
+
+    // Either of them is null.
+    private final byte[] latin1;
+    private final char[] chars;
+    // The offset of the i-th name, followed by the total length of the names.
+    private final int[] offsets;
+    private final int[] batchIds;
+
+    /**
+     * @param names the names of the classes in each batch, indexed by the batch id. Each name
+     *              must not appear more than once.
+     */
+    BatchIndex(List<? extends List<String>> names) {
+        int count = 0;
+        int length = 0;
+        boolean isLatin1 = true;
+        for (List<String> list : names) {
+            count += list.size();
+            for (String name : list) {
+                length += name.length();
+                for (int i = 0, n = name.length(); isLatin1 && i < n; i++) {
+                    isLatin1 = name.charAt(i) <= 0xff;
+                }
+            }
+        }
+        String[] sortedNames = new String[count];
+        int[] ids = new int[count];
+        int i = 0;
+        for (int id = 0, size = names.size(); id < size; id++) {
+            for (String name : names.get(id)) {
+                sortedNames[i] = name;
+                ids[i] = id;
+                i++;
+            }
+        }
+        Integer[] order = new Integer[count];
+        for (i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> sortedNames[a].compareTo(sortedNames[b]));
+        byte[] latin1 = isLatin1 ? new byte[length] : null;
+        char[] chars = isLatin1 ? null : new char[length];
+        int[] offsets = new int[count + 1];
+        int[] batchIds = new int[count];
+        int offset = 0;
+        for (i = 0; i < count; i++) {
+            String name = sortedNames[order[i]];
+            int nameLength = name.length();
+            if (latin1 == null) {
+                name.getChars(0, nameLength, chars, offset);
+            } else {
+                for (int j = 0; j < nameLength; j++) {
+                    latin1[offset + j] = (byte) name.charAt(j);
+                }
+            }
+            offsets[i] = offset;
+            batchIds[i] = ids[order[i]];
+            offset += nameLength;
+        }
+        offsets[count] = offset;
+        this.latin1 = latin1;
+        this.chars = chars;
+        this.offsets = offsets;
+        this.batchIds = batchIds;
+    }
+
+    /**
+     * Returns the id of the batch containing the given class, or -1 if not found.
+     */
+    int get(String name) {
+        int nameLength = name.length();
+        int low = 0;
+        int high = batchIds.length - 1;
+        // The length of the prefix that the name shares with the names at low - 1 and high + 1
+        int lowPrefix = 0;
+        int highPrefix = 0;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int offset = offsets[mid];
+            int length = offsets[mid + 1] - offset;
+            int n = Math.min(length, nameLength);
+            int i = Math.min(lowPrefix, highPrefix);
+            int c = 0;
+            for (; i < n; i++) {
+                c = charAt(offset + i) - name.charAt(i);
+                if (c != 0) {
+                    break;
+                }
+            }
+            if (c == 0) {
+                c = length - nameLength;
+                if (c == 0) {
+                    return batchIds[mid];
+                }
+            }
+            if (c < 0) {
+                low = mid + 1;
+                lowPrefix = i;
+            } else {
+                high = mid - 1;
+                highPrefix = i;
+            }
+        }
+        return -1;
+    }
+
+    int size() {
+        return batchIds.length;
+    }
+
+    private int charAt(int index) {
+        return latin1 == null ? chars[index] : latin1[index] & 0xff;
+    }
+
+}
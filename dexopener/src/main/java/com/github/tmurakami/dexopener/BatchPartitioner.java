@@ -0,0 +1,287 @@
+/*
+ * Copyright 2016 Tsuyoshi Murakami
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.tmurakami.dexopener;
+
+import com.github.tmurakami.dexopener.repackaged.org.jf.dexlib2.dexbacked.DexBackedClassDef;
+import com.github.tmurakami.dexopener.repackaged.org.jf.dexlib2.dexbacked.DexBackedMethod;
+import com.github.tmurakami.dexopener.repackaged.org.jf.dexlib2.dexbacked.DexBackedMethodImplementation;
+import com.github.tmurakami.dexopener.repackaged.org.jf.dexlib2.iface.Annotation;
+import com.github.tmurakami.dexopener.repackaged.org.jf.dexlib2.iface.AnnotationElement;
+import com.github.tmurakami.dexopener.repackaged.org.jf.dexlib2.iface.ClassDef;
+import com.github.tmurakami.dexopener.repackaged.org.jf.dexlib2.iface.value.EncodedValue;
+import com.github.tmurakami.dexopener.repackaged.org.jf.dexlib2.iface.value.MethodEncodedValue;
+import com.github.tmurakami.dexopener.repackaged.org.jf.dexlib2.iface.value.TypeEncodedValue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Splits classes into batches of roughly equal cost.
+ * <p>
+ * Loading a class also resolves its superclass and interfaces, so they should be in the same
+ * batch as that class. Otherwise, loading it has to wait for several batches in series. For this
+ * reason, the classes are first grouped into nests (a top-level class and the classes enclosed in
+ * it), and then each nest is merged into the group of the nest of its superclass (or of one of its
+ * interfaces) as long as the group fits in a batch. The groups are ordered so that the related
+ * ones are adjacent and the unrelated ones are ordered by package. The batches are cut from that
+ * order, splitting a group only if it does not fit in a batch by itself.
+ * <p>
+ * The cost of a class is estimated from the size of its code items and the number of its
+ * methods, which dominate the time to rewrite, write and load it. If the cost of a class cannot
+ * be estimated, the classes are split into batches of {@link #MAX_CLASSES_PER_BATCH} instead.
+ */
+final class BatchPartitioner {
+
+    // Empirically determined value. Increasing this will slow DEX file generation.
+    static final int MAX_CLASSES_PER_BATCH = 100;
+
+    // The cost of about MAX_CLASSES_PER_BATCH classes of ordinary size.
+    static final long MAX_COST_PER_BATCH = 192 * 1024;
+
+    private static final int CLASS_OVERHEAD = 512;
+    private static final int METHOD_OVERHEAD = 64;
+
+    private static final String ENCLOSING_CLASS = "Ldalvik/annotation/EnclosingClass;";
+    private static final String ENCLOSING_METHOD = "Ldalvik/annotation/EnclosingMethod;";
+
+    // Sorts the types by package first, so that the types in the same package are adjacent.
+    private static final Comparator<String> PACKAGE_ORDER = (a, b) -> {
+        int aEnd = a.lastIndexOf('/');
+        int bEnd = b.lastIndexOf('/');
+        int c = a.substring(0, Math.max(aEnd, 0)).compareTo(b.substring(0, Math.max(bEnd, 0)));
+        return c == 0 ? a.compareTo(b) : c;
+    };
+
+    private BatchPartitioner() {
+        throw new AssertionError("Do not instantiate");
+    }
+
+    /**
+     * Returns the estimated cost of the given class, or -1 if it cannot be estimated.
+     */
+    static long getCost(ClassDef def) {
+        if (!(def instanceof DexBackedClassDef)) {
+            return -1;
+        }
+        long cost = CLASS_OVERHEAD;
+        for (DexBackedMethod method : ((DexBackedClassDef) def).getMethods()) {
+            cost += METHOD_OVERHEAD;
+            DexBackedMethodImplementation impl = method.getImplementation();
+            if (impl != null) {
+                cost += impl.getSize();
+            }
+        }
+        return cost;
+    }
+
+    static <T extends ClassDef> List<Partition<T>> partition(Iterable<T> classes) {
+        return partition(classes, MAX_COST_PER_BATCH);
+    }
+
+    static <T extends ClassDef> List<Partition<T>> partition(Iterable<T> classes, long maxCost) {
+        Map<String, Long> costMap = new HashMap<>();
+        for (T def : classes) {
+            long cost = getCost(def);
+            // Fall back to the fixed number of classes.
+            costMap.put(def.getType(), cost < 0 ? maxCost / MAX_CLASSES_PER_BATCH : cost);
+        }
+        List<Partition<T>> partitions = new ArrayList<>();
+        Partition<T> partition = new Partition<>();
+        for (Partition<T> group : group(classes, costMap, maxCost)) {
+            if (!partition.classes.isEmpty() && partition.cost + group.cost > maxCost) {
+                partitions.add(partition);
+                partition = new Partition<>();
+            }
+            for (T def : group.classes) {
+                long cost = costMap.get(def.getType());
+                // This is only the case if the group does not fit in a batch by itself.
+                if (!partition.classes.isEmpty() && partition.cost + cost > maxCost) {
+                    partitions.add(partition);
+                    partition = new Partition<>();
+                }
+                partition.classes.add(def);
+                partition.cost += cost;
+            }
+        }
+        if (!partition.classes.isEmpty()) {
+            partitions.add(partition);
+        }
+        return partitions;
+    }
+
+    /**
+     * Groups the given classes into nests, merges each nest into the group of its parent while
+     * the group fits in a batch, and orders the groups so that the related ones are adjacent.
+     */
+    private static <T extends ClassDef> List<Partition<T>> group(Iterable<T> classes,
+                                                                 Map<String, Long> costMap,
+                                                                 long maxCost) {
+        Map<String, T> classMap = new LinkedHashMap<>();
+        for (T def : classes) {
+            classMap.put(def.getType(), def);
+        }
+        Map<String, Partition<T>> nests = new LinkedHashMap<>();
+        Map<String, String> hostMap = new HashMap<>();
+        for (T def : classMap.values()) {
+            String type = def.getType();
+            String host = getNestHost(type, classMap);
+            hostMap.put(type, host);
+            Partition<T> nest = nests.get(host);
+            if (nest == null) {
+                nests.put(host, nest = new Partition<>());
+            }
+            if (type.equals(host)) {
+                nest.classes.add(0, def);
+            } else {
+                nest.classes.add(def);
+            }
+            nest.cost += costMap.get(type);
+        }
+        List<String> roots = new ArrayList<>();
+        Map<String, List<String>> childrenMap = new HashMap<>();
+        for (String host : nests.keySet()) {
+            String parent = getParentNestHost(classMap.get(host), hostMap);
+            if (parent == null || parent.equals(host)) {
+                roots.add(host);
+            } else {
+                List<String> children = childrenMap.get(parent);
+                if (children == null) {
+                    childrenMap.put(parent, children = new ArrayList<>());
+                }
+                children.add(host);
+            }
+        }
+        Collections.sort(roots, PACKAGE_ORDER);
+        List<Partition<T>> groups = new ArrayList<>(nests.size());
+        Set<String> visited = new HashSet<>();
+        for (String root : roots) {
+            addGroups(root, nests, childrenMap, maxCost, visited, groups);
+        }
+        // The nests that have not been visited yet form a cycle, which a valid dex file cannot have
+        // through superclasses but might have through interfaces.
+        for (String host : nests.keySet()) {
+            addGroups(host, nests, childrenMap, maxCost, visited, groups);
+        }
+        return groups;
+    }
+
+    private static <T> void addGroups(String host,
+                                      Map<String, Partition<T>> nests,
+                                      Map<String, List<String>> childrenMap,
+                                      long maxCost,
+                                      Set<String> visited,
+                                      List<Partition<T>> groups) {
+        if (!visited.add(host)) {
+            return;
+        }
+        Partition<T> group = nests.get(host);
+        groups.add(group);
+        List<String> children = childrenMap.get(host);
+        if (children == null) {
+            return;
+        }
+        Collections.sort(children, PACKAGE_ORDER);
+        for (String child : children) {
+            int index = groups.size();
+            addGroups(child, nests, childrenMap, maxCost, visited, groups);
+            if (index < groups.size()) {
+                // The first group of the child contains the nest of the child.
+                Partition<T> childGroup = groups.get(index);
+                if (group.cost + childGroup.cost <= maxCost) {
+                    group.classes.addAll(childGroup.classes);
+                    group.cost += childGroup.cost;
+                    groups.remove(index);
+                }
+            }
+        }
+    }
+
+    private static String getNestHost(String type, Map<String, ? extends ClassDef> classMap) {
+        String host = type;
+        // The depth limit guards against a cycle made of broken annotations.
+        for (int depth = 0; depth < 32; depth++) {
+            String outer = getOuterType(classMap.get(host));
+            if (outer == null || !classMap.containsKey(outer)) {
+                break;
+            }
+            host = outer;
+        }
+        return host;
+    }
+
+    private static String getOuterType(ClassDef def) {
+        String type = def.getType();
+        int lastDollarPos = type.lastIndexOf('$');
+        if (lastDollarPos == -1) {
+            // Skip reading the annotations of the classes that are unlikely to be nested.
+            return null;
+        }
+        for (Annotation annotation : def.getAnnotations()) {
+            String annotationType = annotation.getType();
+            if (ENCLOSING_CLASS.equals(annotationType)) {
+                EncodedValue value = getValue(annotation);
+                if (value instanceof TypeEncodedValue) {
+                    return ((TypeEncodedValue) value).getValue();
+                }
+            } else if (ENCLOSING_METHOD.equals(annotationType)) {
+                EncodedValue value = getValue(annotation);
+                if (value instanceof MethodEncodedValue) {
+                    return ((MethodEncodedValue) value).getValue().getDefiningClass();
+                }
+            }
+        }
+        // The annotations may have been removed by a shrinker.
+        return type.substring(0, lastDollarPos) + ';';
+    }
+
+    private static EncodedValue getValue(Annotation annotation) {
+        for (AnnotationElement element : annotation.getElements()) {
+            if (element.getName().equals("value")) {
+                return element.getValue();
+            }
+        }
+        return null;
+    }
+
+    private static String getParentNestHost(ClassDef def, Map<String, String> hostMap) {
+        String superclass = def.getSuperclass();
+        if (superclass != null && hostMap.containsKey(superclass)) {
+            return hostMap.get(superclass);
+        }
+        for (String type : def.getInterfaces()) {
+            if (hostMap.containsKey(type)) {
+                return hostMap.get(type);
+            }
+        }
+        return null;
+    }
+
+    static final class Partition<T> {
+
+        final List<T> classes = new ArrayList<>();
+        long cost;
+
+    }
+
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright 2016 Tsuyoshi Murakami
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.tmurakami.dexopener;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Schedules the batches of classes to be transformed in the background.
+ * <p>
+ * Unlike a FIFO executor, the pending batches are run in descending order of their estimated
+ * cost, so that the longest ones do not remain at the end. A batch that a loader thread is
+ * waiting for is taken out of the queue and run by that thread right away.
+ * <p>
+ * A batch may be split into two stages, the transform stage that generates the dex file and the
+ * load stage that waits for the runtime to load it. If an executor for the load stage is given,
+ * the load stages are queued there, so that the workers of the transform stage do not sit idle
+ * while a dex file is being optimized.
+ */
+final class BatchScheduler {
+
+    static final int TRANSFORM_STAGE = 0;
+    static final int LOAD_STAGE = 1;
+
+    private final PriorityQueue<Task<?>> queue = new PriorityQueue<>();
+    private final Executor executor;
+    private final Executor loadExecutor;
+    private final AtomicInteger loadQueueDepth = new AtomicInteger();
+    private final int[] maxQueueDepths = new int[2];
+    private long sequence;
+
+    /**
+     * @param loadExecutor the {@link Executor} for the load stages, or null to run both stages
+     *                     of a batch in a row
+     */
+    BatchScheduler(Executor executor, Executor loadExecutor) {
+        this.executor = executor;
+        this.loadExecutor = loadExecutor;
+    }
+
+    /**
+     * Schedules the given task.
+     *
+     * @param cost the estimated cost of the given task, which only needs to be comparable with
+     *             the cost of the other tasks
+     * @return the {@link RunnableFuture} of the given task. Calling {@link RunnableFuture#run()}
+     * on it runs the task in the calling thread unless the task has already been started.
+     */
+    <V> RunnableFuture<V> schedule(Callable<V> callable, long cost) {
+        Task<V> task;
+        synchronized (queue) {
+            task = new Task<>(callable, cost, sequence++);
+            enqueue(task);
+        }
+        executor.execute(this::runNext);
+        return task;
+    }
+
+    /**
+     * Schedules the given task in two stages.
+     *
+     * @param transform the transform stage, which returns the load stage
+     * @param cost      the estimated cost of the given task
+     * @return the {@link RunnableFuture} of the load stage. Calling {@link RunnableFuture#run()}
+     * on it runs the stages that have not yet been started in the calling thread.
+     */
+    <V> RunnableFuture<V> scheduleStages(Callable<? extends Callable<V>> transform, long cost) {
+        if (loadExecutor == null) {
+            return schedule(() -> transform.call().call(), cost);
+        }
+        Task<V> task;
+        synchronized (queue) {
+            task = new StagedTask<>(transform, cost, sequence++);
+            enqueue(task);
+        }
+        executor.execute(this::runNext);
+        return task;
+    }
+
+    /**
+     * Returns the number of the tasks waiting for the given stage.
+     *
+     * @param stage {@link #TRANSFORM_STAGE} or {@link #LOAD_STAGE}
+     */
+    int getQueueDepth(int stage) {
+        if (stage == LOAD_STAGE) {
+            return loadQueueDepth.get();
+        }
+        synchronized (queue) {
+            return queue.size();
+        }
+    }
+
+    /**
+     * Returns the largest number of the tasks that have waited for the given stage at a time.
+     *
+     * @param stage {@link #TRANSFORM_STAGE} or {@link #LOAD_STAGE}
+     */
+    int getMaxQueueDepth(int stage) {
+        synchronized (maxQueueDepths) {
+            return maxQueueDepths[stage];
+        }
+    }
+
+    private void enqueue(Task<?> task) {
+        queue.add(task);
+        updateMaxQueueDepth(TRANSFORM_STAGE, queue.size());
+    }
+
+    private void updateMaxQueueDepth(int stage, int depth) {
+        synchronized (maxQueueDepths) {
+            if (maxQueueDepths[stage] < depth) {
+                maxQueueDepths[stage] = depth;
+            }
+        }
+    }
+
+    private void runNext() {
+        Task<?> task;
+        synchronized (queue) {
+            task = queue.poll();
+        }
+        if (task != null) {
+            task.runInBackground();
+        }
+    }
+
+    private class Task<V> extends FutureTask<V> implements Comparable<Task<?>> {
+
+        private final long cost;
+        private final long sequence;
+
+        Task(Callable<V> callable, long cost, long sequence) {
+            super(callable);
+            this.cost = cost;
+            this.sequence = sequence;
+        }
+
+        void runInBackground() {
+            run();
+        }
+
+        @Override
+        public void run() {
+            // This task may be requested by a loader thread before being polled by the executor.
+            synchronized (queue) {
+                queue.remove(this);
+            }
+            super.run();
+        }
+
+        @Override
+        public int compareTo(Task<?> o) {
+            if (cost != o.cost) {
+                return cost > o.cost ? -1 : 1;
+            }
+            return sequence < o.sequence ? -1 : sequence == o.sequence ? 0 : 1;
+        }
+
+    }
+
+    private final class StagedTask<V> extends Task<V> {
+
+        private static final int NEW = 0;
+        private static final int TRANSFORMING = 1;
+        private static final int TRANSFORMED = 2;
+        private static final int LOADING = 3;
+
+        private final Callable<? extends Callable<V>> transform;
+        private final AtomicInteger state = new AtomicInteger(NEW);
+        // This is published by the state.
+        private Callable<V> load;
+
+        StagedTask(Callable<? extends Callable<V>> transform, long cost, long sequence) {
+            super(() -> transform.call().call(), cost, sequence);
+            this.transform = transform;
+        }
+
+        @Override
+        void runInBackground() {
+            if (!state.compareAndSet(NEW, TRANSFORMING)) {
+                return;
+            }
+            try {
+                load = transform.call();
+            } catch (Throwable t) {
+                setException(t);
+                return;
+            }
+            state.set(TRANSFORMED);
+            updateMaxQueueDepth(LOAD_STAGE, loadQueueDepth.incrementAndGet());
+            loadExecutor.execute(() -> {
+                loadQueueDepth.decrementAndGet();
+                if (state.compareAndSet(TRANSFORMED, LOADING)) {
+                    runLoad();
+                }
+            });
+        }
+
+        @Override
+        public void run() {
+            // A loader thread runs the stages that no worker has started.
+            if (state.compareAndSet(NEW, LOADING)) {
+                super.run();
+            } else if (state.compareAndSet(TRANSFORMED, LOADING)) {
+                runLoad();
+            }
+        }
+
+        private void runLoad() {
+            try {
+                set(load.call());
+            } catch (Throwable t) {
+                setException(t);
+            } finally {
+                load = null;
+            }
+        }
+
+    }
+
+}
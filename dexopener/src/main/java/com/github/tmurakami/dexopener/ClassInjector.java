@@ -16,11 +16,21 @@
 
 package com.github.tmurakami.dexopener;
 
+import android.os.Build;
+
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 class ClassInjector extends ClassLoader {
 
+    static {
+        // This loader never locks itself. ClassPath locks only the name of the class being
+        // defined, and so does the fallback to the boot class loader once this is registered.
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            registerAsParallelCapable();
+        }
+    }
+
     private final ClassLoader target;
     private final ClassPath classPath;
 
@@ -31,15 +41,31 @@ class ClassInjector extends ClassLoader {
     }
 
     @Override
-    protected Class<?> findClass(String name) throws ClassNotFoundException {
+    protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+        // This loader has no class of its own, since the classes to be opened are defined in the
+        // target loader, so it looks for the class in the class path before asking the parent.
+        // The classes in the class path are never found by the parent, which is the boot class
+        // loader. If the class is not in the class path, the result of the parent is returned
+        // as it is, so that a miss does not cost another ClassNotFoundException.
         Class<?> c = classPath.loadClass(name, target);
         if (c == null) {
-            return super.findClass(name);
+            ClassLoader parent = getParent();
+            if (parent == null) {
+                // The target loader is a child of the boot class loader, which is only reachable
+                // through the default delegation.
+                return super.loadClass(name, resolve);
+            }
+            c = parent.loadClass(name);
+        } else {
+            Logger logger = Loggers.get();
+            if (logger.isLoggable(Level.FINEST)) {
+                String hash = Integer.toHexString(System.identityHashCode(target));
+                logger.finest(
+                        "Injected " + name + " into " + target.getClass().getName() + '@' + hash);
+            }
         }
-        Logger logger = Loggers.get();
-        if (logger.isLoggable(Level.FINEST)) {
-            String hash = Integer.toHexString(System.identityHashCode(target));
-            logger.finest("Injected " + name + " into " + target.getClass().getName() + '@' + hash);
+        if (resolve) {
+            resolveClass(c);
         }
         return c;
     }
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2016 Tsuyoshi Murakami
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.tmurakami.dexopener;
+
+import com.github.tmurakami.dexopener.repackaged.com.google.common.base.Predicate;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A filter for the binary names of the classes to be opened.
+ * <p>
+ * Every class loaded by the app's class loader is passed through this filter, so it works
+ * directly on the binary name of the class, without creating any object.
+ */
+final class ClassNameFilter implements Predicate<String> {
+
+    private static final String[] INCLUDED_PACKAGE_PREFIXES = {
+            "android.databinding.generated.",
+    };
+
+    private static final String[] INCLUDED_CLASS_NAMES = {
+            // Since the Data Binding Library generates several classes that are tightly coupled
+            // with user classes, do not exclude the following classes.
+            "android.databinding.DataBinderMapper",
+            "android.databinding.DataBindingComponent",
+            "android.databinding.DataBindingUtil",
+    };
+
+    private final String includedPackagePrefix;
+    private final String[] excludedClassNames;
+
+    ClassNameFilter(String rootPackage, Class... excludedClasses) {
+        String packagePrefix = rootPackage + '.';
+        this.includedPackagePrefix = packagePrefix;
+        List<String> classNames = new ArrayList<>();
+        for (Class c : excludedClasses) {
+            String className = c.getName();
+            if (className.startsWith(packagePrefix)) {
+                classNames.add(className);
+            }
+        }
+        this.excludedClassNames = classNames.toArray(new String[0]);
+    }
+
+    /**
+     * Returns the prefixes of all the dex names that may pass through the filter for the given
+     * root package.
+     */
+    static List<String> getDexNamePrefixes(String rootPackage) {
+        List<String> prefixes = new ArrayList<>();
+        prefixes.add(toDexName(rootPackage + '.', ""));
+        for (String prefix : INCLUDED_PACKAGE_PREFIXES) {
+            prefixes.add(toDexName(prefix, ""));
+        }
+        for (String className : INCLUDED_CLASS_NAMES) {
+            prefixes.add(toDexName(className, ";"));
+        }
+        return prefixes;
+    }
+
+    /**
+     * Converts the given type descriptor of a class into its binary name.
+     */
+    static String toClassName(String dexName) {
+        return dexName.substring(1, dexName.length() - 1).replace('/', '.');
+    }
+
+    private static String toDexName(String javaName, String suffix) {
+        return 'L' + javaName.replace('.', '/') + suffix;
+    }
+
+    @Override
+    public boolean apply(String className) {
+        if (className.startsWith(includedPackagePrefix)) {
+            return !isGeneratedResourceClass(className) && !isExcluded(className);
+        }
+        for (String prefix : INCLUDED_PACKAGE_PREFIXES) {
+            if (className.startsWith(prefix)) {
+                return true;
+            }
+        }
+        for (String name : INCLUDED_CLASS_NAMES) {
+            if (className.equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isExcluded(String className) {
+        for (String name : excludedClassNames) {
+            if (className.equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if the given class is BR, BuildConfig, R or one of the nested classes of R.
+     */
+    private static boolean isGeneratedResourceClass(String className) {
+        int start = className.lastIndexOf('.') + 1;
+        int length = className.length() - start;
+        return length == 1 && className.charAt(start) == 'R'
+               || length == 2 && className.startsWith("BR", start)
+               || length == 11 && className.startsWith("BuildConfig", start)
+               || className.contains(".R$");
+    }
+
+}
@@ -20,97 +20,559 @@ import android.content.Context;
 import android.os.Build;
 
 import com.github.tmurakami.dexopener.repackaged.com.google.common.base.Predicate;
-import com.github.tmurakami.dexopener.repackaged.com.google.common.io.ByteStreams;
-import com.github.tmurakami.dexopener.repackaged.org.jf.dexlib2.Opcodes;
-import com.github.tmurakami.dexopener.repackaged.org.jf.dexlib2.analysis.reflection.util.ReflectionUtils;
+import com.github.tmurakami.dexopener.repackaged.org.jf.dexlib2.dexbacked.DexBackedClassDef;
 import com.github.tmurakami.dexopener.repackaged.org.jf.dexlib2.dexbacked.DexBackedDexFile;
-import com.github.tmurakami.dexopener.repackaged.org.jf.dexlib2.iface.ClassDef;
-import com.github.tmurakami.dexopener.repackaged.org.jf.dexlib2.iface.DexFile;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 import java.util.concurrent.FutureTask;
 import java.util.concurrent.RunnableFuture;
-import java.util.zip.ZipFile;
-
-import static com.github.tmurakami.dexopener.repackaged.com.google.common.base.Functions.constant;
-import static com.github.tmurakami.dexopener.repackaged.com.google.common.base.Predicates.compose;
-import static com.github.tmurakami.dexopener.repackaged.com.google.common.collect.Iterables.filter;
-import static com.github.tmurakami.dexopener.repackaged.com.google.common.collect.Iterables.partition;
-import static com.github.tmurakami.dexopener.repackaged.com.google.common.collect.Iterables.transform;
-import static com.github.tmurakami.dexopener.repackaged.com.google.common.collect.Maps.toMap;
-import static com.github.tmurakami.dexopener.repackaged.com.google.common.collect.Maps.transformValues;
-import static java.util.Collections.list;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 @SuppressWarnings("deprecation")
 class ClassPath {
 
-    // Empirically determined value. Increasing this will slow DEX file generation.
-    private static final int MAX_CLASSES_PER_DEX_FILE = 100;
+    private static final int NOT_COLLECTED = -1;
+    private static final int COLLECTION_FAILED = -2;
 
     private final Context context;
-    private final Predicate<? super String> dexNameFilter;
+    private final String rootPackage;
+    private final Predicate<? super String> classNameFilter;
+    private final List<String> dexNamePrefixes;
     private final DexFileLoader dexFileLoader;
-    private final Executor executor;
-    private Map<String, dalvik.system.DexFile> dexFileMap;
+    private final BatchScheduler scheduler;
+    private final boolean lazy;
+    private final boolean patchDexEntries;
+    private final boolean skipsUnopenedClasses;
+    private final Stats stats = new Stats();
+    private final Tracer tracer;
+    // The depth of the nested loads in the current thread and the number of batches they forced.
+    private final ThreadLocal<int[]> loadState = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[2];
+        }
+    };
+    // The batches are collected only once, even if the first classes are loaded by several
+    // threads at the same time.
+    private final RunnableFuture<DexFiles> dexFilesFuture = new FutureTask<>(this::collectDexFiles);
+    private volatile DexFiles dexFiles;
+    // The locks for defining the classes, keyed by their names. As in a parallel capable
+    // ClassLoader, a lock is never removed, so all the threads defining a class share one lock.
+    private final ConcurrentMap<String, Object> classLoadingLocks = new ConcurrentHashMap<>();
+    // The progress of the batches, guarded by the lock.
+    private final Object progressLock = new Object();
+    private int batchCount = NOT_COLLECTED;
+    private int completedBatchCount;
+    private int failedBatchCount;
+    private Throwable batchFailure;
 
     ClassPath(Context context,
-              Predicate<? super String> dexNameFilter,
+              String rootPackage,
+              Predicate<? super String> classNameFilter,
               DexFileLoader dexFileLoader,
-              Executor executor) {
+              Executor executor,
+              Options options) {
         this.context = context;
-        this.dexNameFilter = dexNameFilter;
+        this.rootPackage = rootPackage;
+        this.classNameFilter = classNameFilter;
+        this.dexNamePrefixes = ClassNameFilter.getDexNamePrefixes(rootPackage);
         this.dexFileLoader = dexFileLoader;
-        this.executor = executor;
+        this.scheduler = new BatchScheduler(executor, options.loadExecutor);
+        this.lazy = options.lazy;
+        this.patchDexEntries = options.patchDexEntries;
+        this.skipsUnopenedClasses = options.sdkInt >= Build.VERSION_CODES.LOLLIPOP;
+        this.tracer = options.tracer;
     }
 
     Class loadClass(String className, ClassLoader loader) {
-        dalvik.system.DexFile dexFile = getDexFileFor(className);
-        return dexFile == null ? null : dexFile.loadClass(className, loader);
+        // Loading a class also loads its superclass and interfaces through this method in the
+        // same thread, which may force other batches to be transformed.
+        int[] state = loadState.get();
+        state[0]++;
+        try {
+            dalvik.system.DexFile dexFile = getDexFileFor(className, state);
+            return dexFile == null ? null : defineClass(dexFile, className, loader);
+        } finally {
+            if (--state[0] == 0) {
+                int count = state[1];
+                state[1] = 0;
+                if (count > 0) {
+                    stats.recordForcedBatches(count);
+                    Logger logger = Loggers.get();
+                    if (logger.isLoggable(Level.FINEST)) {
+                        logger.finest("Loading " + className + " waited for " + count
+                                      + " batch(es)");
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Defines the given class in the given loader, holding the lock only for its name. No lock is
+     * held while waiting for a batch, so the threads loading the classes in the other batches are
+     * not blocked.
+     */
+    private Class defineClass(dalvik.system.DexFile dexFile, String className, ClassLoader loader) {
+        Object lock = classLoadingLocks.get(className);
+        if (lock == null) {
+            Object newLock = new Object();
+            lock = classLoadingLocks.putIfAbsent(className, newLock);
+            if (lock == null) {
+                lock = newLock;
+            }
+        }
+        synchronized (lock) {
+            return dexFile.loadClass(className, loader);
+        }
+    }
+
+    /**
+     * Starts collecting the batches and, unless lazy, transforming them in the background before
+     * any class is requested.
+     */
+    void prewarm() {
+        scheduler.schedule(Executors.callable(dexFilesFuture), Long.MAX_VALUE);
+    }
+
+    /**
+     * Returns the number of the batches, or -1 if they have not yet been collected.
+     */
+    int getBatchCount() {
+        synchronized (progressLock) {
+            return Math.max(batchCount, NOT_COLLECTED);
+        }
+    }
+
+    /**
+     * Returns the number of the batches that have been transformed and loaded, excluding the ones
+     * that failed.
+     */
+    int getCompletedBatchCount() {
+        synchronized (progressLock) {
+            return completedBatchCount;
+        }
+    }
+
+    /**
+     * Returns the number of the batches that could not be transformed or loaded.
+     */
+    int getFailedBatchCount() {
+        synchronized (progressLock) {
+            return failedBatchCount;
+        }
+    }
+
+    /**
+     * Returns whether all the batches have been transformed and loaded.
+     *
+     * @throws RuntimeException if the batches could not be collected, or if a batch failed
+     */
+    boolean isReady() {
+        synchronized (progressLock) {
+            throwFailure();
+            return batchCount >= 0 && completedBatchCount >= batchCount;
+        }
+    }
+
+    /**
+     * Waits until all the batches have been transformed and loaded.
+     *
+     * @return false if the timeout elapsed
+     * @throws IllegalStateException if lazy, since some batches might never be requested
+     * @throws RuntimeException      if the batches could not be collected, or if a batch failed
+     */
+    boolean awaitBatches(long timeout, TimeUnit unit) throws InterruptedException {
+        if (lazy) {
+            throw new IllegalStateException(
+                    "The final classes are opened on demand, so they cannot be awaited");
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (progressLock) {
+            while (batchCount < 0 || completedBatchCount < batchCount) {
+                throwFailure();
+                long nanos = deadline - System.nanoTime();
+                if (nanos <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(progressLock, nanos);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @see Stats#getForcedBatchCount(int)
+     */
+    int getForcedBatchCount(int batchCount) {
+        return (int) stats.getForcedBatchCount(batchCount);
+    }
+
+    Stats getStats() {
+        return stats;
+    }
+
+    Tracer getTracer() {
+        return tracer;
     }
 
-    private dalvik.system.DexFile getDexFileFor(String className) {
-        String dexName = ReflectionUtils.javaToDexName(className);
-        if (!dexNameFilter.apply(dexName)) {
+    /**
+     * Returns the largest number of the batches that have waited for the given stage at a time.
+     *
+     * @param stage {@link BatchScheduler#TRANSFORM_STAGE} or {@link BatchScheduler#LOAD_STAGE}
+     */
+    int getMaxQueueDepth(int stage) {
+        return scheduler.getMaxQueueDepth(stage);
+    }
+
+    private dalvik.system.DexFile getDexFileFor(String className, int[] state) {
+        if (!classNameFilter.apply(className)) {
+            return null;
+        }
+        DexFiles files = dexFiles;
+        if (files == null) {
+            long start = System.nanoTime();
+            try {
+                dexFiles = files = getRunnableFutureResult(dexFilesFuture);
+            } finally {
+                record(Stats.WAIT, start, className, -1);
+            }
+        }
+        RunnableFuture<dalvik.system.DexFile> future = files.get(className);
+        if (future == null) {
             return null;
         }
-        Map<String, dalvik.system.DexFile> map = dexFileMap;
-        if (map == null) {
-            dexFileMap = map = collectDexFiles();
-        }
-        return map.get(dexName);
-    }
-
-    private Map<String, dalvik.system.DexFile> collectDexFiles() {
-        File codeCacheDir = getCodeCacheDir(context);
-        Predicate<ClassDef> classDefFilter = compose(dexNameFilter, ClassDef::getType);
-        Map<String, RunnableFuture<dalvik.system.DexFile>> futureMap = new HashMap<>();
-        String sourceDir = context.getApplicationInfo().sourceDir;
-        try (ZipFile zipFile = new ZipFile(sourceDir)) {
-            for (DexFile dexFile : getDexFiles(zipFile)) {
-                Opcodes opcodes = dexFile.getOpcodes();
-                Iterable<? extends ClassDef> classes = filter(dexFile.getClasses(), classDefFilter);
-                for (List<? extends ClassDef> list : partition(classes, MAX_CLASSES_PER_DEX_FILE)) {
-                    Set<ClassDef> set = new HashSet<>(list);
-                    ClassTransformer transformer =
-                            new ClassTransformer(opcodes, set, codeCacheDir, dexFileLoader);
-                    RunnableFuture<dalvik.system.DexFile> future = new FutureTask<>(transformer);
-                    executor.execute(future);
-                    futureMap.putAll(toMap(transform(set, ClassDef::getType), constant(future)));
+        if (future.isDone()) {
+            return getRunnableFutureResult(future);
+        }
+        state[1]++;
+        long start = System.nanoTime();
+        try {
+            return getRunnableFutureResult(future);
+        } finally {
+            record(Stats.WAIT, start, className, -1);
+        }
+    }
+
+    private DexFiles collectDexFiles() {
+        DexFiles files = null;
+        try {
+            files = newDexFiles();
+            return files;
+        } finally {
+            synchronized (progressLock) {
+                // The waiters must wake up even if the batches could not be collected.
+                batchCount = files == null ? COLLECTION_FAILED : files.size();
+                progressLock.notifyAll();
+            }
+        }
+    }
+
+    private DexFiles newDexFiles() {
+        Map<DexCache.Batch, RunnableFuture<dalvik.system.DexFile>> futureMap =
+                new ConcurrentHashMap<>();
+        File apk = new File(context.getApplicationInfo().sourceDir);
+        DexCache cache = new DexCache(
+                getCodeCacheDir(context), apk, rootPackage, patchDexEntries, skipsUnopenedClasses);
+        List<DexCache.Batch> batches = cache.getBatches();
+        try {
+            if (batches == null) {
+                batches = scanApk(apk, cache, futureMap);
+            } else {
+                // The APK is read only if some batches need to be generated.
+                List<DexCache.Batch> pendingBatches = new ArrayList<>();
+                Map<String, Integer> pendingBatchCounts = new HashMap<>();
+                for (DexCache.Batch batch : batches) {
+                    File sourceFile = cache.getSourceFile(batch);
+                    if (sourceFile.isFile()) {
+                        // This batch has been generated by a previous process, so only the load
+                        // stage remains.
+                        stats.add(Stats.CACHE_HITS, 1);
+                        File outputFile = cache.getOutputFile(batch);
+                        addBatch(batch,
+                                 () -> () -> dexFileLoader.loadDex(sourceFile.getCanonicalPath(),
+                                                                   outputFile.getCanonicalPath()),
+                                 futureMap);
+                    } else {
+                        pendingBatches.add(batch);
+                        Integer count = pendingBatchCounts.get(batch.entryName);
+                        pendingBatchCounts.put(batch.entryName, count == null ? 1 : count + 1);
+                    }
+                }
+                Map<String, LazyDexFile> dexFiles = new HashMap<>();
+                for (Map.Entry<String, Integer> e : pendingBatchCounts.entrySet()) {
+                    String entryName = e.getKey();
+                    dexFiles.put(entryName, new LazyDexFile(apk, entryName, null, e.getValue()));
+                }
+                for (DexCache.Batch batch : pendingBatches) {
+                    addBatch(batch,
+                             newTransformTask(dexFiles.get(batch.entryName),
+                                              batch,
+                                              cache.getSourceFile(batch),
+                                              cache.getOutputFile(batch)),
+                             futureMap);
                 }
             }
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-        return transformValues(futureMap, ClassPath::getRunnableFutureResult);
+        int size = batches.size();
+        List<List<String>> classNames = new ArrayList<>(size);
+        List<RunnableFuture<dalvik.system.DexFile>> futures = new ArrayList<>(size);
+        for (DexCache.Batch batch : batches) {
+            List<String> names = new ArrayList<>(batch.dexNames.size());
+            for (String dexName : batch.dexNames) {
+                names.add(ClassNameFilter.toClassName(dexName));
+            }
+            classNames.add(names);
+            futures.add(futureMap.get(batch));
+        }
+        return new DexFiles(new BatchIndex(classNames), futures);
+    }
+
+    /**
+     * Creates the task to generate the given batch. The task holds the {@link LazyDexFile} rather
+     * than the bytes of the entry, so that a pending task does not keep the whole entry.
+     */
+    private Callable<Callable<dalvik.system.DexFile>> newTransformTask(LazyDexFile lazyDexFile,
+                                                                       DexCache.Batch batch,
+                                                                       File sourceFile,
+                                                                       File outputFile) {
+        // Capture only the indices, since the names of the classes are held by the index.
+        String entryName = batch.entryName;
+        int batchIndex = batch.index;
+        int[] classDefIndices = batch.classDefIndices;
+        return () -> {
+            ClassTransformer transformer;
+            try {
+                transformer = new ClassTransformer(lazyDexFile.getBytes(),
+                                                   classDefIndices,
+                                                   getTransformMode(),
+                                                   sourceFile,
+                                                   outputFile,
+                                                   dexFileLoader);
+            } catch (Throwable t) {
+                lazyDexFile.onBatchGenerated();
+                throw t;
+            }
+            try {
+                return transform(entryName, batchIndex, transformer);
+            } finally {
+                lazyDexFile.onBatchGenerated();
+            }
+        };
+    }
+
+    private List<DexCache.Batch> scanApk(
+            File apk,
+            DexCache cache,
+            Map<DexCache.Batch, RunnableFuture<dalvik.system.DexFile>> futureMap)
+            throws IOException {
+        try (ApkReader reader = new ApkReader(apk)) {
+            Map<String, Long> dexEntryCrcs = reader.getDexEntryCrcs();
+            // The dex entries are scanned in parallel, prior to the batches, and the batches of
+            // each entry are scheduled as soon as the entry has been scanned.
+            List<RunnableFuture<List<DexCache.Batch>>> scans = new ArrayList<>();
+            for (String entryName : dexEntryCrcs.keySet()) {
+                Callable<List<DexCache.Batch>> scan =
+                        () -> scanDexEntry(apk, reader, entryName, cache, futureMap);
+                scans.add(lazy ? new FutureTask<>(scan) : scheduler.schedule(scan, Long.MAX_VALUE));
+            }
+            List<DexCache.Batch> batches = new ArrayList<>();
+            RuntimeException failure = null;
+            for (RunnableFuture<List<DexCache.Batch>> scan : scans) {
+                // Wait for all the scans even if one of them fails, since they use the APK.
+                try {
+                    batches.addAll(getRunnableFutureResult(scan));
+                } catch (RuntimeException e) {
+                    if (failure == null) {
+                        failure = e;
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            try {
+                cache.putBatches(dexEntryCrcs, batches);
+            } catch (IOException e) {
+                // The batches have already been scheduled, and the index only saves scanning the
+                // APK next time.
+                Logger logger = Loggers.get();
+                if (logger.isLoggable(Level.WARNING)) {
+                    logger.log(Level.WARNING, "Could not write the class index", e);
+                }
+            }
+            return batches;
+        }
+    }
+
+    private List<DexCache.Batch> scanDexEntry(
+            File apk,
+            ApkReader reader,
+            String entryName,
+            DexCache cache,
+            Map<DexCache.Batch, RunnableFuture<dalvik.system.DexFile>> futureMap)
+            throws IOException {
+        byte[] bytes = readDexEntry(reader, entryName);
+        long start = System.nanoTime();
+        DexBackedDexFile dexFile = new DexBackedDexFile(null, bytes);
+        // Only the classes that may pass through the filter are created for planning the
+        // batches, and the batches hold only their indices.
+        List<DexBackedClassDef> classSection = dexFile.getClassSection();
+        List<DexBackedClassDef> classes = new ArrayList<>();
+        Map<String, Integer> indexMap = new HashMap<>();
+        for (int index : DexIndex.findClassDefs(bytes, dexNamePrefixes)) {
+            DexBackedClassDef def = classSection.get(index);
+            String dexName = def.getType();
+            // The classes that have nothing to be opened are left to the original class loader,
+            // except on Dalvik. Dalvik pre-verifies a class against the classes in its own dex
+            // file, so it throws an IllegalAccessError if a pre-verified class refers to a class
+            // defined from another dex file.
+            if (classNameFilter.apply(ClassNameFilter.toClassName(dexName))
+                && (!skipsUnopenedClasses || FinalModifierRemoverModule.hasFinalModifier(def))) {
+                classes.add(def);
+                indexMap.put(dexName, index);
+            }
+        }
+        List<BatchPartitioner.Partition<DexBackedClassDef>> partitions;
+        if (patchDexEntries) {
+            // Patching a copy of the entry for each batch would multiply the work of dex2oat, so
+            // the entry is opened as a single batch, the cost of which is its size.
+            partitions = new ArrayList<>();
+            if (!classes.isEmpty()) {
+                BatchPartitioner.Partition<DexBackedClassDef> partition =
+                        new BatchPartitioner.Partition<>();
+                partition.classes.addAll(classes);
+                partition.cost = bytes.length;
+                partitions.add(partition);
+            }
+        } else {
+            partitions = BatchPartitioner.partition(classes);
+        }
+        stats.add(Stats.SCANNED_CLASSES, classSection.size());
+        stats.add(Stats.ACCEPTED_CLASSES, classes.size());
+        record(Stats.SCAN, start, entryName, -1);
+        // The bytes are released when all the batches have been generated, and re-read if needed
+        // after that.
+        LazyDexFile lazyDexFile = new LazyDexFile(apk, entryName, bytes, partitions.size());
+        List<DexCache.Batch> batches = new ArrayList<>();
+        for (BatchPartitioner.Partition<DexBackedClassDef> partition : partitions) {
+            List<DexBackedClassDef> list = partition.classes;
+            int size = list.size();
+            List<String> dexNames = new ArrayList<>(size);
+            int[] classDefIndices = new int[size];
+            for (int i = 0; i < size; i++) {
+                String dexName = list.get(i).getType();
+                dexNames.add(dexName);
+                classDefIndices[i] = indexMap.get(dexName);
+            }
+            DexCache.Batch batch = new DexCache.Batch(
+                    entryName, batches.size(), dexNames, classDefIndices, partition.cost);
+            batches.add(batch);
+            addBatch(batch,
+                     newTransformTask(lazyDexFile,
+                                      batch,
+                                      cache.getSourceFile(batch),
+                                      cache.getOutputFile(batch)),
+                     futureMap);
+        }
+        return batches;
+    }
+
+    private int getTransformMode() {
+        return patchDexEntries ? ClassTransformer.PATCH : ClassTransformer.WRITE_SUBSET;
+    }
+
+    private Callable<dalvik.system.DexFile> transform(String entryName,
+                                                      int batchIndex,
+                                                      ClassTransformer transformer)
+            throws IOException {
+        long start = System.nanoTime();
+        Callable<dalvik.system.DexFile> load = transformer.transform();
+        record(Stats.TRANSFORM, start, entryName, batchIndex);
+        stats.add(Stats.BYTES_WRITTEN, transformer.getGeneratedSize());
+        return load;
+    }
+
+    private void addBatch(DexCache.Batch batch,
+                          Callable<Callable<dalvik.system.DexFile>> task,
+                          Map<DexCache.Batch, RunnableFuture<dalvik.system.DexFile>> futureMap) {
+        String entryName = batch.entryName;
+        int batchIndex = batch.index;
+        Callable<Callable<dalvik.system.DexFile>> countedTask = () -> {
+            Callable<dalvik.system.DexFile> load;
+            try {
+                load = task.call();
+            } catch (Throwable t) {
+                onBatchFailed(t);
+                throw t;
+            }
+            return () -> {
+                long start = System.nanoTime();
+                dalvik.system.DexFile dexFile;
+                try {
+                    dexFile = load.call();
+                } catch (Throwable t) {
+                    onBatchFailed(t);
+                    throw t;
+                } finally {
+                    record(Stats.LOAD, start, entryName, batchIndex);
+                }
+                onBatchCompleted();
+                return dexFile;
+            };
+        };
+        RunnableFuture<dalvik.system.DexFile> future;
+        if (lazy) {
+            future = new FutureTask<>(() -> countedTask.call().call());
+        } else {
+            future = scheduler.scheduleStages(countedTask, batch.cost);
+        }
+        futureMap.put(batch, future);
+    }
+
+    private void onBatchCompleted() {
+        synchronized (progressLock) {
+            completedBatchCount++;
+            progressLock.notifyAll();
+        }
+    }
+
+    private void onBatchFailed(Throwable failure) {
+        synchronized (progressLock) {
+            if (failedBatchCount++ == 0) {
+                batchFailure = failure;
+            }
+            progressLock.notifyAll();
+        }
+    }
+
+    /**
+     * Throws the cause of the failure to collect the batches, or the first failure of the batches,
+     * if any. This must be called while holding the progress lock.
+     */
+    private void throwFailure() {
+        if (batchCount == COLLECTION_FAILED) {
+            getRunnableFutureResult(dexFilesFuture);
+        }
+        if (batchFailure != null) {
+            throw propagate(batchFailure);
+        }
     }
 
     private static File getCodeCacheDir(Context context) {
@@ -121,23 +583,30 @@ class ClassPath {
             parentDir = context.getCodeCacheDir();
         }
         File cacheDir = new File(parentDir, "dexopener");
-        if (cacheDir.isDirectory() || cacheDir.mkdirs()) {
-            FileUtils.delete(cacheDir.listFiles());
+        if (!cacheDir.isDirectory() && !cacheDir.mkdirs()) {
+            throw new IllegalStateException("Could not create " + cacheDir);
         }
         return cacheDir;
     }
 
-    private static Iterable<DexFile> getDexFiles(ZipFile zipFile) {
-        return transform(filter(list(zipFile.entries()), entry -> {
-            String name = entry.getName();
-            return name.startsWith("classes") && name.endsWith(".dex");
-        }), entry -> {
-            try (InputStream in = zipFile.getInputStream(entry)) {
-                return new DexBackedDexFile(null, ByteStreams.toByteArray(in));
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
-        });
+    private byte[] readDexEntry(ApkReader reader, String entryName) throws IOException {
+        long start = System.nanoTime();
+        byte[] bytes = reader.read(entryName);
+        record(Stats.READ, start, entryName, -1);
+        stats.add(Stats.BYTES_READ, bytes.length);
+        return bytes;
+    }
+
+    /**
+     * @param subject    the name of the dex entry, or the name of the class for
+     *                   {@link Stats#WAIT}
+     * @param batchIndex the index of the batch in the dex entry, or -1 if not for a batch
+     */
+    private void record(int stage, long startNanos, String subject, int batchIndex) {
+        stats.record(stage, startNanos);
+        if (tracer != null) {
+            tracer.add(stage, startNanos, subject, batchIndex);
+        }
     }
 
     private static <T> T getRunnableFutureResult(RunnableFuture<T> future) {
@@ -154,14 +623,7 @@ class ClassPath {
                 }
             }
         } catch (ExecutionException e) {
-            Throwable cause = e.getCause();
-            if (cause instanceof RuntimeException) {
-                throw (RuntimeException) cause;
-            } else if (cause instanceof Error) {
-                throw (Error) cause;
-            } else {
-                throw new RuntimeException(cause);
-            }
+            throw propagate(e.getCause());
         } finally {
             if (interrupted) {
                 // Restore the interrupted status
@@ -170,4 +632,126 @@ class ClassPath {
         }
     }
 
+    private static RuntimeException propagate(Throwable cause) {
+        if (cause instanceof RuntimeException) {
+            return (RuntimeException) cause;
+        } else if (cause instanceof Error) {
+            throw (Error) cause;
+        } else {
+            return new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * The batches of the classes, looked up by the binary names of their classes.
+     */
+    private static final class DexFiles {
+
+        private final BatchIndex index;
+        private final List<RunnableFuture<dalvik.system.DexFile>> futures;
+
+        DexFiles(BatchIndex index, List<RunnableFuture<dalvik.system.DexFile>> futures) {
+            this.index = index;
+            this.futures = futures;
+        }
+
+        RunnableFuture<dalvik.system.DexFile> get(String className) {
+            int batchId = index.get(className);
+            return batchId == -1 ? null : futures.get(batchId);
+        }
+
+        int size() {
+            return futures.size();
+        }
+
+    }
+
+    /**
+     * The options of a {@link ClassPath}, most of which are set with {@link DexOpener.Builder}.
+     */
+    static final class Options {
+
+        /**
+         * If true, each batch of classes is transformed only when one of its classes is
+         * requested. Otherwise, all batches are transformed in the background.
+         */
+        boolean lazy;
+        /**
+         * If true, each dex entry is opened as a single batch by patching a copy of the whole
+         * entry with {@link DexPatcher}.
+         */
+        boolean patchDexEntries;
+        /**
+         * The {@link Executor} to wait for the runtime to load the transformed batches, or null to
+         * load each batch in the thread that transformed it.
+         */
+        Executor loadExecutor;
+        /**
+         * The {@link Tracer} to record the stages into, or null not to trace them.
+         */
+        Tracer tracer;
+        /**
+         * The API level of the device, which decides whether the classes that have nothing to be
+         * opened can be left to the original class loader.
+         */
+        int sdkInt = Build.VERSION.SDK_INT;
+
+    }
+
+    /**
+     * A dex entry that is read when one of its batches is generated for the first time, and
+     * released when all of its batches have been generated.
+     */
+    private final class LazyDexFile {
+
+        private final File apk;
+        private final String entryName;
+        private int pendingBatchCount;
+        // In lazy mode, some batches might never be generated, so the bytes are held softly not to
+        // keep the whole entry for the lifetime of the process.
+        private byte[] bytes;
+        private SoftReference<byte[]> bytesRef;
+
+        /**
+         * @param bytes             the bytes of the entry if already read, or null
+         * @param pendingBatchCount the number of the batches to be generated from the entry
+         */
+        LazyDexFile(File apk, String entryName, byte[] bytes, int pendingBatchCount) {
+            this.apk = apk;
+            this.entryName = entryName;
+            this.pendingBatchCount = pendingBatchCount;
+            hold(bytes);
+        }
+
+        synchronized byte[] getBytes() throws IOException {
+            byte[] b = bytesRef == null ? bytes : bytesRef.get();
+            if (b == null) {
+                try (ApkReader reader = new ApkReader(apk)) {
+                    b = readDexEntry(reader, entryName);
+                }
+                hold(b);
+            }
+            return b;
+        }
+
+        synchronized void onBatchGenerated() {
+            if (--pendingBatchCount == 0) {
+                bytes = null;
+                bytesRef = null;
+            }
+        }
+
+        private void hold(byte[] b) {
+            if (b == null) {
+                return;
+            }
+            if (lazy) {
+                bytesRef = new SoftReference<>(b);
+            } else {
+                bytes = b;
+            }
+        }
+
+    }
+
 }
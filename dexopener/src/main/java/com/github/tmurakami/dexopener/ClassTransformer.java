@@ -17,15 +17,19 @@
 package com.github.tmurakami.dexopener;
 
 import com.github.tmurakami.dexopener.repackaged.org.jf.dexlib2.Opcodes;
+import com.github.tmurakami.dexopener.repackaged.org.jf.dexlib2.dexbacked.DexBackedDexFile;
 import com.github.tmurakami.dexopener.repackaged.org.jf.dexlib2.iface.ClassDef;
 import com.github.tmurakami.dexopener.repackaged.org.jf.dexlib2.iface.DexFile;
 import com.github.tmurakami.dexopener.repackaged.org.jf.dexlib2.rewriter.DexFileRewriter;
 import com.github.tmurakami.dexopener.repackaged.org.jf.dexlib2.rewriter.DexRewriter;
-import com.github.tmurakami.dexopener.repackaged.org.jf.dexlib2.writer.io.FileDataStore;
+import com.github.tmurakami.dexopener.repackaged.org.jf.dexlib2.writer.io.MemoryDataStore;
 import com.github.tmurakami.dexopener.repackaged.org.jf.dexlib2.writer.pool.DexPool;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.Collections;
 import java.util.Set;
 import java.util.concurrent.Callable;
@@ -35,18 +39,42 @@ import java.util.logging.Logger;
 @SuppressWarnings("deprecation")
 final class ClassTransformer implements Callable<dalvik.system.DexFile>, DexFile {
 
+    // How the classes are opened. In either mode, the classes are rewritten with DexRewriter and
+    // DexPool if the dex file cannot be handled.
+    /** Copying the classes with {@link DexSubsetWriter} */
+    static final int WRITE_SUBSET = 0;
+    /** Patching a copy of the whole dex file with {@link DexPatcher} */
+    static final int PATCH = 1;
+
     private final Opcodes opcodes;
-    private final File codeCacheDir;
+    private final int mode;
+    private final File sourceFile;
+    private final File outputFile;
     private final DexFileLoader dexFileLoader;
     private Set<? extends ClassDef> classes;
+    private byte[] dex;
+    private int[] classDefIndices;
+    private volatile int generatedSize;
 
-    ClassTransformer(Opcodes opcodes,
-                     Set<? extends ClassDef> classes,
-                     File codeCacheDir,
+    /**
+     * @param dex             the whole dex file containing the classes
+     * @param classDefIndices the indices of the class_defs of the classes in the dex file
+     * @param mode            {@link #WRITE_SUBSET} or {@link #PATCH}
+     */
+    ClassTransformer(byte[] dex,
+                     int[] classDefIndices,
+                     int mode,
+                     File sourceFile,
+                     File outputFile,
                      DexFileLoader dexFileLoader) {
-        this.opcodes = opcodes;
-        this.classes = classes;
-        this.codeCacheDir = codeCacheDir;
+        DexBackedDexFile dexFile = new DexBackedDexFile(null, dex);
+        this.opcodes = dexFile.getOpcodes();
+        this.classes = DexIndex.getClasses(dexFile, classDefIndices);
+        this.dex = dex;
+        this.classDefIndices = classDefIndices;
+        this.mode = mode;
+        this.sourceFile = sourceFile;
+        this.outputFile = outputFile;
         this.dexFileLoader = dexFileLoader;
     }
 
@@ -62,31 +90,108 @@ final class ClassTransformer implements Callable<dalvik.system.DexFile>, DexFile
 
     @Override
     public dalvik.system.DexFile call() throws IOException {
-        DexRewriter dexRewriter = new DexRewriter(new FinalModifierRemoverModule());
+        return load(generate());
+    }
+
+    /**
+     * Generates the dex file of the classes, and returns the task to load it, which may wait for
+     * the runtime to optimize the dex file for a long time.
+     */
+    Callable<dalvik.system.DexFile> transform() throws IOException {
+        ByteBuffer buffer = generate();
+        return () -> load(buffer);
+    }
+
+    /**
+     * Returns the size of the generated dex file in bytes, or 0 if not yet generated.
+     */
+    int getGeneratedSize() {
+        return generatedSize;
+    }
+
+    /**
+     * Returns the generated dex file if it can be loaded from memory, or null after writing it
+     * into the source file.
+     */
+    private ByteBuffer generate() throws IOException {
         try {
-            DexFile dexFile = dexRewriter.getDexFileRewriter().rewrite(this);
-            File dex = File.createTempFile("classes", ".dex", codeCacheDir);
-            dex.deleteOnExit();
-            String dexPath = dex.getCanonicalPath();
-            // The extension of the source file must be `dex`.
-            File tmp = new File(codeCacheDir, dex.getName() + ".tmp.dex");
-            String tmpPath = tmp.getCanonicalPath();
-            dalvik.system.DexFile file;
-            try {
-                DexPool.writeTo(new FileDataStore(tmp), dexFile);
-                file = dexFileLoader.loadDex(tmpPath, dexPath);
-            } finally {
-                FileUtils.delete(tmp);
+            byte[] written;
+            if (mode == PATCH) {
+                written = DexPatcher.patch(dex, classDefIndices);
+            } else {
+                written = DexSubsetWriter.write(dex, classDefIndices);
             }
-            Logger logger = Loggers.get();
-            if (logger.isLoggable(Level.FINEST)) {
-                logger.finest("Generated " + dexPath);
+            ByteBuffer buffer = written == null ? null : ByteBuffer.wrap(written);
+            // Loading the classes from memory leaves no file to be reused by the subsequent
+            // processes, so they will generate the batch again.
+            if (dexFileLoader.canLoadInMemory()) {
+                if (buffer == null) {
+                    MemoryDataStore dataStore = new MemoryDataStore();
+                    DexPool.writeTo(dataStore, rewrite());
+                    buffer = ByteBuffer.wrap(dataStore.getBuffer(), 0, dataStore.getSize());
+                }
+                generatedSize = buffer.limit();
+                return buffer;
             }
-            return file;
+            write(buffer);
+            return null;
         } finally {
             // The `classes` may hold bytecode that eats a lot of memory, so we release it here.
             classes = Collections.emptySet();
+            dex = null;
+            classDefIndices = null;
+        }
+    }
+
+    private dalvik.system.DexFile load(ByteBuffer buffer) throws IOException {
+        if (buffer != null) {
+            dalvik.system.DexFile file = dexFileLoader.loadDex(buffer);
+            if (file != null) {
+                Logger logger = Loggers.get();
+                if (logger.isLoggable(Level.FINEST)) {
+                    logger.finest("Loaded " + buffer.limit() + " bytes of dex from memory");
+                }
+                return file;
+            }
+            write(buffer);
+        }
+        String outputPath = outputFile.getCanonicalPath();
+        dalvik.system.DexFile file =
+                dexFileLoader.loadDex(sourceFile.getCanonicalPath(), outputPath);
+        Logger logger = Loggers.get();
+        if (logger.isLoggable(Level.FINEST)) {
+            logger.finest("Generated " + outputPath);
         }
+        return file;
+    }
+
+    /**
+     * Writes the given dex file, or the rewritten classes if null, into the source file.
+     */
+    private void write(ByteBuffer buffer) throws IOException {
+        // The source file is kept for the subsequent processes, so it must not be seen until it
+        // has been completely written.
+        File tmp = File.createTempFile("classes", ".tmp", sourceFile.getParentFile());
+        try {
+            if (buffer == null) {
+                FileChannelDataStore dataStore = new FileChannelDataStore(tmp);
+                DexPool.writeTo(dataStore, rewrite());
+                generatedSize = dataStore.getSize();
+            } else {
+                generatedSize = buffer.limit();
+                try (OutputStream out = new FileOutputStream(tmp)) {
+                    out.write(buffer.array(), 0, buffer.limit());
+                }
+            }
+            FileUtils.rename(tmp, sourceFile);
+        } finally {
+            FileUtils.delete(tmp);
+        }
+    }
+
+    private DexFile rewrite() {
+        DexRewriter dexRewriter = new DexRewriter(new FinalModifierRemoverModule());
+        return dexRewriter.getDexFileRewriter().rewrite(this);
     }
 
 }
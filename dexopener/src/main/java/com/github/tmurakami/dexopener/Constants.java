@@ -20,6 +20,8 @@ final class Constants {
 
     static final String MY_PACKAGE = "com.github.tmurakami.dexopener";
     static final String MY_PACKAGE_PREFIX = MY_PACKAGE + '.';
+    // This value is updated on release. See the `scmVersion` block in the root build.gradle.
+    static final String VERSION = "2.0.4";
 
     private Constants() {
         throw new AssertionError("Do not instantiate");
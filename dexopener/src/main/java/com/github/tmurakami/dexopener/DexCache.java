@@ -0,0 +1,314 @@
+/*
+ * Copyright 2016 Tsuyoshi Murakami
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.tmurakami.dexopener;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The persistent store of the class index and the generated dex files.
+ * <p>
+ * The class index records which classes are opened and which batch each of them belongs to, so
+ * that the subsequent processes do not have to scan the APK. The index is valid as long as neither
+ * the dex entries of the APK, the root package nor the mode of this cache has changed. The CRCs of
+ * the dex entries are read only if the size or the last modified time of the APK has changed, so a
+ * valid index can usually be loaded without reading the APK.
+ * <p>
+ * The generated dex files depend on the version of this library, which is recorded separately in
+ * the index. If the version has changed, the dex files are deleted but the index is kept.
+ */
+final class DexCache {
+
+    // Increment this if the format or the contents of the index have been changed, e.g. the way to
+    // split classes into batches.
+    private static final int INDEX_VERSION = 4;
+    private static final String INDEX_FILE_NAME = "index";
+
+    private final File dir;
+    private final File apk;
+    private final String rootPackage;
+    // Whether each dex entry is a single batch patched by DexPatcher
+    private final boolean patchDexEntries;
+    // Whether the classes without the final modifier are left out of the batches
+    private final boolean skipsUnopenedClasses;
+
+    DexCache(File dir,
+             File apk,
+             String rootPackage,
+             boolean patchDexEntries,
+             boolean skipsUnopenedClasses) {
+        this.dir = dir;
+        this.apk = apk;
+        this.rootPackage = rootPackage;
+        this.patchDexEntries = patchDexEntries;
+        this.skipsUnopenedClasses = skipsUnopenedClasses;
+    }
+
+    /**
+     * Returns the batches recorded by {@link #putBatches(Map, List)}, or null if there is no
+     * valid index for the APK, the root package and the mode of this cache. In the latter case,
+     * all the files in this cache are deleted.
+     */
+    List<Batch> getBatches() {
+        Index index = readIndex();
+        if (index == null) {
+            FileUtils.delete(dir.listFiles());
+            return null;
+        }
+        boolean apkChanged =
+                index.apkLength != apk.length() || index.apkLastModified != apk.lastModified();
+        if (apkChanged && !index.dexEntryCrcs.equals(readDexEntryCrcs())) {
+            FileUtils.delete(dir.listFiles());
+            return null;
+        }
+        boolean versionChanged = !index.version.equals(Constants.VERSION);
+        if (versionChanged) {
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    if (!file.getName().equals(INDEX_FILE_NAME)) {
+                        FileUtils.delete(file);
+                    }
+                }
+            }
+        }
+        if (apkChanged || versionChanged) {
+            try {
+                putBatches(index.dexEntryCrcs, index.batches);
+            } catch (IOException e) {
+                Logger logger = Loggers.get();
+                if (logger.isLoggable(Level.WARNING)) {
+                    logger.log(Level.WARNING, "Could not update the class index", e);
+                }
+            }
+        }
+        return index.batches;
+    }
+
+    /**
+     * Records the given batches as the class index of the APK.
+     *
+     * @param dexEntryCrcs the CRCs of the dex entries in the APK, keyed by the entry names
+     */
+    void putBatches(Map<String, Long> dexEntryCrcs, List<Batch> batches) throws IOException {
+        // The classes are sorted by name, so that they can be looked up by binary search.
+        int classCount = 0;
+        for (Batch batch : batches) {
+            classCount += batch.dexNames.size();
+        }
+        String[] dexNames = new String[classCount];
+        long[] locations = new long[classCount];
+        Integer[] order = new Integer[classCount];
+        for (int i = 0, j = 0, size = batches.size(); i < size; i++) {
+            Batch batch = batches.get(i);
+            for (int k = 0, n = batch.dexNames.size(); k < n; k++, j++) {
+                dexNames[j] = batch.dexNames.get(k);
+                locations[j] = (long) i << 32 | batch.classDefIndices[k] & 0xffffffffL;
+                order[j] = j;
+            }
+        }
+        Arrays.sort(order, (a, b) -> dexNames[a].compareTo(dexNames[b]));
+        File tmp = File.createTempFile(INDEX_FILE_NAME, ".tmp", dir);
+        try {
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeInt(INDEX_VERSION);
+                out.writeUTF(rootPackage);
+                out.writeBoolean(patchDexEntries);
+                out.writeBoolean(skipsUnopenedClasses);
+                out.writeLong(apk.length());
+                out.writeLong(apk.lastModified());
+                out.writeUTF(Constants.VERSION);
+                out.writeInt(dexEntryCrcs.size());
+                for (Map.Entry<String, Long> e : dexEntryCrcs.entrySet()) {
+                    out.writeUTF(e.getKey());
+                    out.writeLong(e.getValue());
+                }
+                out.writeInt(batches.size());
+                for (Batch batch : batches) {
+                    out.writeUTF(batch.entryName);
+                    out.writeInt(batch.index);
+                    out.writeLong(batch.cost);
+                    out.writeInt(batch.dexNames.size());
+                }
+                out.writeInt(classCount);
+                for (int i : order) {
+                    out.writeUTF(dexNames[i]);
+                    out.writeInt((int) (locations[i] >>> 32)); // batch
+                    out.writeInt((int) locations[i]); // class_def index
+                }
+            }
+            FileUtils.rename(tmp, new File(dir, INDEX_FILE_NAME));
+        } finally {
+            FileUtils.delete(tmp);
+        }
+    }
+
+    /**
+     * Returns the file holding the generated dex for the given batch. The file exists only if the
+     * generation has been completed.
+     */
+    File getSourceFile(Batch batch) {
+        // The extension of the source file must be `dex`.
+        return new File(dir, getBaseName(batch) + ".src.dex");
+    }
+
+    File getOutputFile(Batch batch) {
+        return new File(dir, getBaseName(batch) + ".dex");
+    }
+
+    private static String getBaseName(Batch batch) {
+        String entryName = batch.entryName;
+        // e.g. classes2-0
+        return entryName.substring(0, entryName.length() - 4) + '-' + batch.index;
+    }
+
+    private Map<String, Long> readDexEntryCrcs() {
+        try (ApkReader reader = new ApkReader(apk)) {
+            return reader.getDexEntryCrcs();
+        } catch (IOException e) {
+            Logger logger = Loggers.get();
+            if (logger.isLoggable(Level.WARNING)) {
+                logger.log(Level.WARNING, "Could not read " + apk, e);
+            }
+            return null;
+        }
+    }
+
+    private Index readIndex() {
+        File file = new File(dir, INDEX_FILE_NAME);
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != INDEX_VERSION
+                || !in.readUTF().equals(rootPackage)
+                || in.readBoolean() != patchDexEntries
+                || in.readBoolean() != skipsUnopenedClasses) {
+                return null;
+            }
+            long apkLength = in.readLong();
+            long apkLastModified = in.readLong();
+            String version = in.readUTF();
+            int dexCount = in.readInt();
+            Map<String, Long> dexEntryCrcs = new LinkedHashMap<>();
+            for (int i = 0; i < dexCount; i++) {
+                dexEntryCrcs.put(in.readUTF(), in.readLong());
+            }
+            int batchCount = in.readInt();
+            String[] entryNames = new String[batchCount];
+            int[] indices = new int[batchCount];
+            long[] costs = new long[batchCount];
+            List<List<String>> dexNameLists = new ArrayList<>(batchCount);
+            int[][] classDefIndexArrays = new int[batchCount][];
+            for (int i = 0; i < batchCount; i++) {
+                entryNames[i] = in.readUTF();
+                indices[i] = in.readInt();
+                costs[i] = in.readLong();
+                int size = in.readInt();
+                dexNameLists.add(new ArrayList<>(size));
+                classDefIndexArrays[i] = new int[size];
+            }
+            int classCount = in.readInt();
+            for (int i = 0; i < classCount; i++) {
+                String dexName = in.readUTF();
+                int batch = in.readInt();
+                int classDefIndex = in.readInt();
+                List<String> dexNames = dexNameLists.get(batch);
+                classDefIndexArrays[batch][dexNames.size()] = classDefIndex;
+                dexNames.add(dexName);
+            }
+            List<Batch> batches = new ArrayList<>(batchCount);
+            for (int i = 0; i < batchCount; i++) {
+                batches.add(new Batch(entryNames[i],
+                                      indices[i],
+                                      dexNameLists.get(i),
+                                      classDefIndexArrays[i],
+                                      costs[i]));
+            }
+            return new Index(apkLength, apkLastModified, version, dexEntryCrcs, batches);
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException | RuntimeException e) {
+            Logger logger = Loggers.get();
+            if (logger.isLoggable(Level.WARNING)) {
+                logger.log(Level.WARNING, "Could not read " + file, e);
+            }
+            return null;
+        }
+    }
+
+    private static final class Index {
+
+        final long apkLength;
+        final long apkLastModified;
+        // The version of this library that generated the dex files
+        final String version;
+        final Map<String, Long> dexEntryCrcs;
+        final List<Batch> batches;
+
+        Index(long apkLength,
+              long apkLastModified,
+              String version,
+              Map<String, Long> dexEntryCrcs,
+              List<Batch> batches) {
+            this.apkLength = apkLength;
+            this.apkLastModified = apkLastModified;
+            this.version = version;
+            this.dexEntryCrcs = dexEntryCrcs;
+            this.batches = batches;
+        }
+
+    }
+
+    static final class Batch {
+
+        final String entryName;
+        // The index of this batch in the dex entry
+        final int index;
+        final List<String> dexNames;
+        // The indices of the class_defs in the dex entry, in the same order as the dexNames
+        final int[] classDefIndices;
+        final long cost;
+
+        Batch(String entryName,
+              int index,
+              List<String> dexNames,
+              int[] classDefIndices,
+              long cost) {
+            this.entryName = entryName;
+            this.index = index;
+            this.dexNames = dexNames;
+            this.classDefIndices = classDefIndices;
+            this.cost = cost;
+        }
+
+    }
+
+}
@@ -17,10 +17,31 @@
 package com.github.tmurakami.dexopener;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 class DexFileLoader {
+
     @SuppressWarnings("deprecation")
     dalvik.system.DexFile loadDex(String sourcePathName, String outputPathName) throws IOException {
         return dalvik.system.DexFile.loadDex(sourcePathName, outputPathName, 0);
     }
+
+    /**
+     * Returns true if this loader can load a dex file from memory with
+     * {@link #loadDex(ByteBuffer)}.
+     */
+    boolean canLoadInMemory() {
+        return false;
+    }
+
+    /**
+     * Loads the dex file in the given buffer without writing it to a file, or returns null if
+     * this loader cannot load it. In the latter case, the dex file must be loaded with
+     * {@link #loadDex(String, String)}.
+     */
+    @SuppressWarnings("deprecation")
+    dalvik.system.DexFile loadDex(ByteBuffer buffer) throws IOException {
+        return null;
+    }
+
 }
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2016 Tsuyoshi Murakami
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.tmurakami.dexopener;
+
+import com.github.tmurakami.dexopener.repackaged.org.jf.dexlib2.dexbacked.DexBackedClassDef;
+import com.github.tmurakami.dexopener.repackaged.org.jf.dexlib2.dexbacked.DexBackedDexFile;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Finds the classes in a dex file by reading its class_defs directly.
+ * <p>
+ * Most of the classes in an APK are rejected by {@link ClassNameFilter}, so creating a
+ * {@link DexBackedClassDef} and decoding the type name of every class only to reject it is a
+ * waste. Instead, this class compares the MUTF-8 bytes of the type descriptors with the given
+ * prefixes, and records only the indices of the matching class_defs.
+ */
+final class DexIndex {
+
+    static final int STRING_IDS_OFF_OFFSET = 0x3c;
+    static final int TYPE_IDS_OFF_OFFSET = 0x44;
+    static final int CLASS_DEFS_SIZE_OFFSET = 0x60;
+    static final int CLASS_DEFS_OFF_OFFSET = 0x64;
+    static final int CLASS_DEF_ITEM_SIZE = 32;
+
+    private DexIndex() {
+        throw new AssertionError("Do not instantiate");
+    }
+
+    /**
+     * Returns the indices of the class_defs in the given dex file, the type descriptors of which
+     * start with one of the given prefixes.
+     *
+     * @param dex a dex file that has been validated by {@link DexBackedDexFile}
+     */
+    static int[] findClassDefs(byte[] dex, List<String> prefixes) {
+        byte[][] encodedPrefixes = new byte[prefixes.size()][];
+        for (int i = 0; i < encodedPrefixes.length; i++) {
+            encodedPrefixes[i] = toMutf8(prefixes.get(i));
+        }
+        int stringIdsOff = readInt(dex, STRING_IDS_OFF_OFFSET);
+        int typeIdsOff = readInt(dex, TYPE_IDS_OFF_OFFSET);
+        int classDefsSize = readInt(dex, CLASS_DEFS_SIZE_OFFSET);
+        int classDefsOff = readInt(dex, CLASS_DEFS_OFF_OFFSET);
+        int[] indices = new int[classDefsSize];
+        int count = 0;
+        for (int i = 0; i < classDefsSize; i++) {
+            int classIdx = readInt(dex, classDefsOff + i * CLASS_DEF_ITEM_SIZE);
+            int descriptorIdx = readInt(dex, typeIdsOff + classIdx * 4);
+            int pos = readInt(dex, stringIdsOff + descriptorIdx * 4);
+            // Skip the utf16_size in uleb128.
+            while ((dex[pos++] & 0x80) != 0) {
+                // continue
+            }
+            for (byte[] prefix : encodedPrefixes) {
+                if (startsWith(dex, pos, prefix)) {
+                    indices[count++] = i;
+                    break;
+                }
+            }
+        }
+        return Arrays.copyOf(indices, count);
+    }
+
+    /**
+     * Returns a view of the classes at the given class_def indices. The {@link DexBackedClassDef}s
+     * are created every time the view is iterated, so they are not retained by the view.
+     */
+    static Set<DexBackedClassDef> getClasses(DexBackedDexFile dexFile, int[] classDefIndices) {
+        return new AbstractSet<DexBackedClassDef>() {
+            @Override
+            public Iterator<DexBackedClassDef> iterator() {
+                List<DexBackedClassDef> classSection = dexFile.getClassSection();
+                return new Iterator<DexBackedClassDef>() {
+                    private int next;
+
+                    @Override
+                    public boolean hasNext() {
+                        return next < classDefIndices.length;
+                    }
+
+                    @Override
+                    public DexBackedClassDef next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        return classSection.get(classDefIndices[next++]);
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return classDefIndices.length;
+            }
+        };
+    }
+
+    private static boolean startsWith(byte[] dex, int pos, byte[] prefix) {
+        if (pos + prefix.length > dex.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (dex[pos + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static int readInt(byte[] dex, int offset) {
+        return (dex[offset] & 0xff)
+               | (dex[offset + 1] & 0xff) << 8
+               | (dex[offset + 2] & 0xff) << 16
+               | (dex[offset + 3] & 0xff) << 24;
+    }
+
+    private static byte[] toMutf8(String s) {
+        byte[] bytes = new byte[s.length() * 3];
+        int length = 0;
+        for (int i = 0, n = s.length(); i < n; i++) {
+            char c = s.charAt(i);
+            if (c != 0 && c < 0x80) {
+                bytes[length++] = (byte) c;
+            } else if (c < 0x800) {
+                bytes[length++] = (byte) (0xc0 | c >> 6);
+                bytes[length++] = (byte) (0x80 | c & 0x3f);
+            } else {
+                bytes[length++] = (byte) (0xe0 | c >> 12);
+                bytes[length++] = (byte) (0x80 | c >> 6 & 0x3f);
+                bytes[length++] = (byte) (0x80 | c & 0x3f);
+            }
+        }
+        return Arrays.copyOf(bytes, length);
+    }
+
+}
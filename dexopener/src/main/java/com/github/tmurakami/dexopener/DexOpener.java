@@ -18,12 +18,15 @@ package com.github.tmurakami.dexopener;
 
 import android.app.Instrumentation;
 import android.content.Context;
+import android.os.Build;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -90,16 +93,6 @@ public final class DexOpener {
             "org.junit.",
     };
 
-    private static final Executor EXECUTOR;
-
-    static {
-        final AtomicInteger count = new AtomicInteger();
-        int availableProcessors = Runtime.getRuntime().availableProcessors();
-        int nThreads = Math.max(1, Math.min(availableProcessors, 4)); // 1 to 4
-        EXECUTOR = Executors.newFixedThreadPool(
-                nThreads, r -> new Thread(r, "DexOpener #" + count.incrementAndGet()));
-    }
-
     private DexOpener() {
         throw new AssertionError("Do not instantiate");
     }
@@ -119,6 +112,30 @@ public final class DexOpener {
      * subclass.
      */
     public static void install(@NonNull Instrumentation instrumentation) {
+        builder(instrumentation).install();
+    }
+
+    /**
+     * Returns a {@link Builder} to install DexOpener with non-default options.
+     *
+     * <pre><code>
+     * DexOpener.builder(this).lazy(true).install(); // Call me first!
+     * </code></pre>
+     *
+     * @param instrumentation the {@link Instrumentation} instance of your AndroidJUnitRunner
+     *                        subclass
+     * @return a new {@link Builder}
+     */
+    @NonNull
+    public static Builder builder(@NonNull Instrumentation instrumentation) {
+        return new Builder(instrumentation);
+    }
+
+    private static Readiness install(Builder builder) {
+        if (builder.lazy && builder.prewarm) {
+            throw new IllegalStateException("Cannot prewarm lazily");
+        }
+        Instrumentation instrumentation = builder.instrumentation;
         Context context = instrumentation.getTargetContext();
         if (context == null) {
             String instrumentationName = instrumentation.getClass().getSimpleName();
@@ -136,12 +153,43 @@ public final class DexOpener {
                 throw new IllegalStateException("Already installed");
             }
         }
-        DexNameFilter dexNameFilter = createDexNameFilter(instrumentation.getClass());
-        ClassPath classPath = new ClassPath(context, dexNameFilter, new DexFileLoader(), EXECUTOR);
+        Class<?> rootClass = instrumentation.getClass();
+        String rootPackage = getRootPackage(rootClass);
+        ClassNameFilter classNameFilter = new ClassNameFilter(rootPackage, rootClass);
+        DexFileLoader dexFileLoader;
+        if (builder.loadInMemory && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            dexFileLoader = new InMemoryDexFileLoader();
+        } else {
+            dexFileLoader = new DexFileLoader();
+        }
+        ClassPath.Options options = new ClassPath.Options();
+        options.lazy = builder.lazy;
+        options.patchDexEntries = builder.patchDexEntries;
+        options.tracer = builder.trace ? new Tracer() : null;
+        Executor executor = builder.executor;
+        if (executor == null) {
+            // The threads of the load stage mostly wait for the runtime to optimize the dex
+            // files, so they have their own pool. The pools share the maximum, so that they never
+            // run more threads than it in total. With a single thread, it does both stages.
+            int maxLoadPoolSize = builder.maxPoolSize / 2;
+            int maxPoolSize = builder.maxPoolSize - maxLoadPoolSize;
+            int minPoolSize = Math.min(builder.minPoolSize, maxPoolSize);
+            executor = new AdaptiveExecutor("DexOpener", minPoolSize, maxPoolSize);
+            if (maxLoadPoolSize > 0) {
+                options.loadExecutor =
+                        new AdaptiveExecutor("DexOpener loader", 1, maxLoadPoolSize);
+            }
+        }
+        ClassPath classPath = new ClassPath(
+                context, rootPackage, classNameFilter, dexFileLoader, executor, options);
         ClassLoaderHelper.setParent(loader, new ClassInjector(loader, classPath));
+        if (builder.prewarm) {
+            classPath.prewarm();
+        }
+        return new Readiness(classPath);
     }
 
-    private static DexNameFilter createDexNameFilter(Class<?> rootClass) {
+    private static String getRootPackage(Class<?> rootClass) {
         String className = rootClass.getName();
         int lastDotPos = className.lastIndexOf('.');
         String packageName = lastDotPos == -1 ? null : className.substring(0, lastDotPos);
@@ -150,7 +198,7 @@ public final class DexOpener {
             if (logger.isLoggable(Level.FINEST)) {
                 logger.finest("The final classes under " + packageName + " will be opened");
             }
-            return new DexNameFilter(packageName, rootClass);
+            return packageName;
         }
         throw new UnsupportedOperationException(
                 "Install to an Instrumentation instance the package of which is " + packageName);
@@ -168,4 +216,436 @@ public final class DexOpener {
         return true;
     }
 
+    /**
+     * A builder to install DexOpener with non-default options.
+     *
+     * @see DexOpener#builder(Instrumentation)
+     */
+    public static final class Builder {
+
+        private final Instrumentation instrumentation;
+        private boolean lazy;
+        private boolean patchDexEntries;
+        private boolean loadInMemory;
+        private Executor executor;
+        private int minPoolSize = 1;
+        private int maxPoolSize = Runtime.getRuntime().availableProcessors();
+        private boolean prewarm;
+        private boolean trace;
+
+        private Builder(Instrumentation instrumentation) {
+            this.instrumentation = instrumentation;
+        }
+
+        /**
+         * Sets whether the final classes are opened on demand. If true, DexOpener only plans how
+         * to split your classes into batches until one of them is requested, and then opens only
+         * the batch containing that class. This is suitable for running a few tests, such as a
+         * single test or a shard. Otherwise, all batches are opened in the background as soon as
+         * the first class is requested. In lazy mode, the final classes cannot be awaited with
+         * {@link Readiness#await()}. The default is false.
+         *
+         * @param lazy true to open the final classes on demand
+         * @return this builder
+         */
+        @NonNull
+        public Builder lazy(boolean lazy) {
+            this.lazy = lazy;
+            return this;
+        }
+
+        /**
+         * Sets whether each dex file of your app is opened by patching the access flags in a copy
+         * of the whole file, instead of rewriting your final classes into batches. Patching is
+         * much faster than rewriting, but each dex file is opened as a single batch, so it is
+         * suitable for running all tests of an app with a few dex files. If a dex file cannot be
+         * patched, its classes are rewritten as usual. The default is false.
+         *
+         * @param patchDexEntries true to patch the dex files
+         * @return this builder
+         */
+        @NonNull
+        public Builder patchDexEntries(boolean patchDexEntries) {
+            this.patchDexEntries = patchDexEntries;
+            return this;
+        }
+
+        /**
+         * Sets whether the opened classes are loaded from memory on Android 8.0 (API 26) and
+         * above, without writing any dex file. This saves the file I/O on slow storage, but the
+         * classes are opened again in every process, since nothing is cached for the subsequent
+         * processes. This option is ignored on older versions of Android. The default is false.
+         *
+         * @param loadInMemory true to load the opened classes from memory
+         * @return this builder
+         */
+        @NonNull
+        public Builder loadInMemory(boolean loadInMemory) {
+            this.loadInMemory = loadInMemory;
+            return this;
+        }
+
+        /**
+         * Sets the {@link Executor} to open the final classes in the background. By default,
+         * DexOpener uses its own pools of daemon threads, which go away when they have been idle
+         * for a while: one to generate the dex files, and the other to wait for them to be
+         * loaded. The given {@link Executor} does both for each batch of classes in a row.
+         *
+         * @param executor the {@link Executor} to open the final classes, or null to use the
+         *                 default pool
+         * @return this builder
+         * @see #poolSize(int, int)
+         */
+        @NonNull
+        public Builder executor(@Nullable Executor executor) {
+            this.executor = executor;
+            return this;
+        }
+
+        /**
+         * Sets the bounds of the number of threads of the default pools. The pools measure how
+         * fast your final classes are opened, and add or remove a thread at a time within these
+         * bounds. The maximum is split between the pool to generate the dex files and the one to
+         * load them, so the number of threads in total never exceeds it. The default is from 1
+         * to the number of the available processors. This option is ignored if an
+         * {@link Executor} is set with {@link #executor(Executor)}.
+         *
+         * @param minPoolSize the minimum number of threads, which must be positive
+         * @param maxPoolSize the maximum number of threads, which must not be less than the
+         *                    minimum
+         * @return this builder
+         * @throws IllegalArgumentException if the bounds are invalid
+         */
+        @NonNull
+        public Builder poolSize(int minPoolSize, int maxPoolSize) {
+            if (minPoolSize < 1 || maxPoolSize < minPoolSize) {
+                throw new IllegalArgumentException(
+                        "Invalid pool size bounds: " + minPoolSize + ", " + maxPoolSize);
+            }
+            this.minPoolSize = minPoolSize;
+            this.maxPoolSize = maxPoolSize;
+            return this;
+        }
+
+        /**
+         * Sets whether DexOpener starts opening the final classes in the background as soon as
+         * it is installed. By default, DexOpener starts when one of them is first loaded, which
+         * is usually your Application class on the main thread. You can wait for the final
+         * classes to be opened with the {@link Readiness} returned by {@link #install()}. This
+         * option cannot be used together with {@link #lazy(boolean)}. The default is false.
+         *
+         * @param prewarm true to start opening the final classes on installation
+         * @return this builder
+         */
+        @NonNull
+        public Builder prewarm(boolean prewarm) {
+            this.prewarm = prewarm;
+            return this;
+        }
+
+        /**
+         * Sets whether DexOpener records when and in which thread each stage of opening the
+         * final classes takes place, such as reading your dex files, transforming and loading
+         * each batch, and waiting for a batch to load a class. You can write the recorded events
+         * with {@link Readiness#writeTrace(File)}, and view them in Perfetto. The default is
+         * false.
+         *
+         * @param trace true to record the trace events
+         * @return this builder
+         */
+        @NonNull
+        public Builder trace(boolean trace) {
+            this.trace = trace;
+            return this;
+        }
+
+        /**
+         * Provides the ability to mock your final classes with the options of this builder.
+         *
+         * @return the {@link Readiness} of the final classes
+         * @throws IllegalStateException         if DexOpener is installed twice or is installed in
+         *                                       an inappropriate location, or if both
+         *                                       {@link #lazy(boolean)} and
+         *                                       {@link #prewarm(boolean)} are enabled
+         * @throws UnsupportedOperationException if the {@link Instrumentation} instance belongs to
+         *                                       a special package such as 'android'
+         * @apiNote This method must be called first on the
+         * {@link Instrumentation#newApplication(ClassLoader, String, Context)
+         * newApplication(ClassLoader, String, Context)} method overridden in your
+         * AndroidJUnitRunner subclass.
+         * @see DexOpener#install(Instrumentation)
+         */
+        @NonNull
+        public Readiness install() {
+            return DexOpener.install(this);
+        }
+
+    }
+
+    /**
+     * The progress of opening the final classes, which are opened in batches. You can wait for
+     * all of them to be opened before running your tests, for example in an IdlingResource.
+     *
+     * @see Builder#install()
+     * @see Builder#prewarm(boolean)
+     */
+    public static final class Readiness {
+
+        private final ClassPath classPath;
+
+        private Readiness(ClassPath classPath) {
+            this.classPath = classPath;
+        }
+
+        /**
+         * Returns the number of the batches of the final classes, or -1 if DexOpener has not yet
+         * planned them.
+         *
+         * @return the number of the batches
+         */
+        public int getBatchCount() {
+            return classPath.getBatchCount();
+        }
+
+        /**
+         * Returns the number of the batches that have been opened, excluding the ones that could
+         * not be opened.
+         *
+         * @return the number of the opened batches
+         */
+        public int getOpenedBatchCount() {
+            return classPath.getCompletedBatchCount();
+        }
+
+        /**
+         * Returns whether all the final classes have been opened. In lazy mode, this returns
+         * true only after all the batches have been requested.
+         *
+         * @return true if all the final classes have been opened
+         * @throws RuntimeException if some final classes could not be opened
+         */
+        public boolean isReady() {
+            return classPath.isReady();
+        }
+
+        /**
+         * Waits until all the final classes have been opened.
+         *
+         * @throws InterruptedException  if the current thread is interrupted while waiting
+         * @throws IllegalStateException if the final classes are opened on demand with
+         *                               {@link Builder#lazy(boolean)}, since some of them might
+         *                               never be requested
+         * @throws RuntimeException      if some final classes could not be opened
+         */
+        public void await() throws InterruptedException {
+            classPath.awaitBatches(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * Waits until all the final classes have been opened, or the given timeout elapses.
+         *
+         * @param timeout the maximum time to wait
+         * @param unit    the unit of the timeout
+         * @return false if the timeout elapsed before all the final classes were opened
+         * @throws InterruptedException  if the current thread is interrupted while waiting
+         * @throws IllegalStateException if the final classes are opened on demand with
+         *                               {@link Builder#lazy(boolean)}
+         * @throws RuntimeException      if some final classes could not be opened
+         */
+        public boolean await(long timeout, @NonNull TimeUnit unit) throws InterruptedException {
+            return classPath.awaitBatches(timeout, unit);
+        }
+
+        /**
+         * Returns a snapshot of the statistics of opening the final classes so far.
+         *
+         * @return the statistics
+         */
+        @NonNull
+        public Statistics getStatistics() {
+            return new Statistics(classPath.getStats(), getBatchCount());
+        }
+
+        /**
+         * Writes the events recorded so far into the given file in the Chrome trace event
+         * format, which can be opened in Perfetto or chrome://tracing.
+         *
+         * @param file the file to write into, such as one in the test output directory
+         * @throws IOException           if the file cannot be written
+         * @throws IllegalStateException if the tracing is not enabled with
+         *                               {@link Builder#trace(boolean)}
+         */
+        public void writeTrace(@NonNull File file) throws IOException {
+            Tracer tracer = classPath.getTracer();
+            if (tracer == null) {
+                throw new IllegalStateException("Tracing is not enabled");
+            }
+            tracer.write(file);
+        }
+
+    }
+
+    /**
+     * A snapshot of the statistics of opening the final classes, which are always recorded and
+     * cheap enough to be left enabled, for example to compare the runs of your tests on CI.
+     *
+     * @see Readiness#getStatistics()
+     */
+    public static final class Statistics {
+
+        /**
+         * The stages of opening the final classes, each of which has its own latencies.
+         */
+        public enum Stage {
+            /** Reading a dex file from the APK */
+            READ(Stats.READ),
+            /** Scanning a dex file to split its final classes into batches */
+            SCAN(Stats.SCAN),
+            /** Generating the dex file of a batch */
+            TRANSFORM(Stats.TRANSFORM),
+            /** Loading the dex file of a batch, which includes the optimization by the runtime */
+            LOAD(Stats.LOAD),
+            /** Blocking a thread loading one of the final classes until its batch is opened */
+            WAIT(Stats.WAIT);
+
+            private final int id;
+
+            Stage(int id) {
+                this.id = id;
+            }
+        }
+
+        private final int batchCount;
+        private final long[] counters = new long[Stats.COUNTER_COUNT];
+        private final long[] counts = new long[Stats.STAGE_COUNT];
+        private final long[] totalNanos = new long[Stats.STAGE_COUNT];
+        private final long[][] histograms = new long[Stats.STAGE_COUNT][];
+
+        Statistics(Stats stats, int batchCount) {
+            this.batchCount = batchCount;
+            for (int i = 0; i < Stats.COUNTER_COUNT; i++) {
+                counters[i] = stats.get(i);
+            }
+            for (int i = 0; i < Stats.STAGE_COUNT; i++) {
+                counts[i] = stats.getCount(i);
+                totalNanos[i] = stats.getTotalNanos(i);
+                histograms[i] = stats.getHistogram(i);
+            }
+        }
+
+        /**
+         * Returns the number of the classes in the scanned dex files.
+         *
+         * @return the number of the scanned classes
+         */
+        public long getScannedClassCount() {
+            return counters[Stats.SCANNED_CLASSES];
+        }
+
+        /**
+         * Returns the number of the final classes to be opened in the scanned dex files.
+         *
+         * @return the number of the accepted classes
+         */
+        public long getAcceptedClassCount() {
+            return counters[Stats.ACCEPTED_CLASSES];
+        }
+
+        /**
+         * Returns the number of the batches of the final classes, or -1 if DexOpener has not yet
+         * planned them.
+         *
+         * @return the number of the batches
+         */
+        public int getBatchCount() {
+            return batchCount;
+        }
+
+        /**
+         * Returns the number of the batches that have been loaded from the files generated by
+         * the previous processes.
+         *
+         * @return the number of the cache hits
+         */
+        public long getCacheHitCount() {
+            return counters[Stats.CACHE_HITS];
+        }
+
+        /**
+         * Returns the number of the bytes of the dex files read from the APK.
+         *
+         * @return the number of the bytes read
+         */
+        public long getBytesRead() {
+            return counters[Stats.BYTES_READ];
+        }
+
+        /**
+         * Returns the number of the bytes of the generated dex files.
+         *
+         * @return the number of the bytes written
+         */
+        public long getBytesWritten() {
+            return counters[Stats.BYTES_WRITTEN];
+        }
+
+        /**
+         * Returns how many times the given stage has completed.
+         *
+         * @param stage the stage
+         * @return the number of the completions
+         */
+        public long getCount(@NonNull Stage stage) {
+            return counts[stage.id];
+        }
+
+        /**
+         * Returns the total time spent in the given stage, summed over all threads.
+         *
+         * @param stage the stage
+         * @param unit  the unit of the result
+         * @return the total time
+         */
+        public long getTotalTime(@NonNull Stage stage, @NonNull TimeUnit unit) {
+            return unit.convert(totalNanos[stage.id], TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * Returns the estimated latency of the given stage at the given percentile, which is
+         * rounded up by less than 25%.
+         *
+         * @param stage      the stage
+         * @param percentile the percentile from 0 to 100
+         * @param unit       the unit of the result
+         * @return the latency, or 0 if the stage has never completed
+         * @throws IllegalArgumentException if the percentile is out of range
+         */
+        public long getLatency(@NonNull Stage stage, double percentile, @NonNull TimeUnit unit) {
+            if (!(percentile >= 0 && percentile <= 100)) {
+                throw new IllegalArgumentException("percentile must be from 0 to 100");
+            }
+            long nanos = Stats.getPercentile(histograms[stage.id], percentile);
+            return unit.convert(nanos, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("Statistics{classes=")
+                    .append(getAcceptedClassCount()).append('/').append(getScannedClassCount())
+                    .append(", batches=").append(batchCount)
+                    .append(", cacheHits=").append(getCacheHitCount())
+                    .append(", bytesRead=").append(getBytesRead())
+                    .append(", bytesWritten=").append(getBytesWritten());
+            for (Stage stage : Stage.values()) {
+                sb.append(", ").append(stage).append("={count=").append(getCount(stage))
+                  .append(", totalMs=").append(getTotalTime(stage, TimeUnit.MILLISECONDS))
+                  .append(", p50Ms=").append(getLatency(stage, 50, TimeUnit.MILLISECONDS))
+                  .append(", p99Ms=").append(getLatency(stage, 99, TimeUnit.MILLISECONDS))
+                  .append('}');
+            }
+            return sb.append('}').toString();
+        }
+
+    }
+
 }
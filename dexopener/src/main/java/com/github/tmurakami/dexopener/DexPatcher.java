@@ -0,0 +1,287 @@
+/*
+ * Copyright 2016 Tsuyoshi Murakami
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.tmurakami.dexopener;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.zip.Adler32;
+
+import static com.github.tmurakami.dexopener.DexIndex.CLASS_DEFS_OFF_OFFSET;
+import static com.github.tmurakami.dexopener.DexIndex.CLASS_DEFS_SIZE_OFFSET;
+import static com.github.tmurakami.dexopener.DexIndex.CLASS_DEF_ITEM_SIZE;
+import static com.github.tmurakami.dexopener.DexIndex.STRING_IDS_OFF_OFFSET;
+import static com.github.tmurakami.dexopener.DexIndex.TYPE_IDS_OFF_OFFSET;
+import static com.github.tmurakami.dexopener.DexIndex.readInt;
+
+/**
+ * Opens the classes in a dex file by patching a copy of the whole file.
+ * <p>
+ * Unlike {@link FinalModifierRemoverModule}, with which DexPool rebuilds every item of the classes
+ * only to clear a bit, this class clears the FINAL bit directly in the access_flags of the
+ * class_defs, in those of the encoded_methods in their class_data, and in the accessFlags of their
+ * InnerClass annotations. None of them changes the size of the encoded value, so the rest of the
+ * file is copied as it is, and then the checksum and the signature are recomputed.
+ */
+final class DexPatcher {
+
+    private static final int CHECKSUM_OFFSET = 0x08;
+    private static final int SIGNATURE_OFFSET = 0x0c;
+    private static final int SIGNATURE_END = 0x20;
+    private static final int ENDIAN_TAG_OFFSET = 0x28;
+    private static final int ENDIAN_CONSTANT = 0x12345678;
+    private static final int CLASS_DEF_ACCESS_FLAGS = 4;
+    private static final int CLASS_DEF_ANNOTATIONS_OFF = 20;
+    private static final int CLASS_DEF_CLASS_DATA_OFF = 24;
+    private static final int ACC_FINAL = 0x10;
+    private static final int VALUE_INT = 0x04;
+    private static final int VALUE_ARRAY = 0x1c;
+    private static final int VALUE_ANNOTATION = 0x1d;
+    private static final int VALUE_NULL = 0x1e;
+    private static final int VALUE_BOOLEAN = 0x1f;
+    // ASCII, which is the same in MUTF-8
+    static final byte[] INNER_CLASS = ascii("Ldalvik/annotation/InnerClass;");
+    static final byte[] ACCESS_FLAGS = ascii("accessFlags");
+
+    private final byte[] dex;
+    private final int stringIdsOff;
+    private final int typeIdsOff;
+    private int pos;
+
+    private DexPatcher(byte[] dex) {
+        this.dex = dex;
+        this.stringIdsOff = readInt(dex, STRING_IDS_OFF_OFFSET);
+        this.typeIdsOff = readInt(dex, TYPE_IDS_OFF_OFFSET);
+    }
+
+    /**
+     * Returns a copy of the given dex file in which the classes at the given class_def indices
+     * are opened, or null if the file cannot be patched. In the latter case, the classes must be
+     * opened by {@link FinalModifierRemoverModule}.
+     *
+     * @param dex a dex file that has been validated by DexBackedDexFile
+     */
+    static byte[] patch(byte[] dex, int[] classDefIndices) {
+        if (readInt(dex, ENDIAN_TAG_OFFSET) != ENDIAN_CONSTANT) {
+            return null;
+        }
+        byte[] copy = dex.clone();
+        try {
+            if (!new DexPatcher(copy).patch(classDefIndices)) {
+                return null;
+            }
+        } catch (IndexOutOfBoundsException e) {
+            return null;
+        }
+        updateSignatureAndChecksum(copy);
+        return copy;
+    }
+
+    private boolean patch(int[] classDefIndices) {
+        int classDefsSize = readInt(dex, CLASS_DEFS_SIZE_OFFSET);
+        int classDefsOff = readInt(dex, CLASS_DEFS_OFF_OFFSET);
+        boolean[] patched = new boolean[classDefsSize];
+        // The offsets of the values of the InnerClass annotations to be patched, and those of
+        // their annotation_items
+        int[] values = new int[classDefIndices.length];
+        int[] annotations = new int[classDefIndices.length];
+        int annotationCount = 0;
+        for (int index : classDefIndices) {
+            patched[index] = true;
+            int classDef = classDefsOff + index * CLASS_DEF_ITEM_SIZE;
+            dex[classDef + CLASS_DEF_ACCESS_FLAGS] &= ~ACC_FINAL;
+            int classDataOff = readInt(dex, classDef + CLASS_DEF_CLASS_DATA_OFF);
+            if (classDataOff != 0) {
+                patchMethods(classDataOff);
+            }
+            int annotation = findInnerClassAnnotation(classDef);
+            if (annotation != 0) {
+                int value = findAccessFlagsValue(annotation);
+                if (value == -1) {
+                    // Not an int
+                    return false;
+                }
+                if (value != 0 && (dex[value + 1] & ACC_FINAL) != 0) {
+                    values[annotationCount] = value;
+                    annotations[annotationCount] = annotation;
+                    annotationCount++;
+                }
+            }
+        }
+        if (annotationCount > 0) {
+            // An annotation_item may be shared by several classes, in which case it must not be
+            // patched unless all of them are patched.
+            int[] sorted = Arrays.copyOf(annotations, annotationCount);
+            Arrays.sort(sorted);
+            for (int i = 0; i < classDefsSize; i++) {
+                if (!patched[i]) {
+                    int annotation =
+                            findInnerClassAnnotation(classDefsOff + i * CLASS_DEF_ITEM_SIZE);
+                    if (annotation != 0 && Arrays.binarySearch(sorted, annotation) >= 0) {
+                        return false;
+                    }
+                }
+            }
+            for (int i = 0; i < annotationCount; i++) {
+                // The least significant byte of the value follows its header.
+                dex[values[i] + 1] &= ~ACC_FINAL;
+            }
+        }
+        return true;
+    }
+
+    private void patchMethods(int classDataOff) {
+        pos = classDataOff;
+        int fieldCount = readUleb128() + readUleb128();
+        int methodCount = readUleb128() + readUleb128();
+        for (int i = 0; i < fieldCount; i++) {
+            readUleb128(); // field_idx_diff
+            readUleb128(); // access_flags
+        }
+        for (int i = 0; i < methodCount; i++) {
+            readUleb128(); // method_idx_diff
+            // The FINAL bit is in the first byte of the uleb128.
+            dex[pos] &= ~ACC_FINAL;
+            readUleb128(); // access_flags
+            readUleb128(); // code_off
+        }
+    }
+
+    /**
+     * Returns the offset of the InnerClass annotation_item of the given class, or 0 if not found.
+     */
+    private int findInnerClassAnnotation(int classDef) {
+        int annotationsOff = readInt(dex, classDef + CLASS_DEF_ANNOTATIONS_OFF);
+        if (annotationsOff == 0) {
+            return 0;
+        }
+        int classAnnotationsOff = readInt(dex, annotationsOff);
+        if (classAnnotationsOff == 0) {
+            return 0;
+        }
+        int size = readInt(dex, classAnnotationsOff);
+        for (int i = 0; i < size; i++) {
+            int annotation = readInt(dex, classAnnotationsOff + 4 + i * 4);
+            pos = annotation + 1; // visibility
+            int typeIdx = readUleb128();
+            int descriptorIdx = readInt(dex, typeIdsOff + typeIdx * 4);
+            if (stringEquals(dex, stringIdsOff, descriptorIdx, INNER_CLASS)) {
+                return annotation;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the offset of the accessFlags value in the given annotation_item, 0 if not found, or
+     * -1 if it is not an int.
+     */
+    private int findAccessFlagsValue(int annotation) {
+        pos = annotation + 1; // visibility
+        readUleb128(); // type_idx
+        int size = readUleb128();
+        for (int i = 0; i < size; i++) {
+            int nameIdx = readUleb128();
+            if (stringEquals(dex, stringIdsOff, nameIdx, ACCESS_FLAGS)) {
+                return (dex[pos] & 0x1f) == VALUE_INT ? pos : -1;
+            }
+            skipEncodedValue();
+        }
+        return 0;
+    }
+
+    private void skipEncodedValue() {
+        int header = dex[pos++] & 0xff;
+        int valueType = header & 0x1f;
+        switch (valueType) {
+            case VALUE_ARRAY:
+                for (int i = 0, size = readUleb128(); i < size; i++) {
+                    skipEncodedValue();
+                }
+                break;
+            case VALUE_ANNOTATION:
+                readUleb128(); // type_idx
+                for (int i = 0, size = readUleb128(); i < size; i++) {
+                    readUleb128(); // name_idx
+                    skipEncodedValue();
+                }
+                break;
+            case VALUE_NULL:
+            case VALUE_BOOLEAN:
+                break;
+            default:
+                pos += (header >> 5) + 1;
+                break;
+        }
+    }
+
+    /**
+     * Returns true if the given string in the given dex file is equal to the given ASCII string.
+     */
+    static boolean stringEquals(byte[] dex, int stringIdsOff, int stringIdx, byte[] expected) {
+        int dataOff = readInt(dex, stringIdsOff + stringIdx * 4);
+        // Skip the utf16_size.
+        while (dex[dataOff++] < 0) {
+            // Continue
+        }
+        int length = expected.length;
+        for (int i = 0; i < length; i++) {
+            if (dex[dataOff + i] != expected[i]) {
+                return false;
+            }
+        }
+        return dex[dataOff + length] == 0;
+    }
+
+    private int readUleb128() {
+        int result = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = dex[pos++];
+            result |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+    }
+
+    static void updateSignatureAndChecksum(byte[] dex) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        digest.update(dex, SIGNATURE_END, dex.length - SIGNATURE_END);
+        byte[] signature = digest.digest();
+        System.arraycopy(signature, 0, dex, SIGNATURE_OFFSET, signature.length);
+        Adler32 adler32 = new Adler32();
+        adler32.update(dex, SIGNATURE_OFFSET, dex.length - SIGNATURE_OFFSET);
+        int checksum = (int) adler32.getValue();
+        for (int i = 0; i < 4; i++) {
+            dex[CHECKSUM_OFFSET + i] = (byte) (checksum >> i * 8);
+        }
+    }
+
+    private static byte[] ascii(String s) {
+        byte[] bytes = new byte[s.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) s.charAt(i);
+        }
+        return bytes;
+    }
+
+}
@@ -0,0 +1,990 @@
+/*
+ * Copyright 2016 Tsuyoshi Murakami
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.tmurakami.dexopener;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static com.github.tmurakami.dexopener.DexIndex.CLASS_DEFS_OFF_OFFSET;
+import static com.github.tmurakami.dexopener.DexIndex.CLASS_DEFS_SIZE_OFFSET;
+import static com.github.tmurakami.dexopener.DexIndex.CLASS_DEF_ITEM_SIZE;
+import static com.github.tmurakami.dexopener.DexIndex.readInt;
+
+/**
+ * Writes the given classes of a dex file into a new dex file, opening them in the same way as
+ * {@link FinalModifierRemoverModule}.
+ * <p>
+ * DexPool decodes and re-encodes every instruction of every method, which dominates the time to
+ * generate a batch of large classes. This class instead copies the code_items as they are, and
+ * only replaces the string, type, field and method indices in them. Since the ids of the new file
+ * are the ids used by the classes, kept in the original order, the indices are mapped
+ * monotonically and the ids remain sorted as the format requires. The data items that contain
+ * variable-length indices, such as the class_data and the annotations, are re-encoded.
+ */
+final class DexSubsetWriter {
+
+    private static final int HEADER_SIZE = 0x70;
+    private static final int MAGIC_SIZE = 8;
+    private static final int FILE_SIZE_OFFSET = 0x20;
+    private static final int HEADER_SIZE_OFFSET = 0x24;
+    private static final int ENDIAN_TAG_OFFSET = 0x28;
+    private static final int MAP_OFF_OFFSET = 0x34;
+    // The sizes and the offsets of the string_ids, type_ids, proto_ids, field_ids and method_ids
+    // start from here.
+    private static final int STRING_IDS_SIZE_OFFSET = 0x38;
+    private static final int DATA_SIZE_OFFSET = 0x68;
+    private static final int ENDIAN_CONSTANT = 0x12345678;
+    private static final int NO_INDEX = -1;
+    private static final int ACC_FINAL = 0x10;
+
+    private static final int TYPE_HEADER_ITEM = 0x0000;
+    private static final int TYPE_STRING_ID_ITEM = 0x0001;
+    private static final int TYPE_TYPE_ID_ITEM = 0x0002;
+    private static final int TYPE_PROTO_ID_ITEM = 0x0003;
+    private static final int TYPE_FIELD_ID_ITEM = 0x0004;
+    private static final int TYPE_METHOD_ID_ITEM = 0x0005;
+    private static final int TYPE_CLASS_DEF_ITEM = 0x0006;
+    private static final int TYPE_MAP_LIST = 0x1000;
+    private static final int TYPE_TYPE_LIST = 0x1001;
+    private static final int TYPE_ANNOTATION_SET_REF_LIST = 0x1002;
+    private static final int TYPE_ANNOTATION_SET_ITEM = 0x1003;
+    private static final int TYPE_CLASS_DATA_ITEM = 0x2000;
+    private static final int TYPE_CODE_ITEM = 0x2001;
+    private static final int TYPE_STRING_DATA_ITEM = 0x2002;
+    private static final int TYPE_DEBUG_INFO_ITEM = 0x2003;
+    private static final int TYPE_ANNOTATION_ITEM = 0x2004;
+    private static final int TYPE_ENCODED_ARRAY_ITEM = 0x2005;
+    private static final int TYPE_ANNOTATIONS_DIRECTORY_ITEM = 0x2006;
+    private static final int TYPE_HIDDENAPI_CLASS_DATA_ITEM = 0xf000;
+
+    private static final int VALUE_BYTE = 0x00;
+    private static final int VALUE_SHORT = 0x02;
+    private static final int VALUE_CHAR = 0x03;
+    private static final int VALUE_INT = 0x04;
+    private static final int VALUE_LONG = 0x06;
+    private static final int VALUE_FLOAT = 0x10;
+    private static final int VALUE_DOUBLE = 0x11;
+    private static final int VALUE_STRING = 0x17;
+    private static final int VALUE_TYPE = 0x18;
+    private static final int VALUE_FIELD = 0x19;
+    private static final int VALUE_METHOD = 0x1a;
+    private static final int VALUE_ENUM = 0x1b;
+    private static final int VALUE_ARRAY = 0x1c;
+    private static final int VALUE_ANNOTATION = 0x1d;
+    private static final int VALUE_NULL = 0x1e;
+    private static final int VALUE_BOOLEAN = 0x1f;
+
+    private static final int DBG_END_SEQUENCE = 0x00;
+    private static final int DBG_ADVANCE_PC = 0x01;
+    private static final int DBG_ADVANCE_LINE = 0x02;
+    private static final int DBG_START_LOCAL = 0x03;
+    private static final int DBG_START_LOCAL_EXTENDED = 0x04;
+    private static final int DBG_END_LOCAL = 0x05;
+    private static final int DBG_RESTART_LOCAL = 0x06;
+    private static final int DBG_SET_FILE = 0x09;
+
+    private static final int PACKED_SWITCH_PAYLOAD = 0x0100;
+    private static final int SPARSE_SWITCH_PAYLOAD = 0x0200;
+    private static final int FILL_ARRAY_DATA_PAYLOAD = 0x0300;
+    private static final int CONST_STRING_JUMBO = 0x1b;
+
+    // The kinds of the indices
+    private static final int NONE = 0;
+    private static final int STRING = 1;
+    private static final int TYPE = 2;
+    private static final int PROTO = 3;
+    private static final int FIELD = 4;
+    private static final int METHOD = 5;
+
+    // The sizes of the instructions in code units, and the kinds of the indices they have, indexed
+    // by the opcodes. The size is 0 for the unused opcodes and for those that refer to the items
+    // not supported by this class, such as call sites and method handles.
+    private static final byte[] INSTRUCTION_SIZES = new byte[256];
+    private static final byte[] INDEX_KINDS = new byte[256];
+
+    static {
+        defineInstructions(0x00, 0x01, 1, NONE); // nop, move
+        defineInstructions(0x02, 0x02, 2, NONE); // move/from16
+        defineInstructions(0x03, 0x03, 3, NONE); // move/16
+        defineInstructions(0x04, 0x04, 1, NONE); // move-wide
+        defineInstructions(0x05, 0x05, 2, NONE); // move-wide/from16
+        defineInstructions(0x06, 0x06, 3, NONE); // move-wide/16
+        defineInstructions(0x07, 0x07, 1, NONE); // move-object
+        defineInstructions(0x08, 0x08, 2, NONE); // move-object/from16
+        defineInstructions(0x09, 0x09, 3, NONE); // move-object/16
+        defineInstructions(0x0a, 0x12, 1, NONE); // move-result ... return-object, const/4
+        defineInstructions(0x13, 0x13, 2, NONE); // const/16
+        defineInstructions(0x14, 0x14, 3, NONE); // const
+        defineInstructions(0x15, 0x16, 2, NONE); // const/high16, const-wide/16
+        defineInstructions(0x17, 0x17, 3, NONE); // const-wide/32
+        defineInstructions(0x18, 0x18, 5, NONE); // const-wide
+        defineInstructions(0x19, 0x19, 2, NONE); // const-wide/high16
+        defineInstructions(0x1a, 0x1a, 2, STRING); // const-string
+        defineInstructions(0x1b, 0x1b, 3, STRING); // const-string/jumbo
+        defineInstructions(0x1c, 0x1c, 2, TYPE); // const-class
+        defineInstructions(0x1d, 0x1e, 1, NONE); // monitor-enter, monitor-exit
+        defineInstructions(0x1f, 0x20, 2, TYPE); // check-cast, instance-of
+        defineInstructions(0x21, 0x21, 1, NONE); // array-length
+        defineInstructions(0x22, 0x23, 2, TYPE); // new-instance, new-array
+        defineInstructions(0x24, 0x25, 3, TYPE); // filled-new-array(/range)
+        defineInstructions(0x26, 0x26, 3, NONE); // fill-array-data
+        defineInstructions(0x27, 0x28, 1, NONE); // throw, goto
+        defineInstructions(0x29, 0x29, 2, NONE); // goto/16
+        defineInstructions(0x2a, 0x2c, 3, NONE); // goto/32, packed-switch, sparse-switch
+        defineInstructions(0x2d, 0x3d, 2, NONE); // cmpkind, if-test, if-testz
+        defineInstructions(0x44, 0x51, 2, NONE); // arrayop
+        defineInstructions(0x52, 0x6d, 2, FIELD); // iinstanceop, sstaticop
+        defineInstructions(0x6e, 0x72, 3, METHOD); // invoke-kind
+        defineInstructions(0x74, 0x78, 3, METHOD); // invoke-kind/range
+        defineInstructions(0x7b, 0x8f, 1, NONE); // unop
+        defineInstructions(0x90, 0xaf, 2, NONE); // binop
+        defineInstructions(0xb0, 0xcf, 1, NONE); // binop/2addr
+        defineInstructions(0xd0, 0xe2, 2, NONE); // binop/lit16, binop/lit8
+    }
+
+    // The sizes of the id items, indexed by the kinds
+    private static final int[] ID_ITEM_SIZES = {0, 4, 4, 12, 8, 8};
+    private static final int[] ID_ITEM_TYPES = {
+            0,
+            TYPE_STRING_ID_ITEM,
+            TYPE_TYPE_ID_ITEM,
+            TYPE_PROTO_ID_ITEM,
+            TYPE_FIELD_ID_ITEM,
+            TYPE_METHOD_ID_ITEM,
+    };
+
+    private final byte[] dex;
+    // The offsets of the ids, indexed by the kinds
+    private final int[] idsOffs = new int[METHOD + 1];
+    // Whether each id is used by the classes, indexed by the kinds
+    private final boolean[][] used = new boolean[METHOD + 1][];
+    // The new index of each id, or -1 if not used, indexed by the kinds
+    private final int[][] indexMaps = new int[METHOD + 1][];
+    // The data items used by the classes, except the string_data_items
+    private final Section typeLists = new Section(TYPE_TYPE_LIST, 4);
+    private final Section encodedArrays = new Section(TYPE_ENCODED_ARRAY_ITEM, 1);
+    private final Section annotations = new Section(TYPE_ANNOTATION_ITEM, 1);
+    private final Section annotationSets = new Section(TYPE_ANNOTATION_SET_ITEM, 4);
+    private final Section annotationSetRefLists = new Section(TYPE_ANNOTATION_SET_REF_LIST, 4);
+    private final Section annotationsDirectories =
+            new Section(TYPE_ANNOTATIONS_DIRECTORY_ITEM, 4);
+    private final Section debugInfos = new Section(TYPE_DEBUG_INFO_ITEM, 1);
+    private final Section codeItems = new Section(TYPE_CODE_ITEM, 4);
+    private final Section classData = new Section(TYPE_CLASS_DATA_ITEM, 1);
+    // True while collecting the ids used by the classes, during which the output is discarded
+    private boolean collecting = true;
+    // The position in the given file
+    private int pos;
+    private byte[] out;
+    private int size;
+
+    private DexSubsetWriter(byte[] dex) {
+        this.dex = dex;
+        for (int kind = STRING; kind <= METHOD; kind++) {
+            int offset = STRING_IDS_SIZE_OFFSET + (kind - STRING) * 8;
+            used[kind] = new boolean[readInt(dex, offset)];
+            idsOffs[kind] = readInt(dex, offset + 4);
+        }
+        this.out = new byte[Math.max(dex.length / 4, HEADER_SIZE)];
+    }
+
+    /**
+     * Returns a new dex file containing the classes at the given class_def indices of the given
+     * dex file, in which the classes are opened, or null if the file cannot be handled by this
+     * class. In the latter case, the classes must be opened by {@link FinalModifierRemoverModule}.
+     *
+     * @param dex a dex file that has been validated by DexBackedDexFile
+     */
+    static byte[] write(byte[] dex, int[] classDefIndices) {
+        if (readInt(dex, ENDIAN_TAG_OFFSET) != ENDIAN_CONSTANT || hasHiddenApiClassData(dex)) {
+            return null;
+        }
+        int[] indices = classDefIndices.clone();
+        // The superclass and the interfaces of a class must precede it, which is already the case
+        // in the given file.
+        Arrays.sort(indices);
+        try {
+            return new DexSubsetWriter(dex).write(indices);
+        } catch (IndexOutOfBoundsException | UnsupportedDexException e) {
+            return null;
+        }
+    }
+
+    private byte[] write(int[] classDefIndices) {
+        int classDefsOff = readInt(dex, CLASS_DEFS_OFF_OFFSET);
+        // Collect the ids and the data items used by the classes, discarding the output. The
+        // sections are visited in such an order that no item is added to a visited section.
+        for (int index : classDefIndices) {
+            size = 0;
+            writeClassDef(classDefsOff + index * CLASS_DEF_ITEM_SIZE);
+        }
+        Section[] sections = {
+                classData,
+                codeItems,
+                debugInfos,
+                encodedArrays,
+                annotationsDirectories,
+                annotationSetRefLists,
+                annotationSets,
+                annotations,
+                typeLists,
+        };
+        for (Section section : sections) {
+            for (int offset : section.offsets.keySet()) {
+                size = 0;
+                writeItem(section.type, offset);
+            }
+        }
+        collecting = false;
+        int dataOff = HEADER_SIZE;
+        for (int kind = STRING; kind <= METHOD; kind++) {
+            boolean[] usedIds = used[kind];
+            int[] indexMap = new int[usedIds.length];
+            int count = 0;
+            for (int i = 0; i < usedIds.length; i++) {
+                indexMap[i] = usedIds[i] ? count++ : -1;
+            }
+            indexMaps[kind] = indexMap;
+            dataOff += count * ID_ITEM_SIZES[kind];
+        }
+        int classDefsOffInOut = dataOff;
+        dataOff += classDefIndices.length * CLASS_DEF_ITEM_SIZE;
+        // The data section
+        size = dataOff;
+        int[] stringDataOffs = writeStringData();
+        // Each item is written after the items it refers to.
+        for (int i = sections.length - 1; i >= 0; i--) {
+            Section section = sections[i];
+            align(section.alignment);
+            section.start = size;
+            for (Map.Entry<Integer, Integer> e : section.offsets.entrySet()) {
+                align(section.alignment);
+                e.setValue(size);
+                writeItem(section.type, e.getKey());
+            }
+        }
+        align(4);
+        int mapOff = size;
+        writeMapList(sections, classDefIndices.length, classDefsOffInOut, dataOff, mapOff);
+        int fileSize = size;
+        // The ids and the class_defs. The header is cleared first, since the collection has used
+        // the buffer as scratch space, and the fields that are not written, such as link_size and
+        // link_off, must be 0.
+        Arrays.fill(out, 0, HEADER_SIZE, (byte) 0);
+        size = HEADER_SIZE;
+        for (int kind = STRING; kind <= METHOD; kind++) {
+            int count = countIds(kind);
+            putInt(STRING_IDS_SIZE_OFFSET + (kind - STRING) * 8, count);
+            putInt(STRING_IDS_SIZE_OFFSET + (kind - STRING) * 8 + 4, count == 0 ? 0 : size);
+            writeIds(kind, stringDataOffs);
+        }
+        putInt(CLASS_DEFS_SIZE_OFFSET, classDefIndices.length);
+        putInt(CLASS_DEFS_OFF_OFFSET, classDefIndices.length == 0 ? 0 : size);
+        for (int index : classDefIndices) {
+            writeClassDef(classDefsOff + index * CLASS_DEF_ITEM_SIZE);
+        }
+        // The header
+        System.arraycopy(dex, 0, out, 0, MAGIC_SIZE);
+        putInt(FILE_SIZE_OFFSET, fileSize);
+        putInt(HEADER_SIZE_OFFSET, HEADER_SIZE);
+        putInt(ENDIAN_TAG_OFFSET, ENDIAN_CONSTANT);
+        putInt(MAP_OFF_OFFSET, mapOff);
+        putInt(DATA_SIZE_OFFSET, fileSize - dataOff);
+        putInt(DATA_SIZE_OFFSET + 4, dataOff);
+        byte[] bytes = Arrays.copyOf(out, fileSize);
+        DexPatcher.updateSignatureAndChecksum(bytes);
+        return bytes;
+    }
+
+    private int countIds(int kind) {
+        int count = 0;
+        for (boolean b : used[kind]) {
+            if (b) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private int[] writeStringData() {
+        boolean[] usedStrings = used[STRING];
+        int stringIdsOff = idsOffs[STRING];
+        int[] offsets = new int[usedStrings.length];
+        for (int i = 0; i < usedStrings.length; i++) {
+            if (usedStrings[i]) {
+                int start = readInt(dex, stringIdsOff + i * 4);
+                pos = start;
+                readUleb128(); // utf16_size
+                while (dex[pos++] != 0) {
+                    // Continue until the terminating null
+                }
+                offsets[i] = size;
+                writeBytes(start, pos - start);
+            }
+        }
+        return offsets;
+    }
+
+    private void writeIds(int kind, int[] stringDataOffs) {
+        boolean[] usedIds = used[kind];
+        int idsOff = idsOffs[kind];
+        for (int i = 0; i < usedIds.length; i++) {
+            if (!usedIds[i]) {
+                continue;
+            }
+            int item = idsOff + i * ID_ITEM_SIZES[kind];
+            switch (kind) {
+                case STRING:
+                    writeInt(stringDataOffs[i]);
+                    break;
+                case TYPE:
+                    writeInt(map(STRING, readInt(dex, item)));
+                    break;
+                case PROTO:
+                    writeInt(map(STRING, readInt(dex, item))); // shorty_idx
+                    writeInt(map(TYPE, readInt(dex, item + 4))); // return_type_idx
+                    writeInt(typeLists.get(readInt(dex, item + 8))); // parameters_off
+                    break;
+                default:
+                    // The field_id_item and the method_id_item
+                    writeShort(map(TYPE, readUShort(item))); // class_idx
+                    writeShort(map(kind == FIELD ? TYPE : PROTO, readUShort(item + 2)));
+                    writeInt(map(STRING, readInt(dex, item + 4))); // name_idx
+                    break;
+            }
+        }
+    }
+
+    private void writeMapList(Section[] sections,
+                              int classDefCount,
+                              int classDefsOff,
+                              int dataOff,
+                              int mapOff) {
+        int start = size;
+        writeInt(0);
+        int count = 0;
+        writeMapItem(TYPE_HEADER_ITEM, 1, 0);
+        count++;
+        int idsOff = HEADER_SIZE;
+        for (int kind = STRING; kind <= METHOD; kind++) {
+            int idCount = countIds(kind);
+            if (idCount > 0) {
+                writeMapItem(ID_ITEM_TYPES[kind], idCount, idsOff);
+                count++;
+                idsOff += idCount * ID_ITEM_SIZES[kind];
+            }
+        }
+        if (classDefCount > 0) {
+            writeMapItem(TYPE_CLASS_DEF_ITEM, classDefCount, classDefsOff);
+            count++;
+        }
+        int stringCount = countIds(STRING);
+        if (stringCount > 0) {
+            writeMapItem(TYPE_STRING_DATA_ITEM, stringCount, dataOff);
+            count++;
+        }
+        for (int i = sections.length - 1; i >= 0; i--) {
+            Section section = sections[i];
+            if (!section.offsets.isEmpty()) {
+                writeMapItem(section.type, section.offsets.size(), section.start);
+                count++;
+            }
+        }
+        writeMapItem(TYPE_MAP_LIST, 1, mapOff);
+        count++;
+        putInt(start, count);
+    }
+
+    private void writeMapItem(int type, int itemCount, int offset) {
+        writeShort(type);
+        writeShort(0); // unused
+        writeInt(itemCount);
+        writeInt(offset);
+    }
+
+    private void writeItem(int type, int offset) {
+        switch (type) {
+            case TYPE_TYPE_LIST:
+                writeTypeList(offset);
+                break;
+            case TYPE_ENCODED_ARRAY_ITEM:
+                pos = offset;
+                copyEncodedArray();
+                break;
+            case TYPE_ANNOTATION_ITEM:
+                pos = offset;
+                writeByte(dex[pos++]); // visibility
+                copyEncodedAnnotation(true);
+                break;
+            case TYPE_ANNOTATION_SET_ITEM:
+                writeOffsets(offset, annotations);
+                break;
+            case TYPE_ANNOTATION_SET_REF_LIST:
+                writeOffsets(offset, annotationSets);
+                break;
+            case TYPE_ANNOTATIONS_DIRECTORY_ITEM:
+                writeAnnotationsDirectoryItem(offset);
+                break;
+            case TYPE_DEBUG_INFO_ITEM:
+                writeDebugInfoItem(offset);
+                break;
+            case TYPE_CODE_ITEM:
+                writeCodeItem(offset);
+                break;
+            case TYPE_CLASS_DATA_ITEM:
+                writeClassDataItem(offset);
+                break;
+            default:
+                throw new AssertionError(type);
+        }
+    }
+
+    private void writeClassDef(int classDef) {
+        writeInt(map(TYPE, readInt(dex, classDef)));
+        writeInt(readInt(dex, classDef + 4) & ~ACC_FINAL);
+        writeInt(mapOrNoIndex(TYPE, readInt(dex, classDef + 8))); // superclass_idx
+        writeInt(typeLists.get(readInt(dex, classDef + 12))); // interfaces_off
+        writeInt(mapOrNoIndex(STRING, readInt(dex, classDef + 16))); // source_file_idx
+        writeInt(annotationsDirectories.get(readInt(dex, classDef + 20)));
+        writeInt(classData.get(readInt(dex, classDef + 24)));
+        writeInt(encodedArrays.get(readInt(dex, classDef + 28))); // static_values_off
+    }
+
+    private void writeTypeList(int offset) {
+        int typeCount = readInt(dex, offset);
+        writeInt(typeCount);
+        for (int i = 0; i < typeCount; i++) {
+            writeShort(map(TYPE, readUShort(offset + 4 + i * 2)));
+        }
+    }
+
+    /**
+     * Writes the annotation_set_item or the annotation_set_ref_list at the given offset, the
+     * entries of which are the offsets of the items in the given section.
+     */
+    private void writeOffsets(int offset, Section section) {
+        int entryCount = readInt(dex, offset);
+        writeInt(entryCount);
+        for (int i = 0; i < entryCount; i++) {
+            writeInt(section.get(readInt(dex, offset + 4 + i * 4)));
+        }
+    }
+
+    private void writeAnnotationsDirectoryItem(int offset) {
+        writeInt(annotationSets.get(readInt(dex, offset))); // class_annotations_off
+        int fieldCount = readInt(dex, offset + 4);
+        int methodCount = readInt(dex, offset + 8);
+        int parameterCount = readInt(dex, offset + 12);
+        writeInt(fieldCount);
+        writeInt(methodCount);
+        writeInt(parameterCount);
+        int p = offset + 16;
+        for (int i = 0; i < fieldCount; i++, p += 8) {
+            writeInt(map(FIELD, readInt(dex, p)));
+            writeInt(annotationSets.get(readInt(dex, p + 4)));
+        }
+        for (int i = 0; i < methodCount; i++, p += 8) {
+            writeInt(map(METHOD, readInt(dex, p)));
+            writeInt(annotationSets.get(readInt(dex, p + 4)));
+        }
+        for (int i = 0; i < parameterCount; i++, p += 8) {
+            writeInt(map(METHOD, readInt(dex, p)));
+            writeInt(annotationSetRefLists.get(readInt(dex, p + 4)));
+        }
+    }
+
+    private void writeDebugInfoItem(int offset) {
+        pos = offset;
+        copyLeb128(); // line_start
+        int parameterCount = copyLeb128();
+        for (int i = 0; i < parameterCount; i++) {
+            copyUleb128p1(STRING); // parameter_names
+        }
+        while (true) {
+            int opcode = dex[pos++] & 0xff;
+            writeByte(opcode);
+            switch (opcode) {
+                case DBG_END_SEQUENCE:
+                    return;
+                case DBG_ADVANCE_PC:
+                case DBG_ADVANCE_LINE:
+                case DBG_END_LOCAL:
+                case DBG_RESTART_LOCAL:
+                    copyLeb128();
+                    break;
+                case DBG_START_LOCAL:
+                    copyLeb128(); // register_num
+                    copyUleb128p1(STRING); // name_idx
+                    copyUleb128p1(TYPE); // type_idx
+                    break;
+                case DBG_START_LOCAL_EXTENDED:
+                    copyLeb128(); // register_num
+                    copyUleb128p1(STRING); // name_idx
+                    copyUleb128p1(TYPE); // type_idx
+                    copyUleb128p1(STRING); // sig_idx
+                    break;
+                case DBG_SET_FILE:
+                    copyUleb128p1(STRING); // name_idx
+                    break;
+                default:
+                    // DBG_SET_PROLOGUE_END, DBG_SET_EPILOGUE_BEGIN and the special opcodes
+                    break;
+            }
+        }
+    }
+
+    private void writeCodeItem(int offset) {
+        writeBytes(offset, 8); // registers_size, ins_size, outs_size, tries_size
+        int triesSize = readUShort(offset + 6);
+        writeInt(debugInfos.get(readInt(dex, offset + 8)));
+        int insnsSize = readInt(dex, offset + 12);
+        writeInt(insnsSize);
+        // The instructions are copied as they are, and then their indices are replaced.
+        int insns = size;
+        writeBytes(offset + 16, insnsSize * 2);
+        mapInstructions(insns, insnsSize);
+        if (triesSize == 0) {
+            return;
+        }
+        int tries = offset + 16 + insnsSize * 2;
+        if ((insnsSize & 1) != 0) {
+            tries += 2;
+            writeShort(0); // padding
+        }
+        int triesInOut = size;
+        writeBytes(tries, triesSize * 8);
+        // The encoded_catch_handler_list contains the type indices in uleb128, so its size may be
+        // changed. The handler_offs of the try_items are updated accordingly.
+        int handlers = tries + triesSize * 8;
+        int handlersInOut = size;
+        pos = handlers;
+        int handlerCount = copyLeb128();
+        int[] handlerOffs = new int[handlerCount];
+        int[] handlerOffsInOut = new int[handlerCount];
+        for (int i = 0; i < handlerCount; i++) {
+            handlerOffs[i] = pos - handlers;
+            handlerOffsInOut[i] = size - handlersInOut;
+            int pairCount = copySleb128();
+            for (int j = 0, n = Math.abs(pairCount); j < n; j++) {
+                writeUleb128(map(TYPE, readUleb128())); // type_idx
+                copyLeb128(); // addr
+            }
+            if (pairCount <= 0) {
+                copyLeb128(); // catch_all_addr
+            }
+        }
+        for (int i = 0; i < triesSize; i++) {
+            int handlerOffOffset = triesInOut + i * 8 + 6;
+            int handlerOff = readUShort(out, handlerOffOffset);
+            int index = Arrays.binarySearch(handlerOffs, handlerOff);
+            if (index < 0) {
+                throw new UnsupportedDexException();
+            }
+            putShort(handlerOffOffset, handlerOffsInOut[index]);
+        }
+    }
+
+    private void writeClassDataItem(int offset) {
+        pos = offset;
+        int staticFieldCount = copyLeb128();
+        int instanceFieldCount = copyLeb128();
+        int directMethodCount = copyLeb128();
+        int virtualMethodCount = copyLeb128();
+        copyEncodedFields(staticFieldCount);
+        copyEncodedFields(instanceFieldCount);
+        copyEncodedMethods(directMethodCount);
+        copyEncodedMethods(virtualMethodCount);
+    }
+
+    private void copyEncodedFields(int count) {
+        int fieldIdx = 0;
+        int newFieldIdx = 0;
+        for (int i = 0; i < count; i++) {
+            fieldIdx += readUleb128();
+            int mapped = map(FIELD, fieldIdx);
+            writeUleb128(mapped - newFieldIdx);
+            newFieldIdx = mapped;
+            copyLeb128(); // access_flags
+        }
+    }
+
+    private void copyEncodedMethods(int count) {
+        int methodIdx = 0;
+        int newMethodIdx = 0;
+        for (int i = 0; i < count; i++) {
+            methodIdx += readUleb128();
+            int mapped = map(METHOD, methodIdx);
+            writeUleb128(mapped - newMethodIdx);
+            newMethodIdx = mapped;
+            writeUleb128(readUleb128() & ~ACC_FINAL); // access_flags
+            writeUleb128(codeItems.get(readUleb128())); // code_off
+        }
+    }
+
+    /**
+     * Replaces the indices in the instructions in the output at the given position.
+     */
+    private void mapInstructions(int insns, int insnsSize) {
+        int end = insns + insnsSize * 2;
+        int p = insns;
+        while (p < end) {
+            int unit = readUShort(out, p);
+            int opcode = unit & 0xff;
+            int units;
+            if (unit == PACKED_SWITCH_PAYLOAD) {
+                units = 4 + readUShort(out, p + 2) * 2;
+            } else if (unit == SPARSE_SWITCH_PAYLOAD) {
+                units = 2 + readUShort(out, p + 2) * 4;
+            } else if (unit == FILL_ARRAY_DATA_PAYLOAD) {
+                int elementWidth = readUShort(out, p + 2);
+                long elementCount = readInt(out, p + 4) & 0xffffffffL;
+                units = (int) (4 + (elementWidth * elementCount + 1) / 2);
+            } else {
+                units = INSTRUCTION_SIZES[opcode];
+                if (units == 0 || opcode == 0 && unit != 0) {
+                    throw new UnsupportedDexException();
+                }
+                int kind = INDEX_KINDS[opcode];
+                if (opcode == CONST_STRING_JUMBO) {
+                    putInt(p + 2, map(kind, readInt(out, p + 2)));
+                } else if (kind != NONE) {
+                    putShort(p + 2, map(kind, readUShort(out, p + 2)));
+                }
+            }
+            p += units * 2;
+        }
+        if (p != end) {
+            throw new UnsupportedDexException();
+        }
+    }
+
+    private void copyEncodedArray() {
+        int count = copyLeb128();
+        for (int i = 0; i < count; i++) {
+            copyEncodedValue(false);
+        }
+    }
+
+    /**
+     * @param topLevel true if the annotation is an annotation_item, the FINAL flag of which is
+     *                 removed if it is an InnerClass annotation
+     */
+    private void copyEncodedAnnotation(boolean topLevel) {
+        int typeIdx = readUleb128();
+        boolean innerClass = topLevel && stringEquals(readInt(dex, idsOffs[TYPE] + typeIdx * 4),
+                                                      DexPatcher.INNER_CLASS);
+        writeUleb128(map(TYPE, typeIdx));
+        int count = copyLeb128();
+        for (int i = 0; i < count; i++) {
+            int nameIdx = readUleb128();
+            writeUleb128(map(STRING, nameIdx));
+            copyEncodedValue(innerClass && stringEquals(nameIdx, DexPatcher.ACCESS_FLAGS));
+        }
+    }
+
+    /**
+     * @param accessFlags true if the value is the accessFlags of an InnerClass annotation
+     */
+    private void copyEncodedValue(boolean accessFlags) {
+        int header = dex[pos++] & 0xff;
+        writeByte(header);
+        int valueType = header & 0x1f;
+        int valueSize = (header >> 5) + 1;
+        switch (valueType) {
+            case VALUE_INT:
+                if (accessFlags) {
+                    // The FINAL bit is in the least significant byte.
+                    writeByte(dex[pos++] & ~ACC_FINAL);
+                    valueSize--;
+                }
+                writeBytes(pos, valueSize);
+                pos += valueSize;
+                break;
+            case VALUE_BYTE:
+            case VALUE_SHORT:
+            case VALUE_CHAR:
+            case VALUE_LONG:
+            case VALUE_FLOAT:
+            case VALUE_DOUBLE:
+                writeBytes(pos, valueSize);
+                pos += valueSize;
+                break;
+            case VALUE_STRING:
+                copyIndex(STRING, valueSize);
+                break;
+            case VALUE_TYPE:
+                copyIndex(TYPE, valueSize);
+                break;
+            case VALUE_FIELD:
+            case VALUE_ENUM:
+                copyIndex(FIELD, valueSize);
+                break;
+            case VALUE_METHOD:
+                copyIndex(METHOD, valueSize);
+                break;
+            case VALUE_ARRAY:
+                copyEncodedArray();
+                break;
+            case VALUE_ANNOTATION:
+                copyEncodedAnnotation(false);
+                break;
+            case VALUE_NULL:
+            case VALUE_BOOLEAN:
+                break;
+            default:
+                // e.g. VALUE_METHOD_TYPE and VALUE_METHOD_HANDLE
+                throw new UnsupportedDexException();
+        }
+    }
+
+    /**
+     * Copies the index of the given kind in the given number of bytes. The new index fits in the
+     * same number of bytes, since it is not greater than the original one.
+     */
+    private void copyIndex(int kind, int byteCount) {
+        int index = 0;
+        for (int i = 0; i < byteCount; i++) {
+            index |= (dex[pos++] & 0xff) << i * 8;
+        }
+        int mapped = map(kind, index);
+        for (int i = 0; i < byteCount; i++) {
+            writeByte(mapped >> i * 8);
+        }
+    }
+
+    private void copyUleb128p1(int kind) {
+        int index = readUleb128() - 1;
+        writeUleb128(index == NO_INDEX ? 0 : map(kind, index) + 1);
+    }
+
+    /**
+     * Returns the new index of the given id. While collecting the ids, this marks the id and the
+     * ids it refers to as used, and returns the given index as it is.
+     */
+    private int map(int kind, int index) {
+        if (!collecting) {
+            int mapped = indexMaps[kind][index];
+            if (mapped == -1) {
+                // Not collected, which must not happen
+                throw new UnsupportedDexException();
+            }
+            return mapped;
+        }
+        boolean[] usedIds = used[kind];
+        if (usedIds[index]) {
+            return index;
+        }
+        usedIds[index] = true;
+        int item = idsOffs[kind] + index * ID_ITEM_SIZES[kind];
+        switch (kind) {
+            case TYPE:
+                map(STRING, readInt(dex, item));
+                break;
+            case PROTO:
+                map(STRING, readInt(dex, item)); // shorty_idx
+                map(TYPE, readInt(dex, item + 4)); // return_type_idx
+                typeLists.add(readInt(dex, item + 8)); // parameters_off
+                break;
+            case FIELD:
+            case METHOD:
+                map(TYPE, readUShort(item)); // class_idx
+                map(kind == FIELD ? TYPE : PROTO, readUShort(item + 2));
+                map(STRING, readInt(dex, item + 4)); // name_idx
+                break;
+            default:
+                break;
+        }
+        return index;
+    }
+
+    private int mapOrNoIndex(int kind, int index) {
+        return index == NO_INDEX ? NO_INDEX : map(kind, index);
+    }
+
+    private boolean stringEquals(int stringIdx, byte[] expected) {
+        return DexPatcher.stringEquals(dex, idsOffs[STRING], stringIdx, expected);
+    }
+
+    private int readUShort(int offset) {
+        return readUShort(dex, offset);
+    }
+
+    private int readUleb128() {
+        int result = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = dex[pos++];
+            result |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+    }
+
+    /**
+     * Copies a uleb128 or sleb128 value as it is, and returns the value as a uleb128.
+     */
+    private int copyLeb128() {
+        int start = pos;
+        int result = readUleb128();
+        writeBytes(start, pos - start);
+        return result;
+    }
+
+    private int copySleb128() {
+        int start = pos;
+        int result = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = dex[pos++];
+            result |= (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        if (shift < 32 && (b & 0x40) != 0) {
+            result |= -1 << shift;
+        }
+        writeBytes(start, pos - start);
+        return result;
+    }
+
+    private void writeByte(int value) {
+        ensureCapacity(1);
+        out[size++] = (byte) value;
+    }
+
+    private void writeShort(int value) {
+        ensureCapacity(2);
+        putShort(size, value);
+        size += 2;
+    }
+
+    private void writeInt(int value) {
+        ensureCapacity(4);
+        putInt(size, value);
+        size += 4;
+    }
+
+    private void writeUleb128(int value) {
+        while ((value & ~0x7f) != 0) {
+            writeByte(value & 0x7f | 0x80);
+            value >>>= 7;
+        }
+        writeByte(value);
+    }
+
+    private void writeBytes(int offset, int length) {
+        ensureCapacity(length);
+        System.arraycopy(dex, offset, out, size, length);
+        size += length;
+    }
+
+    private void align(int alignment) {
+        int padding = -size & (alignment - 1);
+        ensureCapacity(padding);
+        Arrays.fill(out, size, size + padding, (byte) 0);
+        size += padding;
+    }
+
+    private void putShort(int offset, int value) {
+        out[offset] = (byte) value;
+        out[offset + 1] = (byte) (value >> 8);
+    }
+
+    private void putInt(int offset, int value) {
+        ensureCapacity(offset + 4 - size);
+        for (int i = 0; i < 4; i++) {
+            out[offset + i] = (byte) (value >> i * 8);
+        }
+    }
+
+    private void ensureCapacity(int extra) {
+        int required = size + extra;
+        if (required > out.length) {
+            out = Arrays.copyOf(out, Math.max(required, out.length * 2));
+        }
+    }
+
+    private static int readUShort(byte[] bytes, int offset) {
+        return bytes[offset] & 0xff | (bytes[offset + 1] & 0xff) << 8;
+    }
+
+    private static boolean hasHiddenApiClassData(byte[] dex) {
+        int mapOff = readInt(dex, MAP_OFF_OFFSET);
+        int count = readInt(dex, mapOff);
+        for (int i = 0; i < count; i++) {
+            if (readUShort(dex, mapOff + 4 + i * 12) == TYPE_HIDDENAPI_CLASS_DATA_ITEM) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void defineInstructions(int first, int last, int units, int kind) {
+        for (int opcode = first; opcode <= last; opcode++) {
+            INSTRUCTION_SIZES[opcode] = (byte) units;
+            INDEX_KINDS[opcode] = (byte) kind;
+        }
+    }
+
+    /**
+     * The data items of a type, keyed by their offsets in the given file. The values are their
+     * offsets in the new file.
+     */
+    private static final class Section {
+
+        final int type;
+        final int alignment;
+        final Map<Integer, Integer> offsets = new LinkedHashMap<>();
+        int start;
+
+        Section(int type, int alignment) {
+            this.type = type;
+            this.alignment = alignment;
+        }
+
+        void add(int offset) {
+            if (offset != 0 && !offsets.containsKey(offset)) {
+                offsets.put(offset, 0);
+            }
+        }
+
+        /**
+         * Returns the offset of the given item in the new file, or 0 if the given offset is 0.
+         * While collecting the data items, this adds the given item and returns 0.
+         */
+        int get(int offset) {
+            if (offset == 0) {
+                return 0;
+            }
+            Integer newOffset = offsets.get(offset);
+            if (newOffset == null) {
+                offsets.put(offset, 0);
+                return 0;
+            }
+            return newOffset;
+        }
+
+    }
+
+    private static final class UnsupportedDexException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+    }
+
+}
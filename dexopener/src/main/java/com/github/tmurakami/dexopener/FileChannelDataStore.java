@@ -0,0 +1,52 @@
+/*
+ * Copyright 2016 Tsuyoshi Murakami
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.tmurakami.dexopener;
+
+import com.github.tmurakami.dexopener.repackaged.org.jf.dexlib2.writer.io.MemoryDataStore;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A DexDataStore that holds the whole dex file in memory, and writes it into the given file with
+ * a FileChannel at once when closed.
+ * <p>
+ * FileDataStore writes each section with a seek and a write, and then reads the file back to
+ * compute the checksum and the signature, all of which are system calls of a RandomAccessFile.
+ */
+final class FileChannelDataStore extends MemoryDataStore {
+
+    private final File file;
+
+    FileChannelDataStore(File file) {
+        this.file = file;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try (FileChannel channel = new FileOutputStream(file).getChannel()) {
+            ByteBuffer buffer = ByteBuffer.wrap(getBuffer(), 0, getSize());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+
+}
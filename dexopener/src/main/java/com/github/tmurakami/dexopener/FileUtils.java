@@ -17,6 +17,7 @@
 package com.github.tmurakami.dexopener;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -43,4 +44,10 @@ final class FileUtils {
         }
     }
 
+    static void rename(File from, File to) throws IOException {
+        if (!from.renameTo(to)) {
+            throw new IOException("Could not rename " + from + " to " + to);
+        }
+    }
+
 }
@@ -21,6 +21,7 @@ import com.github.tmurakami.dexopener.repackaged.org.jf.dexlib2.iface.Annotation
 import com.github.tmurakami.dexopener.repackaged.org.jf.dexlib2.iface.AnnotationElement;
 import com.github.tmurakami.dexopener.repackaged.org.jf.dexlib2.iface.ClassDef;
 import com.github.tmurakami.dexopener.repackaged.org.jf.dexlib2.iface.Method;
+import com.github.tmurakami.dexopener.repackaged.org.jf.dexlib2.iface.value.EncodedValue;
 import com.github.tmurakami.dexopener.repackaged.org.jf.dexlib2.iface.value.IntEncodedValue;
 import com.github.tmurakami.dexopener.repackaged.org.jf.dexlib2.immutable.ImmutableAnnotationElement;
 import com.github.tmurakami.dexopener.repackaged.org.jf.dexlib2.immutable.value.ImmutableIntEncodedValue;
@@ -34,12 +35,43 @@ import com.github.tmurakami.dexopener.repackaged.org.jf.dexlib2.rewriter.Rewrite
 
 final class FinalModifierRemoverModule extends RewriterModule {
 
+    private static final String INNER_CLASS = "Ldalvik/annotation/InnerClass;";
+    private static final String ACCESS_FLAGS = "accessFlags";
+
+    /**
+     * Returns true if this module changes the given class, i.e. the class, one of its methods or
+     * its InnerClass annotation has the FINAL flag. The other classes are left to the original
+     * class loader.
+     */
+    static boolean hasFinalModifier(ClassDef classDef) {
+        if (AccessFlags.FINAL.isSet(classDef.getAccessFlags())) {
+            return true;
+        }
+        for (Method method : classDef.getMethods()) {
+            if (AccessFlags.FINAL.isSet(method.getAccessFlags())) {
+                return true;
+            }
+        }
+        for (Annotation annotation : classDef.getAnnotations()) {
+            if (annotation.getType().equals(INNER_CLASS)) {
+                for (AnnotationElement element : annotation.getElements()) {
+                    if (element.getName().equals(ACCESS_FLAGS)) {
+                        EncodedValue value = element.getValue();
+                        return value instanceof IntEncodedValue
+                               && AccessFlags.FINAL.isSet(((IntEncodedValue) value).getValue());
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
     @Override
     public Rewriter<Annotation> getAnnotationRewriter(Rewriters rewriters) {
         return new AnnotationRewriter(rewriters) {
             @Override
             public Annotation rewrite(Annotation annotation) {
-                if (annotation.getType().equals("Ldalvik/annotation/InnerClass;")) {
+                if (annotation.getType().equals(INNER_CLASS)) {
                     return super.rewrite(annotation);
                 } else {
                     return annotation;
@@ -54,7 +86,7 @@ final class FinalModifierRemoverModule extends RewriterModule {
             @Override
             public AnnotationElement rewrite(AnnotationElement annotationElement) {
                 String name = annotationElement.getName();
-                if (!name.equals("accessFlags")) {
+                if (!name.equals(ACCESS_FLAGS)) {
                     return annotationElement;
                 }
                 int accessFlags = ((IntEncodedValue) annotationElement.getValue()).getValue();
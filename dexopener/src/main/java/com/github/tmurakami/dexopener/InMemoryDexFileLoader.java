@@ -0,0 +1,112 @@
+/*
+ * Copyright 2016 Tsuyoshi Murakami
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.tmurakami.dexopener;
+
+import android.os.Build;
+
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A {@link DexFileLoader} that loads the dex files from memory on API 26 and above.
+ * <p>
+ * The classes must be defined in the loader of the app, so the dex file is taken out of an
+ * InMemoryDexClassLoader, which only owns it. If the dex file cannot be taken out, it is loaded
+ * from a file as usual.
+ */
+final class InMemoryDexFileLoader extends DexFileLoader {
+
+    private static final Field PATH_LIST_FIELD;
+    private static final Field DEX_ELEMENTS_FIELD;
+    private static final Field DEX_FILE_FIELD;
+
+    static {
+        Field pathListField = null;
+        Field dexElementsField = null;
+        Field dexFileField = null;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            try {
+                pathListField = getDeclaredField("dalvik.system.BaseDexClassLoader", "pathList");
+                dexElementsField = getDeclaredField("dalvik.system.DexPathList", "dexElements");
+                dexFileField = getDeclaredField("dalvik.system.DexPathList$Element", "dexFile");
+            } catch (ClassNotFoundException | NoSuchFieldException | RuntimeException e) {
+                // A RuntimeException such as a SecurityException may be thrown if the hidden APIs
+                // are restricted.
+                Logger logger = Loggers.get();
+                if (logger.isLoggable(Level.WARNING)) {
+                    logger.log(Level.WARNING, "Could not load the dex files from memory", e);
+                }
+                pathListField = null;
+                dexElementsField = null;
+                dexFileField = null;
+            }
+        }
+        PATH_LIST_FIELD = pathListField;
+        DEX_ELEMENTS_FIELD = dexElementsField;
+        DEX_FILE_FIELD = dexFileField;
+    }
+
+    // The dex files would be closed together with their loaders, so the loaders are kept here.
+    private final List<ClassLoader> loaders = new ArrayList<>();
+
+    @Override
+    boolean canLoadInMemory() {
+        return PATH_LIST_FIELD != null;
+    }
+
+    @SuppressWarnings("deprecation")
+    @Override
+    dalvik.system.DexFile loadDex(ByteBuffer buffer) {
+        if (PATH_LIST_FIELD == null) {
+            return null;
+        }
+        ClassLoader loader = new dalvik.system.InMemoryDexClassLoader(buffer, null);
+        dalvik.system.DexFile file;
+        try {
+            Object[] elements = (Object[]) DEX_ELEMENTS_FIELD.get(PATH_LIST_FIELD.get(loader));
+            file = elements == null || elements.length == 0
+                   ? null
+                   : (dalvik.system.DexFile) DEX_FILE_FIELD.get(elements[0]);
+        } catch (IllegalAccessException | RuntimeException e) {
+            Logger logger = Loggers.get();
+            if (logger.isLoggable(Level.WARNING)) {
+                logger.log(Level.WARNING, "Could not take the dex file out of its loader", e);
+            }
+            file = null;
+        }
+        if (file == null) {
+            // The caller writes the dex file and loads it from the file instead.
+            return null;
+        }
+        synchronized (loaders) {
+            loaders.add(loader);
+        }
+        return file;
+    }
+
+    private static Field getDeclaredField(String className, String fieldName)
+            throws ClassNotFoundException, NoSuchFieldException {
+        Field field = Class.forName(className).getDeclaredField(fieldName);
+        field.setAccessible(true);
+        return field;
+    }
+
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2016 Tsuyoshi Murakami
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.tmurakami.dexopener;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The statistics of opening the final classes, which are recorded without any lock so that they
+ * can be always enabled.
+ * <p>
+ * The latency of each stage is recorded into a histogram whose buckets split each power of two
+ * into four, so that a percentile is estimated within 25% of error.
+ */
+final class Stats {
+
+    // The stages
+    /** Reading a dex entry from the APK, including the inflation */
+    static final int READ = 0;
+    /** Scanning a dex entry to plan its batches */
+    static final int SCAN = 1;
+    /** Generating the dex file of a batch */
+    static final int TRANSFORM = 2;
+    /** Waiting for the runtime to load the dex file of a batch */
+    static final int LOAD = 3;
+    /** Blocking a thread loading a class until the batches are ready */
+    static final int WAIT = 4;
+    static final int STAGE_COUNT = 5;
+
+    // The counters
+    static final int SCANNED_CLASSES = 0;
+    static final int ACCEPTED_CLASSES = 1;
+    static final int BYTES_READ = 2;
+    static final int BYTES_WRITTEN = 3;
+    static final int CACHE_HITS = 4;
+    static final int COUNTER_COUNT = 5;
+
+    static final int MAX_FORCED_BATCH_COUNT = 8;
+
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray counters = new AtomicLongArray(COUNTER_COUNT);
+    // The count and the total nanoseconds of each stage
+    private final AtomicLongArray stageCounts = new AtomicLongArray(STAGE_COUNT);
+    private final AtomicLongArray stageNanos = new AtomicLongArray(STAGE_COUNT);
+    private final AtomicLongArray histograms = new AtomicLongArray(STAGE_COUNT * BUCKET_COUNT);
+    // The number of the loads of a class that had to wait for the given number of batches,
+    // indexed by the number of batches up to MAX_FORCED_BATCH_COUNT.
+    private final AtomicLongArray forcedBatchCounts =
+            new AtomicLongArray(MAX_FORCED_BATCH_COUNT + 1);
+
+    void add(int counter, long delta) {
+        counters.addAndGet(counter, delta);
+    }
+
+    long get(int counter) {
+        return counters.get(counter);
+    }
+
+    /**
+     * Records that the given stage has taken the time since the given start time.
+     *
+     * @param startNanos the value of {@link System#nanoTime()} when the stage started
+     */
+    void record(int stage, long startNanos) {
+        long nanos = Math.max(System.nanoTime() - startNanos, 0);
+        stageCounts.incrementAndGet(stage);
+        stageNanos.addAndGet(stage, nanos);
+        histograms.incrementAndGet(stage * BUCKET_COUNT + getBucket(nanos));
+    }
+
+    long getCount(int stage) {
+        return stageCounts.get(stage);
+    }
+
+    long getTotalNanos(int stage) {
+        return stageNanos.get(stage);
+    }
+
+    /**
+     * Returns the counts of the buckets of the histogram of the given stage.
+     */
+    long[] getHistogram(int stage) {
+        long[] histogram = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            histogram[i] = histograms.get(stage * BUCKET_COUNT + i);
+        }
+        return histogram;
+    }
+
+    void recordForcedBatches(int batchCount) {
+        forcedBatchCounts.incrementAndGet(Math.min(batchCount, MAX_FORCED_BATCH_COUNT));
+    }
+
+    /**
+     * Returns the number of the loads of a class that waited for the given number of batches to
+     * be transformed. The count for {@link #MAX_FORCED_BATCH_COUNT} includes the loads that
+     * waited for more batches.
+     */
+    long getForcedBatchCount(int batchCount) {
+        return forcedBatchCounts.get(Math.min(batchCount, MAX_FORCED_BATCH_COUNT));
+    }
+
+    /**
+     * Returns the value at the given percentile of the given histogram, which is the largest
+     * value of the bucket containing it.
+     *
+     * @param percentile the percentile from 0 to 100
+     */
+    static long getPercentile(long[] histogram, double percentile) {
+        long total = 0;
+        for (long count : histogram) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max((long) Math.ceil(total * percentile / 100), 1);
+        long count = 0;
+        for (int i = 0; i < histogram.length; i++) {
+            count += histogram[i];
+            if (count >= rank) {
+                return getBucketMax(i);
+            }
+        }
+        return getBucketMax(histogram.length - 1);
+    }
+
+    static int getBucket(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKET_COUNT + (int) (value >>> shift) - SUB_BUCKET_COUNT;
+    }
+
+    static long getBucketMax(int bucket) {
+        if (bucket < SUB_BUCKET_COUNT) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKET_COUNT - 1;
+        long min = (long) (bucket % SUB_BUCKET_COUNT + SUB_BUCKET_COUNT) << shift;
+        return min + (1L << shift) - 1;
+    }
+
+}
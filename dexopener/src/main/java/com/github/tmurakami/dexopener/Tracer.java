@@ -0,0 +1,148 @@
+/*
+ * Copyright 2016 Tsuyoshi Murakami
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.tmurakami.dexopener;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A recorder of the stages of opening the final classes, which are written as the complete
+ * events of the Chrome trace event format, so that they can be viewed in Perfetto or
+ * chrome://tracing.
+ */
+final class Tracer {
+
+    private static final String[] STAGE_NAMES = {"read", "scan", "transform", "load", "wait"};
+
+    private final long originNanos = System.nanoTime();
+    private final ConcurrentLinkedQueue<Event> events = new ConcurrentLinkedQueue<>();
+    private final Map<Long, String> threadNames = new ConcurrentHashMap<>();
+
+    /**
+     * Records that the given stage has taken the time since the given start time.
+     *
+     * @param stage      one of the stages of {@link Stats}
+     * @param startNanos the value of {@link System#nanoTime()} when the stage started
+     * @param subject    the name of the dex entry, or the name of the class for
+     *                   {@link Stats#WAIT}
+     * @param batchIndex the index of the batch in the dex entry, or -1 if not for a batch
+     */
+    void add(int stage, long startNanos, String subject, int batchIndex) {
+        long endNanos = System.nanoTime();
+        Thread thread = Thread.currentThread();
+        long tid = thread.getId();
+        if (!threadNames.containsKey(tid)) {
+            threadNames.put(tid, thread.getName());
+        }
+        events.add(new Event(stage, startNanos, endNanos, tid, subject, batchIndex));
+    }
+
+    /**
+     * Writes the events recorded so far into the given file.
+     */
+    void write(File file) throws IOException {
+        List<Event> snapshot = new ArrayList<>(events);
+        int pid = android.os.Process.myPid();
+        try (Writer writer = new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(file), "UTF-8"))) {
+            writer.write("{\"traceEvents\":[");
+            String separator = "\n";
+            for (Map.Entry<Long, String> e : threadNames.entrySet()) {
+                writer.write(separator);
+                writer.write("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":" + pid
+                             + ",\"tid\":" + e.getKey() + ",\"args\":{\"name\":");
+                writeString(writer, e.getValue());
+                writer.write("}}");
+                separator = ",\n";
+            }
+            for (Event event : snapshot) {
+                writer.write(separator);
+                writeEvent(writer, event, pid);
+                separator = ",\n";
+            }
+            writer.write("\n],\"displayTimeUnit\":\"ms\"}\n");
+        }
+    }
+
+    private void writeEvent(Writer writer, Event event, int pid) throws IOException {
+        String name = STAGE_NAMES[event.stage];
+        writer.write("{\"name\":\"" + name + "\",\"cat\":\"dexopener\",\"ph\":\"X\",\"ts\":");
+        writeMicros(writer, event.startNanos - originNanos);
+        writer.write(",\"dur\":");
+        writeMicros(writer, event.endNanos - event.startNanos);
+        writer.write(",\"pid\":" + pid + ",\"tid\":" + event.tid + ",\"args\":{");
+        writer.write(event.stage == Stats.WAIT ? "\"class\":" : "\"entry\":");
+        writeString(writer, event.subject);
+        if (event.batchIndex >= 0) {
+            writer.write(",\"batch\":" + event.batchIndex);
+        }
+        writer.write("}}");
+    }
+
+    private static void writeMicros(Writer writer, long nanos) throws IOException {
+        writer.write(Long.toString(nanos / 1000));
+        writer.write('.');
+        String fraction = Long.toString(1000 + Math.abs(nanos % 1000));
+        writer.write(fraction, 1, 3);
+    }
+
+    private static void writeString(Writer writer, String s) throws IOException {
+        writer.write('"');
+        for (int i = 0, n = s.length(); i < n; i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                writer.write('\\');
+                writer.write(c);
+            } else if (c < 0x20) {
+                writer.write(String.format("\\u%04x", (int) c));
+            } else {
+                writer.write(c);
+            }
+        }
+        writer.write('"');
+    }
+
+    private static final class Event {
+
+        final int stage;
+        final long startNanos;
+        final long endNanos;
+        final long tid;
+        final String subject;
+        final int batchIndex;
+
+        Event(int stage, long startNanos, long endNanos, long tid, String subject, int batchIndex) {
+            this.stage = stage;
+            this.startNanos = startNanos;
+            this.endNanos = endNanos;
+            this.tid = tid;
+            this.subject = subject;
+            this.batchIndex = batchIndex;
+        }
+
+    }
+
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2016 Tsuyoshi Murakami
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.tmurakami.dexopener;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class AdaptiveExecutorTest {
+
+    @Test
+    public void should_run_the_tasks_in_daemon_threads_that_go_away_when_idle() throws Exception {
+        AdaptiveExecutor executor = new AdaptiveExecutor("test", 1, 2);
+        try {
+            AtomicBoolean daemon = new AtomicBoolean(true);
+            CountDownLatch latch = new CountDownLatch(10);
+            for (int i = 0; i < 10; i++) {
+                executor.execute(() -> {
+                    if (!Thread.currentThread().isDaemon()) {
+                        daemon.set(false);
+                    }
+                    latch.countDown();
+                });
+            }
+            assertTrue(latch.await(10, TimeUnit.SECONDS));
+            assertTrue(daemon.get());
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (executor.getPoolSize() > 0 && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            assertSame(0, executor.getPoolSize());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void should_keep_adding_threads_while_the_throughput_improves() {
+        AdaptiveExecutor executor = new AdaptiveExecutor("test", 1, 8);
+        try {
+            assertSame(4, executor.getCorePoolSize());
+            assertSame(5, executor.adjust(4, 8, 100));
+            assertSame(6, executor.adjust(5, 10, 100));
+            assertSame(7, executor.adjust(6, 12, 100));
+            // No longer improved
+            assertSame(6, executor.adjust(7, 12, 100));
+            assertSame(5, executor.adjust(6, 13, 100));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void should_turn_back_at_the_bounds() {
+        AdaptiveExecutor executor = new AdaptiveExecutor("test", 1, 2);
+        try {
+            assertSame(2, executor.getCorePoolSize());
+            assertSame(1, executor.adjust(2, 4, 100));
+            assertSame(2, executor.adjust(1, 8, 100));
+            assertSame(1, executor.adjust(2, 16, 100));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2016 Tsuyoshi Murakami
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.tmurakami.dexopener;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class ApkReaderTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void should_read_the_stored_and_the_compressed_dex_entries() throws IOException {
+        Random random = new Random(0);
+        byte[] stored = new byte[12345];
+        random.nextBytes(stored);
+        byte[] compressed = new byte[23456];
+        random.nextBytes(compressed);
+        File apk = folder.newFile();
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(apk))) {
+            out.setComment("comment");
+            out.putNextEntry(new ZipEntry("AndroidManifest.xml"));
+            out.write(new byte[100]);
+            ZipEntry entry = new ZipEntry("classes.dex");
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(stored.length);
+            CRC32 crc = new CRC32();
+            crc.update(stored);
+            entry.setCrc(crc.getValue());
+            // Aligning the data like zipalign
+            entry.setExtra(new byte[]{(byte) 0xd9, (byte) 0xd9, 3, 0, 0, 0, 0});
+            entry.setComment("comment");
+            out.putNextEntry(entry);
+            out.write(stored);
+            out.putNextEntry(new ZipEntry("classes2.dex"));
+            out.write(compressed);
+        }
+        try (ApkReader reader = new ApkReader(apk)) {
+            assertArrayEquals(stored, reader.read("classes.dex"));
+            assertArrayEquals(compressed, reader.read("classes2.dex"));
+        }
+    }
+
+    @Test
+    public void should_read_the_crcs_of_the_dex_entries() throws IOException {
+        File apk = folder.newFile();
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(apk))) {
+            out.putNextEntry(new ZipEntry("classes.dex"));
+            out.write(new byte[]{1});
+            out.putNextEntry(new ZipEntry("res/classes.png"));
+            out.write(new byte[]{2});
+            out.putNextEntry(new ZipEntry("classes2.dex"));
+            out.write(new byte[]{3});
+        }
+        Map<String, Long> expected = new LinkedHashMap<>();
+        try (ZipFile zipFile = new ZipFile(apk)) {
+            expected.put("classes.dex", zipFile.getEntry("classes.dex").getCrc());
+            expected.put("classes2.dex", zipFile.getEntry("classes2.dex").getCrc());
+        }
+        try (ApkReader reader = new ApkReader(apk)) {
+            assertEquals(expected, reader.getDexEntryCrcs());
+        }
+    }
+
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2016 Tsuyoshi Murakami
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.tmurakami.dexopener;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class BatchIndexTest {
+
+    @Test
+    public void should_get_the_id_of_the_batch_containing_the_given_class() {
+        List<List<String>> names = new ArrayList<>();
+        Random random = new Random(0);
+        for (int i = 0; i < 10; i++) {
+            List<String> batch = new ArrayList<>();
+            for (int j = 0; j < 100; j++) {
+                batch.add("Lfoo/Bar" + random.nextInt() + '_' + i + '_' + j + ';');
+            }
+            names.add(batch);
+        }
+        BatchIndex index = new BatchIndex(names);
+        assertEquals(1000, index.size());
+        for (int i = 0; i < 10; i++) {
+            for (String name : names.get(i)) {
+                assertSame(i, index.get(name));
+            }
+        }
+    }
+
+    @Test
+    public void should_get_minus_one_if_the_given_class_is_not_found() {
+        BatchIndex index = new BatchIndex(asList(asList("Lfoo/B;", "Lfoo/Bar;"),
+                                                 Collections.singletonList("Lfoo/D;")));
+        assertSame(-1, index.get(""));
+        assertSame(-1, index.get("Lfoo/A;"));
+        assertSame(-1, index.get("Lfoo/Ba;"));
+        assertSame(-1, index.get("Lfoo/Bar"));
+        assertSame(-1, index.get("Lfoo/Bar;;"));
+        assertSame(-1, index.get("Lfoo/C;"));
+        assertSame(-1, index.get("Lfoo/E;"));
+        assertSame(0, index.get("Lfoo/B;"));
+        assertSame(0, index.get("Lfoo/Bar;"));
+        assertSame(1, index.get("Lfoo/D;"));
+    }
+
+    @Test
+    public void should_get_the_id_of_the_batch_containing_the_class_with_a_non_latin1_name() {
+        BatchIndex index = new BatchIndex(asList(Collections.singletonList("Lfoo/\u00e9;"),
+                                                 Collections.singletonList("Lfoo/\u3042;")));
+        assertSame(0, index.get("Lfoo/\u00e9;"));
+        assertSame(1, index.get("Lfoo/\u3042;"));
+        assertSame(-1, index.get("Lfoo/\u3041;"));
+    }
+
+    @Test
+    public void should_get_minus_one_if_empty() {
+        assertSame(-1, new BatchIndex(Collections.<List<String>>emptyList()).get("Lfoo/Bar;"));
+    }
+
+}
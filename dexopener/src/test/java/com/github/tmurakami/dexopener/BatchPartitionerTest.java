@@ -0,0 +1,175 @@
+/*
+ * Copyright 2016 Tsuyoshi Murakami
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.tmurakami.dexopener;
+
+import com.github.tmurakami.dexopener.repackaged.org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import com.github.tmurakami.dexopener.repackaged.org.jf.dexlib2.iface.ClassDef;
+
+import org.jf.dexlib2.AccessFlags;
+import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.iface.instruction.Instruction;
+import org.jf.dexlib2.immutable.ImmutableClassDef;
+import org.jf.dexlib2.immutable.ImmutableDexFile;
+import org.jf.dexlib2.immutable.ImmutableMethod;
+import org.jf.dexlib2.immutable.ImmutableMethodImplementation;
+import org.jf.dexlib2.immutable.instruction.ImmutableInstruction10x;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.withSettings;
+
+public class BatchPartitionerTest {
+
+    @Test
+    public void should_estimate_the_cost_from_the_size_of_the_code() throws IOException {
+        Set<ImmutableClassDef> classes = new HashSet<>();
+        classes.add(newClassDef("Lfoo/Small;", 1));
+        classes.add(newClassDef("Lfoo/Large;", 1000));
+        long small = -1;
+        long large = -1;
+        for (ClassDef def : toDexBackedClasses(classes)) {
+            if (def.getType().equals("Lfoo/Small;")) {
+                small = BatchPartitioner.getCost(def);
+            } else {
+                large = BatchPartitioner.getCost(def);
+            }
+        }
+        assertTrue(small > 0);
+        assertTrue(large - small >= 999 * 2); // 2 bytes per nop instruction
+    }
+
+    @Test
+    public void should_split_the_classes_into_batches_of_roughly_equal_cost() throws IOException {
+        Set<ImmutableClassDef> classes = new HashSet<>();
+        for (int i = 0; i < 40; i++) {
+            classes.add(newClassDef("Lfoo/Small" + i + ';', 1));
+        }
+        for (int i = 0; i < 4; i++) {
+            classes.add(newClassDef("Lfoo/Large" + i + ';', 2000));
+        }
+        Iterable<? extends ClassDef> defs = toDexBackedClasses(classes);
+        long total = 0;
+        for (ClassDef def : defs) {
+            total += BatchPartitioner.getCost(def);
+        }
+        long maxCost = total / 4;
+        List<? extends BatchPartitioner.Partition<? extends ClassDef>> partitions =
+                BatchPartitioner.partition(defs, maxCost);
+        int classCount = 0;
+        for (BatchPartitioner.Partition<? extends ClassDef> p : partitions) {
+            classCount += p.classes.size();
+            assertTrue(p.cost <= maxCost || p.classes.size() == 1);
+            long sum = 0;
+            for (ClassDef def : p.classes) {
+                sum += BatchPartitioner.getCost(def);
+            }
+            assertEquals(sum, p.cost);
+        }
+        assertSame(44, classCount);
+        assertTrue(partitions.size() >= 4 && partitions.size() <= 6);
+    }
+
+    @Test
+    public void should_fall_back_to_the_fixed_number_of_classes_per_batch() {
+        List<ClassDef> classes = new ArrayList<>();
+        for (int i = 0; i < 250; i++) {
+            ClassDef def = mock(ClassDef.class, withSettings().stubOnly());
+            given(def.getType()).willReturn("Lfoo/Bar" + i + ';');
+            classes.add(def);
+        }
+        List<BatchPartitioner.Partition<ClassDef>> partitions =
+                BatchPartitioner.partition(classes);
+        assertSame(3, partitions.size());
+        assertSame(BatchPartitioner.MAX_CLASSES_PER_BATCH, partitions.get(0).classes.size());
+        assertSame(BatchPartitioner.MAX_CLASSES_PER_BATCH, partitions.get(1).classes.size());
+        assertSame(50, partitions.get(2).classes.size());
+    }
+
+    @Test
+    public void should_keep_the_related_classes_in_the_same_batch() throws IOException {
+        Set<ImmutableClassDef> classes = new HashSet<>();
+        // Unrelated classes in another package
+        for (int i = 0; i < 8; i++) {
+            classes.add(newClassDef("Lbar/Baz" + i + ';', "Ljava/lang/Object;", 1));
+        }
+        classes.add(newClassDef("Lfoo/Base;", "Ljava/lang/Object;", 1));
+        classes.add(newClassDef("Lfoo/Sub;", "Lfoo/Base;", 1));
+        classes.add(newClassDef("Lfoo/Sub$Inner;", "Ljava/lang/Object;", 1));
+        classes.add(newClassDef("Lfoo/Sub$1;", "Ljava/lang/Object;", 1));
+        classes.add(newClassDef("Lfoo/Sub$Inner$2;", "Ljava/lang/Object;", 1));
+        Iterable<? extends ClassDef> defs = toDexBackedClasses(classes);
+        long cost = 0;
+        for (ClassDef def : defs) {
+            cost = Math.max(cost, BatchPartitioner.getCost(def));
+        }
+        List<? extends BatchPartitioner.Partition<? extends ClassDef>> partitions =
+                BatchPartitioner.partition(defs, cost * 5);
+        assertSame(3, partitions.size());
+        for (BatchPartitioner.Partition<? extends ClassDef> p : partitions) {
+            Set<String> packages = new HashSet<>();
+            for (ClassDef def : p.classes) {
+                packages.add(def.getType().substring(0, 4));
+            }
+            // The classes in foo are put in one batch, and the others are put in the other two.
+            assertSame(1, packages.size());
+            if (packages.contains("Lfoo")) {
+                assertSame(5, p.classes.size());
+                assertEquals("Lfoo/Base;", p.classes.get(0).getType());
+                assertEquals("Lfoo/Sub;", p.classes.get(1).getType());
+            }
+        }
+    }
+
+    private static ImmutableClassDef newClassDef(String type, int instructionCount) {
+        return newClassDef(type, "Ljava/lang/Object;", instructionCount);
+    }
+
+    private static ImmutableClassDef newClassDef(String type,
+                                                 String superclass,
+                                                 int instructionCount) {
+        List<Instruction> instructions = new ArrayList<>();
+        for (int i = 0; i < instructionCount - 1; i++) {
+            instructions.add(new ImmutableInstruction10x(Opcode.NOP));
+        }
+        instructions.add(new ImmutableInstruction10x(Opcode.RETURN_VOID));
+        ImmutableMethod method = new ImmutableMethod(
+                type, "f", null, "V", AccessFlags.PUBLIC.getValue(), null, null,
+                new ImmutableMethodImplementation(1, instructions, null, null));
+        return new ImmutableClassDef(type, AccessFlags.PUBLIC.getValue(), superclass,
+                                     null, null, null, null, Collections.singleton(method));
+    }
+
+    private static Iterable<? extends ClassDef> toDexBackedClasses(Set<ImmutableClassDef> classes)
+            throws IOException {
+        byte[] bytecode =
+                DexPoolUtils.toBytecode(new ImmutableDexFile(Opcodes.getDefault(), classes));
+        return new DexBackedDexFile(null, bytecode).getClasses();
+    }
+
+}
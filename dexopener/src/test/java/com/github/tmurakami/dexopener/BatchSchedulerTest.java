@@ -0,0 +1,170 @@
+/*
+ * Copyright 2016 Tsuyoshi Murakami
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.tmurakami.dexopener;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class BatchSchedulerTest {
+
+    @Test
+    public void should_run_the_most_costly_task_first() {
+        List<Runnable> runnables = new ArrayList<>();
+        BatchScheduler scheduler = new BatchScheduler(runnables::add, null);
+        List<Integer> results = Collections.synchronizedList(new ArrayList<>());
+        for (int cost : new int[]{1, 3, 2, 3}) {
+            scheduler.schedule(() -> results.add(cost), cost);
+        }
+        for (Runnable r : runnables) {
+            r.run();
+        }
+        assertEquals(Arrays.asList(3, 3, 2, 1), results);
+    }
+
+    @Test
+    public void should_run_the_requested_task_in_the_calling_thread_only_once() throws Exception {
+        List<Runnable> runnables = new ArrayList<>();
+        BatchScheduler scheduler = new BatchScheduler(runnables::add, null);
+        List<String> results = Collections.synchronizedList(new ArrayList<>());
+        scheduler.schedule(() -> results.add("a"), 2);
+        RunnableFuture<Boolean> b = scheduler.schedule(() -> results.add("b"), 1);
+        // A loader thread that waits for `b` runs it first.
+        b.run();
+        assertTrue(b.get());
+        for (Runnable r : runnables) {
+            r.run();
+        }
+        assertEquals(Arrays.asList("b", "a"), results);
+    }
+
+    @Test
+    public void should_run_the_tasks_of_the_same_cost_in_submission_order() {
+        // With two workers, running the longest task first takes 4 units of time, while running
+        // them in submission order takes 6 units. The order is checked instead of the time.
+        List<Runnable> runnables = new ArrayList<>();
+        BatchScheduler scheduler = new BatchScheduler(runnables::add, null);
+        List<String> results = new ArrayList<>();
+        String[] names = {"a", "b", "c", "d", "e"};
+        long[] costs = {1, 1, 1, 1, 4};
+        for (int i = 0; i < names.length; i++) {
+            String name = names[i];
+            scheduler.schedule(() -> results.add(name), costs[i]);
+        }
+        // Like ClassPath, all tasks are queued before the workers start.
+        for (Runnable r : runnables) {
+            r.run();
+        }
+        assertEquals(Arrays.asList("e", "a", "b", "c", "d"), results);
+    }
+
+    @Test
+    public void should_run_the_load_stage_in_the_calling_thread_if_not_yet_started()
+            throws Exception {
+        List<Runnable> transforms = new ArrayList<>();
+        List<Runnable> loads = new ArrayList<>();
+        BatchScheduler scheduler = new BatchScheduler(transforms::add, loads::add);
+        AtomicInteger loadCount = new AtomicInteger();
+        RunnableFuture<String> future = scheduler.scheduleStages(() -> {
+            Thread transformThread = Thread.currentThread();
+            return () -> {
+                loadCount.incrementAndGet();
+                return transformThread.getName();
+            };
+        }, 1);
+        assertSame(1, scheduler.getQueueDepth(BatchScheduler.TRANSFORM_STAGE));
+        Thread worker = new Thread(transforms.get(0), "worker");
+        worker.start();
+        worker.join();
+        assertSame(0, scheduler.getQueueDepth(BatchScheduler.TRANSFORM_STAGE));
+        assertSame(1, scheduler.getQueueDepth(BatchScheduler.LOAD_STAGE));
+        // A loader thread that waits for the batch runs its load stage.
+        future.run();
+        assertEquals("worker", future.get());
+        for (Runnable r : loads) {
+            r.run();
+        }
+        assertSame(1, loadCount.get());
+        assertSame(0, scheduler.getQueueDepth(BatchScheduler.LOAD_STAGE));
+        assertSame(1, scheduler.getMaxQueueDepth(BatchScheduler.TRANSFORM_STAGE));
+        assertSame(1, scheduler.getMaxQueueDepth(BatchScheduler.LOAD_STAGE));
+    }
+
+    @Test
+    public void should_run_all_stages_in_the_calling_thread_if_not_yet_started()
+            throws Exception {
+        List<Runnable> transforms = new ArrayList<>();
+        List<Runnable> loads = new ArrayList<>();
+        BatchScheduler scheduler = new BatchScheduler(transforms::add, loads::add);
+        RunnableFuture<Thread> future =
+                scheduler.scheduleStages(() -> Thread::currentThread, 1);
+        future.run();
+        assertSame(Thread.currentThread(), future.get());
+        for (Runnable r : transforms) {
+            r.run();
+        }
+        assertTrue(loads.isEmpty());
+    }
+
+    @Test
+    public void should_hand_the_load_stages_over_to_the_load_executor() throws Exception {
+        // The worker of the transform stage does not wait for the load stages, so it can
+        // transform the next batch while the previous one is being loaded.
+        List<Runnable> transforms = new ArrayList<>();
+        List<Runnable> loads = new ArrayList<>();
+        BatchScheduler scheduler = new BatchScheduler(transforms::add, loads::add);
+        List<String> stages = new ArrayList<>();
+        List<RunnableFuture<String>> futures = new ArrayList<>();
+        for (String name : new String[]{"a", "b"}) {
+            futures.add(scheduler.scheduleStages(() -> {
+                stages.add("transform " + name);
+                return () -> {
+                    stages.add("load " + name);
+                    return name;
+                };
+            }, 1));
+        }
+        assertSame(2, transforms.size());
+        for (Runnable r : transforms) {
+            r.run();
+        }
+        assertEquals(Arrays.asList("transform a", "transform b"), stages);
+        assertSame(2, loads.size());
+        assertSame(2, scheduler.getQueueDepth(BatchScheduler.LOAD_STAGE));
+        assertFalse(futures.get(0).isDone());
+        for (Runnable r : loads) {
+            r.run();
+        }
+        assertEquals(Arrays.asList("transform a", "transform b", "load a", "load b"), stages);
+        assertEquals("a", futures.get(0).get());
+        assertEquals("b", futures.get(1).get());
+        assertSame(0, scheduler.getQueueDepth(BatchScheduler.LOAD_STAGE));
+        assertSame(2, scheduler.getMaxQueueDepth(BatchScheduler.TRANSFORM_STAGE));
+        assertSame(2, scheduler.getMaxQueueDepth(BatchScheduler.LOAD_STAGE));
+    }
+
+}
@@ -21,9 +21,20 @@ import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.junit.MockitoJUnitRunner;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
 import test.MyClass;
 
 import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.BDDMockito.given;
 import static org.mockito.BDDMockito.then;
 
@@ -42,6 +53,35 @@ public class ClassInjectorTest {
         assertSame(MyClass.class, loader.loadClass("foo.Bar"));
     }
 
+    @Test
+    public void should_get_the_Class_from_the_parent_if_it_is_not_in_the_class_path()
+            throws ClassNotFoundException {
+        ClassLoader loader = new ClassLoader() {
+        };
+        ClassLoaderHelper.setParent(loader, new ClassInjector(loader, classPath));
+        String className = MyClass.class.getName();
+        assertSame(MyClass.class, loader.loadClass(className));
+        then(classPath).should().loadClass(className, loader);
+    }
+
+    @Test
+    public void should_get_the_Class_from_the_boot_class_loader_if_there_is_no_parent()
+            throws ClassNotFoundException {
+        ClassLoader loader = new ClassLoader(null) {
+        };
+        ClassInjector injector = new ClassInjector(loader, classPath);
+        assertSame(String.class, injector.loadClass("java.lang.String", true));
+        then(classPath).should().loadClass("java.lang.String", loader);
+    }
+
+    @Test(expected = ClassNotFoundException.class)
+    public void should_throw_ClassNotFoundException_if_there_is_no_parent()
+            throws ClassNotFoundException {
+        ClassLoader loader = new ClassLoader(null) {
+        };
+        new ClassInjector(loader, classPath).loadClass("foo.Bar", false);
+    }
+
     @Test(expected = ClassNotFoundException.class)
     public void should_throw_ClassNotFoundException_if_the_given_name_could_not_be_found()
             throws ClassNotFoundException {
@@ -55,4 +95,32 @@ public class ClassInjectorTest {
         }
     }
 
+    @Test
+    public void should_load_the_classes_in_parallel() throws Exception {
+        ClassLoader loader = new ClassLoader() {
+        };
+        ClassInjector injector = new ClassInjector(loader, classPath);
+        int threadCount = 8;
+        // Every load waits until all the threads are loading at the same time.
+        CountDownLatch inside = new CountDownLatch(threadCount);
+        given(classPath.loadClass(anyString(), eq(loader))).will(invocation -> {
+            inside.countDown();
+            assertTrue(inside.await(10, TimeUnit.SECONDS));
+            return MyClass.class;
+        });
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        try {
+            List<Future<Class<?>>> futures = new ArrayList<>();
+            for (int i = 0; i < threadCount; i++) {
+                String className = "foo.Bar" + i;
+                futures.add(executor.submit(() -> injector.loadClass(className)));
+            }
+            for (Future<Class<?>> future : futures) {
+                assertSame(MyClass.class, future.get(20, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
 }
@@ -16,7 +16,6 @@
 
 package com.github.tmurakami.dexopener;
 
-import org.jf.dexlib2.analysis.reflection.util.ReflectionUtils;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
@@ -28,17 +27,17 @@ import test.MyClass;
 import static org.junit.Assert.assertSame;
 
 @RunWith(Parameterized.class)
-public class DexNameFilterTest {
+public class ClassNameFilterTest {
 
     private static final boolean ALLOW = true;
     private static final boolean DENY = false;
 
-    private final DexNameFilter testTarget = new DexNameFilter("test", MyClass.class);
+    private final ClassNameFilter testTarget = new ClassNameFilter("test", MyClass.class);
 
     private final String className;
     private final boolean expected;
 
-    public DexNameFilterTest(String className, boolean expected) {
+    public ClassNameFilterTest(String className, boolean expected) {
         this.className = className;
         this.expected = expected;
     }
@@ -55,12 +54,18 @@ public class DexNameFilterTest {
                              new Object[]{"android.databinding.DataBindingComponent", ALLOW},
                              new Object[]{"android.databinding.DataBindingUtil", ALLOW},
                              new Object[]{"android.databinding.generated.C", ALLOW},
-                             new Object[]{"test.Foo", ALLOW});
+                             new Object[]{"test.Foo", ALLOW},
+                             new Object[]{"test.foo.BR", DENY},
+                             new Object[]{"test.foo.R$id", DENY},
+                             new Object[]{"test.foo.Bar$R", ALLOW},
+                             new Object[]{"test.foo.BuildConfigs", ALLOW},
+                             new Object[]{"test.foo.Rx", ALLOW},
+                             new Object[]{"testing.Foo", DENY});
     }
 
     @Test
     public void should_get_the_same_value_as_the_expected_value() {
-        assertSame(expected, testTarget.apply(ReflectionUtils.javaToDexName(className)));
+        assertSame(expected, testTarget.apply(className));
     }
 
 }
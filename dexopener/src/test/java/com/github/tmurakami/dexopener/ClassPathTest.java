@@ -18,9 +18,15 @@ package com.github.tmurakami.dexopener;
 
 import android.content.Context;
 import android.content.pm.ApplicationInfo;
+import android.os.Build;
 
 import com.github.tmurakami.dexopener.repackaged.com.google.common.base.Predicate;
+import com.github.tmurakami.dexopener.repackaged.org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import com.github.tmurakami.dexopener.repackaged.org.jf.dexlib2.iface.ClassDef;
+import com.github.tmurakami.dexopener.repackaged.org.jf.dexlib2.iface.DexFile;
+import com.google.common.io.ByteStreams;
 
+import org.jf.dexlib2.AccessFlags;
 import org.jf.dexlib2.Opcodes;
 import org.jf.dexlib2.immutable.ImmutableClassDef;
 import org.jf.dexlib2.immutable.ImmutableDexFile;
@@ -32,21 +38,36 @@ import org.mockito.Mock;
 import org.mockito.junit.MockitoJUnitRunner;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executor;
-import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
 import test.MyClass;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.AdditionalAnswers.answer;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
@@ -72,50 +93,516 @@ public class ClassPathTest {
     @Mock
     private Executor executor;
 
+    private final ClassLoader loader = new ClassLoader() {
+    };
+
     @Test
     public void should_get_null_if_the_given_name_does_not_pass_through_the_class_name_filter() {
-        ClassPath classPath = new ClassPath(context, classNameFilter, dexFileLoader, executor);
+        ClassPath classPath = newClassPath(executor, false);
         assertNull(classPath.loadClass("foo.Bar", null));
     }
 
-    @SuppressWarnings("deprecation")
     @Test
     public void should_get_the_Class_with_the_given_name() throws IOException {
-        given(classNameFilter.apply(anyString())).willReturn(true);
+        List<String> classNames = givenApk(101);
+        givenDexFiles();
+        ClassPath classPath = newClassPath(executor, false);
+        for (String className : classNames) {
+            assertSame(MyClass.class, classPath.loadClass(className, loader));
+        }
+        // Two scans and two batches
+        then(executor).should(times(4)).execute(any(Runnable.class));
+    }
+
+    @Test
+    public void should_get_null_if_the_class_has_nothing_to_be_opened() throws IOException {
+        ClassPath classPath = newClassPathWithOpenClass(Build.VERSION_CODES.LOLLIPOP);
+        assertNull(classPath.loadClass("foo.bar.Open", loader));
+        assertSame(MyClass.class, classPath.loadClass("foo.bar.Final", loader));
+    }
+
+    @Test
+    public void should_get_the_Class_that_has_nothing_to_be_opened_if_Dalvik() throws IOException {
+        ClassPath classPath = newClassPathWithOpenClass(Build.VERSION_CODES.LOLLIPOP - 1);
+        assertSame(MyClass.class, classPath.loadClass("foo.bar.Open", loader));
+        assertSame(MyClass.class, classPath.loadClass("foo.bar.Final", loader));
+    }
+
+    @SuppressWarnings("deprecation")
+    @Test
+    public void should_scan_the_dex_entries_and_transform_the_batches_in_the_background()
+            throws IOException {
+        List<String> classNames = givenApk(101);
+        Set<String> srcPaths = Collections.synchronizedSet(new HashSet<>());
+        given(dexFileLoader.loadDex(anyString(), anyString()))
+                .will(answer((String src, String out) -> {
+                    srcPaths.add(src);
+                    return newDexFile();
+                }));
+        List<Thread> threads = Collections.synchronizedList(new ArrayList<>());
+        Executor background = command -> {
+            Thread t = new Thread(command);
+            threads.add(t);
+            t.start();
+        };
+        ClassPath classPath = newClassPath(background, false);
+        for (String className : classNames) {
+            assertSame(MyClass.class, classPath.loadClass(className, loader));
+        }
+        assertSame(4, threads.size());
+        assertSame(2, srcPaths.size());
+    }
+
+    @SuppressWarnings("deprecation")
+    @Test
+    public void should_transform_all_batches_before_any_class_is_requested_if_prewarmed()
+            throws Exception {
+        givenApk(101);
+        CountDownLatch loadStarted = new CountDownLatch(1);
+        CountDownLatch loadReleased = new CountDownLatch(1);
+        given(dexFileLoader.loadDex(anyString(), anyString())).will(answer((String s, String o) -> {
+            loadStarted.countDown();
+            loadReleased.await();
+            return mock(dalvik.system.DexFile.class, withSettings().stubOnly());
+        }));
+        ExecutorService background = Executors.newCachedThreadPool();
+        try {
+            ClassPath classPath = newClassPath(background, false);
+            assertSame(-1, classPath.getBatchCount());
+            classPath.prewarm();
+            assertTrue(loadStarted.await(10, TimeUnit.SECONDS));
+            assertFalse(classPath.awaitBatches(10, TimeUnit.MILLISECONDS));
+            loadReleased.countDown();
+            assertTrue(classPath.awaitBatches(10, TimeUnit.SECONDS));
+            assertSame(2, classPath.getBatchCount());
+            assertSame(2, classPath.getCompletedBatchCount());
+        } finally {
+            background.shutdownNow();
+        }
+    }
+
+    @Test
+    public void should_throw_the_failure_of_the_prewarm_while_waiting() throws Exception {
         ApplicationInfo ai = new ApplicationInfo();
         given(context.getApplicationInfo()).willReturn(ai);
         ai.dataDir = folder.newFolder().getCanonicalPath();
-        int classCount = 101; // MAX_CLASSES_PER_DEX_FILE + 1
-        List<String> classNames = new ArrayList<>(classCount);
-        for (int i = 0; i < classCount; i++) {
-            classNames.add("foo.Bar" + i);
+        ai.sourceDir = new File(folder.getRoot(), "missing.apk").getCanonicalPath();
+        ClassPath classPath = newClassPath(Runnable::run, false);
+        classPath.prewarm();
+        try {
+            classPath.awaitBatches(10, TimeUnit.SECONDS);
+            fail();
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof IOException);
         }
-        Set<ImmutableClassDef> classes = new HashSet<>();
-        for (String className : classNames) {
-            classes.add(new ImmutableClassDef('L' + className.replace('.', '/') + ';', 0,
-                                              null, null, null, null, null, null));
+    }
+
+    @SuppressWarnings("deprecation")
+    @Test
+    public void should_throw_the_failure_of_a_batch_while_waiting() throws Exception {
+        givenApk(101);
+        IllegalStateException failure = new IllegalStateException();
+        given(dexFileLoader.loadDex(anyString(), anyString())).willThrow(failure);
+        ClassPath classPath = newClassPath(Runnable::run, false);
+        classPath.prewarm();
+        try {
+            classPath.awaitBatches(10, TimeUnit.SECONDS);
+            fail();
+        } catch (IllegalStateException e) {
+            assertSame(failure, e);
         }
-        ImmutableDexFile dexFile = new ImmutableDexFile(Opcodes.getDefault(), classes);
-        File zip = folder.newFile();
-        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip))) {
-            out.putNextEntry(new ZipEntry("classes.dex"));
-            out.write(DexPoolUtils.toBytecode(dexFile));
+        assertSame(2, classPath.getFailedBatchCount());
+        assertSame(0, classPath.getCompletedBatchCount());
+        try {
+            classPath.isReady();
+            fail();
+        } catch (IllegalStateException e) {
+            assertSame(failure, e);
         }
-        ai.sourceDir = zip.getCanonicalPath();
-        ClassLoader loader = new ClassLoader() {
-        };
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void should_throw_IllegalStateException_while_waiting_if_lazy() throws Exception {
+        newClassPath(executor, true).awaitBatches(10, TimeUnit.SECONDS);
+    }
+
+    @SuppressWarnings("deprecation")
+    @Test
+    public void should_transform_only_the_requested_batch_if_lazy() throws IOException {
+        List<String> classNames = givenApk(101);
+        AtomicInteger loadCount = new AtomicInteger();
+        given(dexFileLoader.loadDex(anyString(), anyString()))
+                .will(answer((src, out) -> {
+                    loadCount.incrementAndGet();
+                    return newDexFile();
+                }));
+        ClassPath classPath = newClassPath(executor, true);
+        assertSame(MyClass.class, classPath.loadClass(classNames.get(0), loader));
+        assertSame(MyClass.class, classPath.loadClass(classNames.get(1), loader));
+        then(executor).shouldHaveNoInteractions();
+        assertSame(1, loadCount.get());
+    }
+
+    @Test
+    public void should_collect_the_batches_only_once_even_if_loaded_in_parallel()
+            throws Exception {
+        List<String> classNames = givenApk(101);
+        givenDexFiles();
+        ClassPath classPath = newClassPath(executor, false);
+        int threadCount = 8;
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService threads = Executors.newFixedThreadPool(threadCount);
+        try {
+            List<Future<Class>> futures = new ArrayList<>();
+            for (int i = 0; i < threadCount; i++) {
+                String className = classNames.get(i);
+                futures.add(threads.submit(() -> {
+                    start.await();
+                    return classPath.loadClass(className, loader);
+                }));
+            }
+            start.countDown();
+            for (Future<Class> future : futures) {
+                assertSame(MyClass.class, future.get(10, TimeUnit.SECONDS));
+            }
+        } finally {
+            threads.shutdown();
+        }
+        // Two scans and two batches
+        then(executor).should(times(4)).execute(any(Runnable.class));
+    }
+
+    @SuppressWarnings("deprecation")
+    @Test
+    public void should_not_block_the_loads_of_the_classes_in_the_other_batches() throws Exception {
+        List<String> classNames = givenApk(101);
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch released = new CountDownLatch(1);
+        AtomicBoolean first = new AtomicBoolean(true);
+        given(dexFileLoader.loadDex(anyString(), anyString()))
+                .will(answer((src, out) -> {
+                    if (first.getAndSet(false)) {
+                        // The first batch takes a long time to be transformed.
+                        entered.countDown();
+                        released.await();
+                    }
+                    return newDexFile();
+                }));
+        ClassPath classPath = newClassPath(executor, true);
+        ExecutorService threads = Executors.newFixedThreadPool(9);
+        try {
+            Future<Class> blocked = threads.submit(() -> classPath.loadClass(classNames.get(0),
+                                                                             loader));
+            assertTrue(entered.await(10, TimeUnit.SECONDS));
+            // The classes in the other batch are loaded in parallel by 8 threads.
+            int half = classNames.size() / 2;
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                int offset = half + i;
+                futures.add(threads.submit(() -> {
+                    for (int j = offset; j < classNames.size(); j += 8) {
+                        assertSame(MyClass.class, classPath.loadClass(classNames.get(j), loader));
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(10, TimeUnit.SECONDS);
+            }
+            assertFalse(blocked.isDone());
+            released.countDown();
+            assertSame(MyClass.class, blocked.get(10, TimeUnit.SECONDS));
+        } finally {
+            released.countDown();
+            threads.shutdown();
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    @Test
+    public void should_define_a_class_in_one_thread_at_a_time() throws Exception {
+        List<String> classNames = givenApk(101);
+        String className = classNames.get(0);
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch released = new CountDownLatch(1);
+        AtomicInteger defining = new AtomicInteger();
+        AtomicInteger maxDefining = new AtomicInteger();
+        given(dexFileLoader.loadDex(anyString(), anyString())).will(answer((String s, String o) -> {
+            dalvik.system.DexFile file = mock(dalvik.system.DexFile.class,
+                                              withSettings().stubOnly());
+            given(file.loadClass(className, loader)).will(invocation -> {
+                maxDefining.accumulateAndGet(defining.incrementAndGet(), Math::max);
+                entered.countDown();
+                released.await();
+                defining.decrementAndGet();
+                return MyClass.class;
+            });
+            return file;
+        }));
+        ClassPath classPath = newClassPath(executor, true);
+        ExecutorService threads = Executors.newFixedThreadPool(2);
+        try {
+            Future<Class> first = threads.submit(() -> classPath.loadClass(className, loader));
+            assertTrue(entered.await(10, TimeUnit.SECONDS));
+            AtomicReference<Thread> secondThread = new AtomicReference<>();
+            Future<Class> second = threads.submit(() -> {
+                secondThread.set(Thread.currentThread());
+                return classPath.loadClass(className, loader);
+            });
+            // Wait for the second thread to be blocked on the lock for the class.
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (secondThread.get() == null
+                   || secondThread.get().getState() != Thread.State.BLOCKED) {
+                assertTrue(System.nanoTime() < deadline);
+                Thread.sleep(1);
+            }
+            released.countDown();
+            assertSame(MyClass.class, first.get(10, TimeUnit.SECONDS));
+            assertSame(MyClass.class, second.get(10, TimeUnit.SECONDS));
+        } finally {
+            released.countDown();
+            threads.shutdown();
+        }
+        assertSame(1, maxDefining.get());
+    }
+
+    @SuppressWarnings("deprecation")
+    @Test
+    public void should_define_the_different_classes_in_parallel() throws Exception {
+        List<String> classNames = givenApk(101);
+        int threadCount = 8;
+        // Every definition waits until all the threads are defining their classes at a time.
+        CountDownLatch inside = new CountDownLatch(threadCount);
+        given(dexFileLoader.loadDex(anyString(), anyString())).will(answer((String s, String o) -> {
+            dalvik.system.DexFile file = mock(dalvik.system.DexFile.class,
+                                              withSettings().stubOnly());
+            given(file.loadClass(anyString(), eq(loader))).will(invocation -> {
+                inside.countDown();
+                assertTrue(inside.await(10, TimeUnit.SECONDS));
+                return MyClass.class;
+            });
+            return file;
+        }));
+        ClassPath classPath = newClassPath(executor, true);
+        ExecutorService threads = Executors.newFixedThreadPool(threadCount);
+        try {
+            List<Future<Class>> futures = new ArrayList<>();
+            for (int i = 0; i < threadCount; i++) {
+                String className = classNames.get(i);
+                futures.add(threads.submit(() -> classPath.loadClass(className, loader)));
+            }
+            for (Future<Class> future : futures) {
+                assertSame(MyClass.class, future.get(20, TimeUnit.SECONDS));
+            }
+        } finally {
+            threads.shutdown();
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    @Test
+    public void should_count_the_batches_that_the_load_of_a_class_waited_for() throws IOException {
+        List<String> classNames = givenApk(101);
+        ClassPath classPath = newClassPath(executor, true);
+        String first = classNames.get(0);
+        String last = classNames.get(100);
         given(dexFileLoader.loadDex(anyString(), anyString()))
                 .will(answer((src, out) -> {
                     dalvik.system.DexFile file = mock(dalvik.system.DexFile.class,
                                                       withSettings().stubOnly());
-                    given(file.loadClass(anyString(), eq(loader))).willReturn(MyClass.class);
+                    // Loading the first class also loads the last class in the other batch, like
+                    // resolving its superclass.
+                    given(file.loadClass(anyString(), eq(loader))).will(answer(
+                            (String name, ClassLoader l) -> name.equals(first)
+                                                            ? classPath.loadClass(last, l)
+                                                            : MyClass.class));
                     return file;
                 }));
-        ClassPath classPath = new ClassPath(context, classNameFilter, dexFileLoader, executor);
+        assertSame(MyClass.class, classPath.loadClass(first, loader));
+        assertSame(1, classPath.getForcedBatchCount(2));
+        assertSame(MyClass.class, classPath.loadClass(classNames.get(1), loader));
+        assertSame(1, classPath.getForcedBatchCount(2));
+        assertSame(0, classPath.getForcedBatchCount(1));
+    }
+
+    @SuppressWarnings("deprecation")
+    @Test
+    public void should_reuse_the_dex_files_generated_by_the_previous_process() throws IOException {
+        List<String> classNames = givenApk(101);
+        List<String> srcPaths = new ArrayList<>();
+        given(dexFileLoader.loadDex(anyString(), anyString()))
+                .will(answer((String src, String out) -> {
+                    srcPaths.add(src);
+                    return newDexFile();
+                }));
+        for (String className : classNames) {
+            newClassPath(executor, false).loadClass(className, loader);
+        }
+        File firstSrc = new File(srcPaths.get(0));
+        assertTrue(firstSrc.setLastModified(0));
+        assertSame(MyClass.class,
+                   newClassPath(executor, false).loadClass(classNames.get(0), loader));
+        assertEquals(firstSrc.getCanonicalPath(), srcPaths.get(srcPaths.size() - 1));
+        assertEquals(0, firstSrc.lastModified());
+        // The dex files must be regenerated if the root package has been changed.
+        ClassPath classPath = new ClassPath(context,
+                                            "foo.bar",
+                                            classNameFilter,
+                                            dexFileLoader,
+                                            executor,
+                                            new ClassPath.Options());
+        assertSame(MyClass.class, classPath.loadClass(classNames.get(0), loader));
+        assertNotEquals(0, firstSrc.lastModified());
+    }
+
+    @Test
+    public void should_record_the_statistics_of_each_stage() throws IOException {
+        List<String> classNames = givenApk(101);
+        givenDexFiles();
+        ClassPath classPath = newClassPath(executor, false);
+        for (String className : classNames) {
+            classPath.loadClass(className, loader);
+        }
+        Stats stats = classPath.getStats();
+        assertEquals(101, stats.get(Stats.SCANNED_CLASSES));
+        assertEquals(101, stats.get(Stats.ACCEPTED_CLASSES));
+        assertTrue(stats.get(Stats.BYTES_READ) > 0);
+        assertTrue(stats.get(Stats.BYTES_WRITTEN) > 0);
+        assertEquals(0, stats.get(Stats.CACHE_HITS));
+        assertEquals(2, stats.getCount(Stats.READ));
+        assertEquals(2, stats.getCount(Stats.SCAN));
+        assertEquals(2, stats.getCount(Stats.TRANSFORM));
+        assertEquals(2, stats.getCount(Stats.LOAD));
+        // Every batch has been transformed by the loading threads, since the executor does not
+        // run them.
+        assertTrue(stats.getCount(Stats.WAIT) >= 2);
+        // The batches generated above are reused without reading the APK.
+        ClassPath reused = newClassPath(executor, false);
+        assertSame(MyClass.class, reused.loadClass(classNames.get(0), loader));
+        stats = reused.getStats();
+        assertEquals(2, stats.get(Stats.CACHE_HITS));
+        assertEquals(0, stats.get(Stats.BYTES_READ));
+        assertEquals(0, stats.getCount(Stats.TRANSFORM));
+        assertEquals(1, stats.getCount(Stats.LOAD));
+    }
+
+    @SuppressWarnings("deprecation")
+    @Test
+    public void should_patch_each_dex_entry_as_a_single_batch() throws IOException {
+        List<String> classNames = givenApk(1001);
+        given(dexFileLoader.loadDex(anyString(), anyString()))
+                .will(answer((String src, String out) -> {
+                    DexFile file;
+                    try (InputStream in = new FileInputStream(src)) {
+                        file = new DexBackedDexFile(null, ByteStreams.toByteArray(in));
+                    }
+                    Set<? extends ClassDef> classes = file.getClasses();
+                    assertTrue(classes.size() >= 500);
+                    for (ClassDef def : classes) {
+                        assertFalse(AccessFlags.FINAL.isSet(def.getAccessFlags()));
+                    }
+                    return newDexFile();
+                }));
+        ClassPath.Options options = new ClassPath.Options();
+        options.patchDexEntries = true;
+        ClassPath classPath =
+                new ClassPath(context, "foo", classNameFilter, dexFileLoader, executor, options);
         for (String className : classNames) {
             assertSame(MyClass.class, classPath.loadClass(className, loader));
         }
-        then(executor).should(times(2)).execute(any(RunnableFuture.class));
+        // Two scans and two batches
+        then(executor).should(times(4)).execute(any(Runnable.class));
+    }
+
+    private ClassPath newClassPathWithOpenClass(int sdkInt) throws IOException {
+        Set<ImmutableClassDef> classes = new HashSet<>();
+        classes.add(new ImmutableClassDef("Lfoo/bar/Open;", AccessFlags.PUBLIC.getValue(),
+                                          null, null, null, null, null, null));
+        classes.add(new ImmutableClassDef("Lfoo/bar/Final;", AccessFlags.FINAL.getValue(),
+                                          null, null, null, null, null, null));
+        File apk = folder.newFile();
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(apk))) {
+            out.putNextEntry(new ZipEntry("classes.dex"));
+            out.write(DexPoolUtils.toBytecode(new ImmutableDexFile(Opcodes.getDefault(),
+                                                                   classes)));
+        }
+        givenApk(apk);
+        givenDexFiles();
+        ClassPath.Options options = new ClassPath.Options();
+        options.lazy = true;
+        options.sdkInt = sdkInt;
+        return new ClassPath(context, "foo", classNameFilter, dexFileLoader, executor, options);
+    }
+
+    /**
+     * Makes the app an APK of the given number of final classes, which are all accepted by the
+     * filter.
+     */
+    private List<String> givenApk(int classCount) throws IOException {
+        List<String> classNames = createClassNames(classCount);
+        givenApk(createApk(classNames));
+        return classNames;
+    }
+
+    private void givenApk(File apk) throws IOException {
+        given(classNameFilter.apply(anyString())).willReturn(true);
+        ApplicationInfo ai = new ApplicationInfo();
+        given(context.getApplicationInfo()).willReturn(ai);
+        ai.dataDir = folder.newFolder().getCanonicalPath();
+        ai.sourceDir = apk.getCanonicalPath();
+    }
+
+    /**
+     * Makes every loaded batch define {@link MyClass} for any name.
+     */
+    @SuppressWarnings("deprecation")
+    private void givenDexFiles() throws IOException {
+        given(dexFileLoader.loadDex(anyString(), anyString())).will(invocation -> newDexFile());
+    }
+
+    @SuppressWarnings("deprecation")
+    private dalvik.system.DexFile newDexFile() {
+        dalvik.system.DexFile file = mock(dalvik.system.DexFile.class, withSettings().stubOnly());
+        given(file.loadClass(anyString(), eq(loader))).willReturn(MyClass.class);
+        return file;
+    }
+
+    private ClassPath newClassPath(Executor executor, boolean lazy) {
+        ClassPath.Options options = new ClassPath.Options();
+        options.lazy = lazy;
+        return new ClassPath(context, "foo", classNameFilter, dexFileLoader, executor, options);
+    }
+
+    private static List<String> createClassNames(int classCount) {
+        List<String> classNames = new ArrayList<>(classCount);
+        for (int i = 0; i < classCount; i++) {
+            classNames.add("foo.bar.Baz" + i);
+        }
+        return classNames;
+    }
+
+    private File createApk(List<String> classNames) throws IOException {
+        // Each dex file is transformed as at least one batch.
+        int half = classNames.size() / 2;
+        File zip = folder.newFile();
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip))) {
+            out.putNextEntry(new ZipEntry("classes.dex"));
+            out.write(toBytecode(classNames.subList(0, half)));
+            out.putNextEntry(new ZipEntry("classes2.dex"));
+            out.write(toBytecode(classNames.subList(half, classNames.size())));
+        }
+        return zip;
+    }
+
+    private static byte[] toBytecode(List<String> classNames) throws IOException {
+        Set<ImmutableClassDef> classes = new HashSet<>();
+        for (String className : classNames) {
+            // Only the classes that have the final modifier are opened.
+            classes.add(new ImmutableClassDef('L' + className.replace('.', '/') + ';',
+                                              AccessFlags.FINAL.getValue(),
+                                              null, null, null, null, null, null));
+        }
+        return DexPoolUtils.toBytecode(new ImmutableDexFile(Opcodes.getDefault(), classes));
     }
 
 }
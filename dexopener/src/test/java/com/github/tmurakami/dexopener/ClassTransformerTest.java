@@ -38,6 +38,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.Collections;
 import java.util.Set;
 
@@ -45,6 +46,7 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.AdditionalAnswers.answer;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.BDDMockito.given;
 
@@ -73,7 +75,7 @@ public class ClassTransformerTest {
                                                                     Collections.singleton(def)));
         given(dexFileLoader.loadDex(srcPathCaptor.capture(), anyString()))
                 .will(answer((String src, String out) -> {
-                    assertTrue(src.endsWith("tmp.dex"));
+                    assertTrue(src.endsWith(".src.dex"));
                     assertTrue(out.endsWith(".dex"));
                     DexFile file;
                     try (InputStream in = new FileInputStream(src)) {
@@ -84,14 +86,76 @@ public class ClassTransformerTest {
                     assertFalse(AccessFlags.FINAL.isSet(classes.iterator().next().getAccessFlags()));
                     return dexFile;
                 }));
-        DexFile file = new DexBackedDexFile(null, bytes);
-        ClassTransformer transformer = new ClassTransformer(file.getOpcodes(),
-                                                            file.getClasses(),
-                                                            folder.newFolder(),
+        File dir = folder.newFolder();
+        ClassTransformer transformer = new ClassTransformer(bytes,
+                                                            new int[]{0},
+                                                            ClassTransformer.WRITE_SUBSET,
+                                                            new File(dir, "classes.src.dex"),
+                                                            new File(dir, "classes.dex"),
                                                             dexFileLoader);
         assertSame(dexFile, transformer.call());
         assertTrue(transformer.getClasses().isEmpty());
-        assertFalse(new File(srcPathCaptor.getValue()).exists());
+        // The source file is kept to be reused by the subsequent processes.
+        assertTrue(new File(srcPathCaptor.getValue()).isFile());
+        assertSame(1, dir.listFiles().length);
+    }
+
+    @Test
+    public void should_load_the_non_final_classes_from_memory() throws IOException {
+        ImmutableClassDef def = new ImmutableClassDef("Lfoo/Bar;",
+                                                      AccessFlags.FINAL.getValue(),
+                                                      "Ljava/lang/Object;",
+                                                      null, null, null, null, null);
+        byte[] bytes = DexPoolUtils.toBytecode(new ImmutableDexFile(Opcodes.getDefault(),
+                                                                    Collections.singleton(def)));
+        given(dexFileLoader.canLoadInMemory()).willReturn(true);
+        given(dexFileLoader.loadDex(any(ByteBuffer.class)))
+                .will(answer((ByteBuffer buffer) -> {
+                    byte[] dex = new byte[buffer.remaining()];
+                    buffer.get(dex);
+                    Set<? extends ClassDef> classes = new DexBackedDexFile(null, dex).getClasses();
+                    assertSame(1, classes.size());
+                    assertFalse(AccessFlags.FINAL.isSet(classes.iterator().next().getAccessFlags()));
+                    return dexFile;
+                }));
+        File dir = folder.newFolder();
+        ClassTransformer transformer = new ClassTransformer(bytes,
+                                                            new int[]{0},
+                                                            ClassTransformer.WRITE_SUBSET,
+                                                            new File(dir, "classes.src.dex"),
+                                                            new File(dir, "classes.dex"),
+                                                            dexFileLoader);
+        assertSame(dexFile, transformer.call());
+        assertSame(0, dir.listFiles().length);
+    }
+
+    @Test
+    public void should_load_the_classes_from_a_file_if_they_cannot_be_loaded_from_memory()
+            throws IOException {
+        ImmutableClassDef def = new ImmutableClassDef("Lfoo/Bar;",
+                                                      AccessFlags.FINAL.getValue(),
+                                                      "Ljava/lang/Object;",
+                                                      null, null, null, null, null);
+        byte[] bytes = DexPoolUtils.toBytecode(new ImmutableDexFile(Opcodes.getDefault(),
+                                                                    Collections.singleton(def)));
+        given(dexFileLoader.canLoadInMemory()).willReturn(true);
+        given(dexFileLoader.loadDex(any(ByteBuffer.class))).willReturn(null);
+        given(dexFileLoader.loadDex(srcPathCaptor.capture(), anyString())).willReturn(dexFile);
+        File dir = folder.newFolder();
+        ClassTransformer transformer = new ClassTransformer(bytes,
+                                                            new int[]{0},
+                                                            ClassTransformer.WRITE_SUBSET,
+                                                            new File(dir, "classes.src.dex"),
+                                                            new File(dir, "classes.dex"),
+                                                            dexFileLoader);
+        assertSame(dexFile, transformer.call());
+        byte[] written;
+        try (InputStream in = new FileInputStream(srcPathCaptor.getValue())) {
+            written = ByteStreams.toByteArray(in);
+        }
+        Set<? extends ClassDef> classes = new DexBackedDexFile(null, written).getClasses();
+        assertSame(1, classes.size());
+        assertFalse(AccessFlags.FINAL.isSet(classes.iterator().next().getAccessFlags()));
     }
 
 }
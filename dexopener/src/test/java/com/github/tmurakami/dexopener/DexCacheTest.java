@@ -0,0 +1,155 @@
+/*
+ * Copyright 2016 Tsuyoshi Murakami
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.tmurakami.dexopener;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class DexCacheTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void should_get_the_batches_put_for_the_same_apk_and_root_package()
+            throws IOException {
+        File dir = folder.newFolder();
+        File apk = newApk(new byte[]{0});
+        List<DexCache.Batch> batches = asList(
+                new DexCache.Batch("classes.dex", 0, asList("Lb;", "La;"), new int[]{1, 0}, 2),
+                new DexCache.Batch("classes2.dex", 0, singletonList("Lc;"), new int[]{3}, 1));
+        new DexCache(dir, apk, "foo", false, false).putBatches(getDexEntryCrcs(apk), batches);
+        List<DexCache.Batch> out = new DexCache(dir, apk, "foo", false, false).getBatches();
+        assertSame(2, out.size());
+        for (int i = 0; i < 2; i++) {
+            assertEquals(batches.get(i).entryName, out.get(i).entryName);
+            assertEquals(batches.get(i).index, out.get(i).index);
+            assertEquals(batches.get(i).cost, out.get(i).cost);
+        }
+        // The classes are sorted by name.
+        assertEquals(asList("La;", "Lb;"), out.get(0).dexNames);
+        assertArrayEquals(new int[]{0, 1}, out.get(0).classDefIndices);
+        assertEquals(singletonList("Lc;"), out.get(1).dexNames);
+        assertArrayEquals(new int[]{3}, out.get(1).classDefIndices);
+    }
+
+    @Test
+    public void should_clear_the_cache_if_the_root_package_has_been_changed() throws IOException {
+        File dir = folder.newFolder();
+        File apk = newApk(new byte[]{0});
+        DexCache cache = new DexCache(dir, apk, "foo", false, false);
+        DexCache.Batch batch =
+                new DexCache.Batch("classes.dex", 0, singletonList("La;"), new int[]{0}, 1);
+        cache.putBatches(getDexEntryCrcs(apk), singletonList(batch));
+        assertTrue(cache.getSourceFile(batch).createNewFile());
+        assertNull(new DexCache(dir, apk, "bar", false, false).getBatches());
+        assertSame(0, dir.listFiles().length);
+    }
+
+    @Test
+    public void should_clear_the_cache_if_the_mode_has_been_changed() throws IOException {
+        File dir = folder.newFolder();
+        File apk = newApk(new byte[]{0});
+        DexCache cache = new DexCache(dir, apk, "foo", false, false);
+        DexCache.Batch batch =
+                new DexCache.Batch("classes.dex", 0, singletonList("La;"), new int[]{0}, 1);
+        cache.putBatches(getDexEntryCrcs(apk), singletonList(batch));
+        assertTrue(cache.getSourceFile(batch).createNewFile());
+        assertNull(new DexCache(dir, apk, "foo", true, false).getBatches());
+        assertSame(0, dir.listFiles().length);
+    }
+
+    @Test
+    public void should_clear_the_cache_if_the_classes_to_be_skipped_have_been_changed()
+            throws IOException {
+        File dir = folder.newFolder();
+        File apk = newApk(new byte[]{0});
+        DexCache cache = new DexCache(dir, apk, "foo", false, false);
+        DexCache.Batch batch =
+                new DexCache.Batch("classes.dex", 0, singletonList("La;"), new int[]{0}, 1);
+        cache.putBatches(getDexEntryCrcs(apk), singletonList(batch));
+        assertTrue(cache.getSourceFile(batch).createNewFile());
+        assertNull(new DexCache(dir, apk, "foo", false, true).getBatches());
+        assertSame(0, dir.listFiles().length);
+    }
+
+    @Test
+    public void should_keep_the_cache_if_the_dex_entries_have_not_been_changed()
+            throws IOException {
+        File dir = folder.newFolder();
+        File apk = newApk(new byte[]{0});
+        DexCache cache = new DexCache(dir, apk, "foo", false, false);
+        DexCache.Batch batch =
+                new DexCache.Batch("classes.dex", 0, singletonList("La;"), new int[]{0}, 1);
+        cache.putBatches(getDexEntryCrcs(apk), singletonList(batch));
+        assertTrue(cache.getSourceFile(batch).createNewFile());
+        // Reinstalling the same APK
+        assertTrue(apk.setLastModified(apk.lastModified() + 1000));
+        assertSame(1, cache.getBatches().size());
+        assertTrue(cache.getSourceFile(batch).isFile());
+        // Installing a new APK
+        writeApk(apk, new byte[]{1});
+        assertNull(cache.getBatches());
+        assertSame(0, dir.listFiles().length);
+    }
+
+    @Test
+    public void should_name_the_files_after_the_dex_entry_and_the_index_of_the_batch() {
+        DexCache cache = new DexCache(new File("dir"), new File("apk"), "foo", false, false);
+        DexCache.Batch batch =
+                new DexCache.Batch("classes2.dex", 3, singletonList("La;"), new int[]{0}, 1);
+        assertEquals("classes2-3.src.dex", cache.getSourceFile(batch).getName());
+        assertEquals("classes2-3.dex", cache.getOutputFile(batch).getName());
+    }
+
+    private File newApk(byte[] dex) throws IOException {
+        File apk = folder.newFile();
+        writeApk(apk, dex);
+        return apk;
+    }
+
+    private static void writeApk(File apk, byte[] dex) throws IOException {
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(apk))) {
+            out.putNextEntry(new ZipEntry("classes.dex"));
+            out.write(dex);
+        }
+    }
+
+    private static Map<String, Long> getDexEntryCrcs(File apk) throws IOException {
+        try (ApkReader reader = new ApkReader(apk)) {
+            return reader.getDexEntryCrcs();
+        }
+    }
+
+}
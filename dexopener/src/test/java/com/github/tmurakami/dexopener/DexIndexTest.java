@@ -0,0 +1,57 @@
+/*
+ * Copyright 2016 Tsuyoshi Murakami
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.tmurakami.dexopener;
+
+import com.github.tmurakami.dexopener.repackaged.org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import com.github.tmurakami.dexopener.repackaged.org.jf.dexlib2.iface.ClassDef;
+
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.immutable.ImmutableClassDef;
+import org.jf.dexlib2.immutable.ImmutableDexFile;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+
+public class DexIndexTest {
+
+    @Test
+    public void should_find_the_classes_whose_names_start_with_the_given_prefixes()
+            throws IOException {
+        Set<ImmutableClassDef> classes = new HashSet<>();
+        for (String type : new String[]{
+                "Lfoo/A;", "Lfoo/bar/B;", "Lfoobar/C;", "Lbar/D;", "Lbaz/é/E;", "Lbaz/F;"}) {
+            classes.add(new ImmutableClassDef(type, 0, "Ljava/lang/Object;",
+                                              null, null, null, null, null));
+        }
+        byte[] bytes =
+                DexPoolUtils.toBytecode(new ImmutableDexFile(Opcodes.getDefault(), classes));
+        int[] indices = DexIndex.findClassDefs(bytes, Arrays.asList("Lfoo/", "Lbaz/é/"));
+        Set<String> types = new HashSet<>();
+        DexBackedDexFile dexFile = new DexBackedDexFile(null, bytes);
+        for (ClassDef def : DexIndex.getClasses(dexFile, indices)) {
+            types.add(def.getType());
+        }
+        assertEquals(new HashSet<>(Arrays.asList("Lfoo/A;", "Lfoo/bar/B;", "Lbaz/é/E;")),
+                     types);
+    }
+
+}
@@ -60,4 +60,14 @@ public class DexOpenerTest {
         DexOpener.install(instrumentation);
     }
 
+    @Test(expected = IllegalArgumentException.class)
+    public void should_throw_IllegalArgumentException_if_the_pool_size_bounds_are_invalid() {
+        DexOpener.builder(instrumentation).poolSize(2, 1);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void should_throw_IllegalStateException_if_both_lazy_and_prewarm_are_enabled() {
+        DexOpener.builder(instrumentation).lazy(true).prewarm(true).install();
+    }
+
 }
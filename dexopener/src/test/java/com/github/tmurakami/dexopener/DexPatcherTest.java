@@ -0,0 +1,173 @@
+/*
+ * Copyright 2016 Tsuyoshi Murakami
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.tmurakami.dexopener;
+
+import com.github.tmurakami.dexopener.repackaged.org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import com.github.tmurakami.dexopener.repackaged.org.jf.dexlib2.iface.ClassDef;
+
+import org.jf.dexlib2.AccessFlags;
+import org.jf.dexlib2.AnnotationVisibility;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.immutable.ImmutableAnnotation;
+import org.jf.dexlib2.immutable.ImmutableAnnotationElement;
+import org.jf.dexlib2.immutable.ImmutableClassDef;
+import org.jf.dexlib2.immutable.ImmutableDexFile;
+import org.jf.dexlib2.immutable.ImmutableField;
+import org.jf.dexlib2.immutable.ImmutableMethod;
+import org.jf.dexlib2.immutable.value.ImmutableAnnotationEncodedValue;
+import org.jf.dexlib2.immutable.value.ImmutableArrayEncodedValue;
+import org.jf.dexlib2.immutable.value.ImmutableBooleanEncodedValue;
+import org.jf.dexlib2.immutable.value.ImmutableIntEncodedValue;
+import org.jf.dexlib2.immutable.value.ImmutableLongEncodedValue;
+import org.jf.dexlib2.immutable.value.ImmutableNullEncodedValue;
+import org.jf.dexlib2.immutable.value.ImmutableStringEncodedValue;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Adler32;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class DexPatcherTest {
+
+    private static final int FINAL = AccessFlags.FINAL.getValue();
+    private static final int PUBLIC_STATIC_FINAL =
+            AccessFlags.PUBLIC.getValue() | AccessFlags.STATIC.getValue() | FINAL;
+
+    @Test
+    public void should_open_only_the_given_classes() throws Exception {
+        Set<ImmutableClassDef> classes = new LinkedHashSet<>();
+        for (String name : new String[]{"Lfoo/A;", "Lfoo/B;", "Lfoo/Outer$C;", "Lfoo/Outer$D;"}) {
+            classes.add(newClass(name, name));
+        }
+        byte[] dex = DexPoolUtils.toBytecode(new ImmutableDexFile(Opcodes.getDefault(), classes));
+        Map<String, Integer> indexMap = getClassDefIndices(dex);
+        int[] classDefIndices = {indexMap.get("Lfoo/A;"), indexMap.get("Lfoo/Outer$C;")};
+        byte[] patched = DexPatcher.patch(dex, classDefIndices);
+        assertNotNull(patched);
+        assertHeader(patched);
+        for (ClassDef def : new DexBackedDexFile(null, patched).getClasses()) {
+            String type = def.getType();
+            boolean opened = type.equals("Lfoo/A;") || type.equals("Lfoo/Outer$C;");
+            assertEquals(type, !opened, FinalModifierRemoverModule.hasFinalModifier(def));
+            // Nothing but the final modifiers has been changed.
+            int classFlags = PUBLIC_STATIC_FINAL & ~(opened ? FINAL : 0);
+            assertEquals(type, classFlags, def.getAccessFlags());
+            assertEquals(type,
+                         AccessFlags.STATIC.getValue(),
+                         def.getStaticFields().iterator().next().getAccessFlags());
+            int constructorFlags = AccessFlags.CONSTRUCTOR.getValue() | (opened ? 0 : FINAL);
+            assertEquals(type,
+                         constructorFlags,
+                         def.getDirectMethods().iterator().next().getAccessFlags());
+        }
+        // The input is not changed.
+        assertArrayEquals(DexPoolUtils.toBytecode(new ImmutableDexFile(Opcodes.getDefault(),
+                                                                       classes)), dex);
+    }
+
+    @Test
+    public void should_not_open_the_inner_class_annotation_shared_with_the_other_classes()
+            throws Exception {
+        Set<ImmutableClassDef> classes = new LinkedHashSet<>();
+        // The annotation_item is shared by the classes since their annotations are the same.
+        classes.add(newClass("Lfoo/Outer$A;", "Lfoo/Outer$Inner;"));
+        classes.add(newClass("Lfoo/Outer$B;", "Lfoo/Outer$Inner;"));
+        byte[] dex = DexPoolUtils.toBytecode(new ImmutableDexFile(Opcodes.getDefault(), classes));
+        Map<String, Integer> indexMap = getClassDefIndices(dex);
+        assertNull(DexPatcher.patch(dex, new int[]{indexMap.get("Lfoo/Outer$A;")}));
+        byte[] patched = DexPatcher.patch(dex, new int[]{0, 1});
+        assertNotNull(patched);
+        for (ClassDef def : new DexBackedDexFile(null, patched).getClasses()) {
+            assertEquals(def.getType(), false, FinalModifierRemoverModule.hasFinalModifier(def));
+        }
+    }
+
+    @Test
+    public void should_not_patch_the_big_endian_dex_file() throws IOException {
+        byte[] dex = DexPoolUtils.toBytecode(new ImmutableDexFile(
+                Opcodes.getDefault(), Collections.singleton(newClass("Lfoo/A;", "Lfoo/A;"))));
+        // ENDIAN_CONSTANT in big endian
+        System.arraycopy(new byte[]{0x12, 0x34, 0x56, 0x78}, 0, dex, 0x28, 4);
+        assertNull(DexPatcher.patch(dex, new int[]{0}));
+    }
+
+    private static ImmutableClassDef newClass(String type, String innerClassName) {
+        List<ImmutableAnnotationElement> elements = new ArrayList<>();
+        // The values to be skipped before the accessFlags
+        elements.add(new ImmutableAnnotationElement(
+                "a", new ImmutableArrayEncodedValue(Arrays.asList(
+                ImmutableNullEncodedValue.INSTANCE,
+                ImmutableBooleanEncodedValue.TRUE_VALUE,
+                new ImmutableLongEncodedValue(Long.MIN_VALUE),
+                new ImmutableAnnotationEncodedValue(
+                        "Lfoo/Annotation;",
+                        Collections.singleton(new ImmutableAnnotationElement(
+                                "value", new ImmutableStringEncodedValue("value"))))))));
+        elements.add(new ImmutableAnnotationElement(
+                "accessFlags", new ImmutableIntEncodedValue(PUBLIC_STATIC_FINAL)));
+        elements.add(new ImmutableAnnotationElement(
+                "name", new ImmutableStringEncodedValue(innerClassName)));
+        Set<ImmutableAnnotation> annotations = new LinkedHashSet<>();
+        annotations.add(new ImmutableAnnotation(
+                AnnotationVisibility.SYSTEM, "Ldalvik/annotation/InnerClass;", elements));
+        annotations.add(new ImmutableAnnotation(
+                AnnotationVisibility.RUNTIME, "Lfoo/Annotation;", null));
+        ImmutableField field = new ImmutableField(
+                type, "f", "I", AccessFlags.STATIC.getValue(), null, null, null);
+        List<ImmutableMethod> methods = new ArrayList<>();
+        // The access flags of a constructor need more than one byte.
+        methods.add(new ImmutableMethod(type, "<init>", null, "V",
+                                        AccessFlags.CONSTRUCTOR.getValue() | FINAL,
+                                        null, null, null));
+        methods.add(new ImmutableMethod(type, "f", null, "V", FINAL, null, null, null));
+        return new ImmutableClassDef(type, PUBLIC_STATIC_FINAL, "Ljava/lang/Object;", null, null,
+                                     annotations, Collections.singleton(field), methods);
+    }
+
+    private static Map<String, Integer> getClassDefIndices(byte[] dex) {
+        Map<String, Integer> indexMap = new HashMap<>();
+        List<? extends ClassDef> classSection = new DexBackedDexFile(null, dex).getClassSection();
+        for (int i = 0, size = classSection.size(); i < size; i++) {
+            indexMap.put(classSection.get(i).getType(), i);
+        }
+        return indexMap;
+    }
+
+    private static void assertHeader(byte[] dex) throws NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-1");
+        digest.update(dex, 32, dex.length - 32);
+        assertArrayEquals(digest.digest(), Arrays.copyOfRange(dex, 12, 32));
+        Adler32 adler32 = new Adler32();
+        adler32.update(dex, 12, dex.length - 12);
+        assertEquals((int) adler32.getValue(), DexIndex.readInt(dex, 8));
+    }
+
+}
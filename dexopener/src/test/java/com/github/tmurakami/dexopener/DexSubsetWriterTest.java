@@ -0,0 +1,417 @@
+/*
+ * Copyright 2016 Tsuyoshi Murakami
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.tmurakami.dexopener;
+
+import com.github.tmurakami.dexopener.repackaged.org.jf.dexlib2.rewriter.DexRewriter;
+import com.google.common.io.Files;
+
+import org.jf.dexlib2.AccessFlags;
+import org.jf.dexlib2.AnnotationVisibility;
+import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.builder.Label;
+import org.jf.dexlib2.builder.MethodImplementationBuilder;
+import org.jf.dexlib2.builder.SwitchLabelElement;
+import org.jf.dexlib2.builder.instruction.BuilderArrayPayload;
+import org.jf.dexlib2.builder.instruction.BuilderInstruction10x;
+import org.jf.dexlib2.builder.instruction.BuilderInstruction11n;
+import org.jf.dexlib2.builder.instruction.BuilderInstruction11x;
+import org.jf.dexlib2.builder.instruction.BuilderInstruction21c;
+import org.jf.dexlib2.builder.instruction.BuilderInstruction21s;
+import org.jf.dexlib2.builder.instruction.BuilderInstruction22c;
+import org.jf.dexlib2.builder.instruction.BuilderInstruction31c;
+import org.jf.dexlib2.builder.instruction.BuilderInstruction31t;
+import org.jf.dexlib2.builder.instruction.BuilderInstruction35c;
+import org.jf.dexlib2.builder.instruction.BuilderInstruction3rc;
+import org.jf.dexlib2.builder.instruction.BuilderPackedSwitchPayload;
+import org.jf.dexlib2.builder.instruction.BuilderSparseSwitchPayload;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.dexbacked.raw.util.DexAnnotator;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.iface.DexFile;
+import org.jf.dexlib2.immutable.ImmutableAnnotation;
+import org.jf.dexlib2.immutable.ImmutableAnnotationElement;
+import org.jf.dexlib2.immutable.ImmutableClassDef;
+import org.jf.dexlib2.immutable.ImmutableDexFile;
+import org.jf.dexlib2.immutable.ImmutableField;
+import org.jf.dexlib2.immutable.ImmutableMethod;
+import org.jf.dexlib2.immutable.ImmutableMethodParameter;
+import org.jf.dexlib2.immutable.reference.ImmutableFieldReference;
+import org.jf.dexlib2.immutable.reference.ImmutableMethodReference;
+import org.jf.dexlib2.immutable.reference.ImmutableStringReference;
+import org.jf.dexlib2.immutable.reference.ImmutableTypeReference;
+import org.jf.dexlib2.immutable.value.ImmutableAnnotationEncodedValue;
+import org.jf.dexlib2.immutable.value.ImmutableArrayEncodedValue;
+import org.jf.dexlib2.immutable.value.ImmutableBooleanEncodedValue;
+import org.jf.dexlib2.immutable.value.ImmutableEnumEncodedValue;
+import org.jf.dexlib2.immutable.value.ImmutableFieldEncodedValue;
+import org.jf.dexlib2.immutable.value.ImmutableIntEncodedValue;
+import org.jf.dexlib2.immutable.value.ImmutableLongEncodedValue;
+import org.jf.dexlib2.immutable.value.ImmutableMethodEncodedValue;
+import org.jf.dexlib2.immutable.value.ImmutableNullEncodedValue;
+import org.jf.dexlib2.immutable.value.ImmutableStringEncodedValue;
+import org.jf.dexlib2.immutable.value.ImmutableTypeEncodedValue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Adler32;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DexSubsetWriterTest {
+
+    private static final int PUBLIC = AccessFlags.PUBLIC.getValue();
+    private static final int STATIC = AccessFlags.STATIC.getValue();
+    private static final int FINAL = AccessFlags.FINAL.getValue();
+    private static final String OBJECT = "Ljava/lang/Object;";
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void should_write_the_same_classes_as_DexPool() throws IOException {
+        byte[] dex = DexPoolUtils.toBytecode(new ImmutableDexFile(Opcodes.getDefault(),
+                                                                  createClasses()));
+        Map<String, Integer> indexMap = getClassDefIndices(dex);
+        List<String[]> subsets = Arrays.asList(
+                new String[]{"Lfoo/Bar;"},
+                new String[]{"Lfoo/Bar$Inner;", "Lfoo/Base;"},
+                new String[]{"Lfoo/Base;", "Lfoo/Iface;", "Lfoo/Bar;", "Lfoo/Bar$Inner;"},
+                indexMap.keySet().toArray(new String[0]));
+        for (String[] subset : subsets) {
+            int[] classDefIndices = new int[subset.length];
+            for (int i = 0; i < subset.length; i++) {
+                classDefIndices[i] = indexMap.get(subset[i]);
+            }
+            byte[] written = DexSubsetWriter.write(dex, classDefIndices);
+            assertNotNull(written);
+            assertValid(written);
+            byte[] expected = rewrite(dex, classDefIndices);
+            assertArrayEquals(Arrays.toString(subset), normalize(expected), normalize(written));
+        }
+    }
+
+    @Test
+    public void should_write_the_valid_header() throws Exception {
+        byte[] dex = DexPoolUtils.toBytecode(new ImmutableDexFile(Opcodes.getDefault(),
+                                                                  createClasses()));
+        int classCount = getClassDefIndices(dex).size();
+        // The header is checked directly, since reading the classes ignores most of its fields.
+        for (int size = 1; size <= classCount; size++) {
+            int[] classDefIndices = new int[size];
+            for (int i = 0; i < size; i++) {
+                classDefIndices[i] = i;
+            }
+            byte[] written = DexSubsetWriter.write(dex, classDefIndices);
+            assertNotNull(written);
+            String message = "size " + size;
+            ByteBuffer header = ByteBuffer.wrap(written).order(ByteOrder.LITTLE_ENDIAN);
+            assertArrayEquals(message, Arrays.copyOf(dex, 8), Arrays.copyOf(written, 8));
+            Adler32 adler32 = new Adler32();
+            adler32.update(written, 12, written.length - 12);
+            assertEquals(message, (int) adler32.getValue(), header.getInt(0x08));
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update(written, 32, written.length - 32);
+            assertArrayEquals(message, digest.digest(), Arrays.copyOfRange(written, 12, 32));
+            assertEquals(message, written.length, header.getInt(0x20)); // file_size
+            assertEquals(message, 0x70, header.getInt(0x24)); // header_size
+            assertEquals(message, 0x12345678, header.getInt(0x28)); // endian_tag
+            assertEquals(message, 0, header.getInt(0x2c)); // link_size
+            assertEquals(message, 0, header.getInt(0x30)); // link_off
+            int dataOff = header.getInt(0x6c);
+            assertEquals(message, written.length, dataOff + header.getInt(0x68)); // data_size
+            int mapOff = header.getInt(0x34);
+            assertTrue(message, mapOff >= dataOff && mapOff < written.length && mapOff % 4 == 0);
+            // The string_ids, type_ids, proto_ids, field_ids, method_ids and class_defs follow the
+            // header in this order.
+            int[] itemSizes = {4, 4, 12, 8, 8, 32};
+            int expectedOff = 0x70;
+            for (int i = 0; i < itemSizes.length; i++) {
+                int count = header.getInt(0x38 + i * 8);
+                int off = header.getInt(0x3c + i * 8);
+                if (count == 0) {
+                    assertEquals(message, 0, off);
+                } else {
+                    assertEquals(message, expectedOff, off);
+                    expectedOff += count * itemSizes[i];
+                }
+            }
+            assertEquals(message, size, header.getInt(0x60)); // class_defs_size
+            assertTrue(message, expectedOff <= dataOff);
+        }
+    }
+
+    @Test
+    public void should_not_write_the_big_endian_dex_file() throws IOException {
+        byte[] dex = DexPoolUtils.toBytecode(new ImmutableDexFile(Opcodes.getDefault(),
+                                                                  createClasses()));
+        // ENDIAN_CONSTANT in big endian
+        System.arraycopy(new byte[]{0x12, 0x34, 0x56, 0x78}, 0, dex, 0x28, 4);
+        assertNull(DexSubsetWriter.write(dex, new int[]{0}));
+    }
+
+    @Test
+    public void should_not_write_the_method_that_has_an_unknown_instruction() throws IOException {
+        MethodImplementationBuilder builder = new MethodImplementationBuilder(1);
+        builder.addInstruction(new BuilderInstruction21s(Opcode.CONST_16, 0, 0x7e7e));
+        builder.addInstruction(new BuilderInstruction10x(Opcode.RETURN_VOID));
+        ImmutableMethod method = new ImmutableMethod("Lfoo/Bar;", "f", null, "V", FINAL, null,
+                                                     null, builder.getMethodImplementation());
+        ImmutableClassDef def = newClass("Lfoo/Bar;", FINAL, OBJECT, null, null, null,
+                                         Collections.singleton(method));
+        byte[] dex = DexPoolUtils.toBytecode(new ImmutableDexFile(Opcodes.getDefault(),
+                                                                  Collections.singleton(def)));
+        assertNotNull(DexSubsetWriter.write(dex, new int[]{0}));
+        // Replace the opcode of the const/16 with the unused opcode 0x3e.
+        for (int i = 0; ; i++) {
+            if (dex[i] == 0x13 && dex[i + 1] == 0 && dex[i + 2] == 0x7e && dex[i + 3] == 0x7e) {
+                dex[i] = 0x3e;
+                break;
+            }
+        }
+        assertNull(DexSubsetWriter.write(dex, new int[]{0}));
+    }
+
+    private static Set<ImmutableClassDef> createClasses() {
+        Set<ImmutableClassDef> classes = new LinkedHashSet<>();
+        // The classes not to be written, which use the ids sorted before those of the others.
+        for (String type : new String[]{"La/A;", "Lz/Z;"}) {
+            classes.add(newClass(type, FINAL, OBJECT, null, null, null,
+                                 Collections.singleton(newMethod(type, "a" + type.charAt(1)))));
+        }
+        classes.add(newClass("Lfoo/Iface;",
+                             PUBLIC | AccessFlags.INTERFACE.getValue()
+                             | AccessFlags.ABSTRACT.getValue(),
+                             OBJECT, null, null, null,
+                             Collections.singleton(new ImmutableMethod(
+                                     "Lfoo/Iface;", "run", null, "V",
+                                     PUBLIC | AccessFlags.ABSTRACT.getValue(),
+                                     null, null, null))));
+        classes.add(newClass("Lfoo/Base;", PUBLIC | AccessFlags.ABSTRACT.getValue(), OBJECT,
+                             null, null, null,
+                             Collections.singleton(newMethod("Lfoo/Base;", "base"))));
+        List<ImmutableAnnotationElement> innerClassElements = new ArrayList<>();
+        innerClassElements.add(new ImmutableAnnotationElement(
+                "accessFlags", new ImmutableIntEncodedValue(PUBLIC | STATIC | FINAL)));
+        innerClassElements.add(new ImmutableAnnotationElement(
+                "name", new ImmutableStringEncodedValue("Inner")));
+        Set<ImmutableAnnotation> innerAnnotations = new LinkedHashSet<>();
+        innerAnnotations.add(new ImmutableAnnotation(
+                AnnotationVisibility.SYSTEM, "Ldalvik/annotation/InnerClass;",
+                innerClassElements));
+        innerAnnotations.add(new ImmutableAnnotation(
+                AnnotationVisibility.SYSTEM, "Ldalvik/annotation/EnclosingClass;",
+                Collections.singleton(new ImmutableAnnotationElement(
+                        "value", new ImmutableTypeEncodedValue("Lfoo/Bar;")))));
+        classes.add(newClass("Lfoo/Bar$Inner;", PUBLIC | STATIC | FINAL, OBJECT, null,
+                             innerAnnotations, null,
+                             Collections.singleton(newMethod("Lfoo/Bar$Inner;", "inner"))));
+        List<ImmutableAnnotationElement> elements = new ArrayList<>();
+        elements.add(new ImmutableAnnotationElement(
+                "array", new ImmutableArrayEncodedValue(Arrays.asList(
+                ImmutableNullEncodedValue.INSTANCE,
+                ImmutableBooleanEncodedValue.TRUE_VALUE,
+                new ImmutableLongEncodedValue(Long.MIN_VALUE),
+                new ImmutableTypeEncodedValue("Lfoo/Base;"),
+                new ImmutableFieldEncodedValue(new ImmutableFieldReference(
+                        "Lfoo/Bar;", "s", "Ljava/lang/String;")),
+                new ImmutableMethodEncodedValue(new ImmutableMethodReference(
+                        "Lfoo/Bar;", "run", null, "V")),
+                new ImmutableEnumEncodedValue(new ImmutableFieldReference(
+                        "Lfoo/E;", "A", "Lfoo/E;"))))));
+        elements.add(new ImmutableAnnotationElement(
+                "annotation", new ImmutableAnnotationEncodedValue(
+                "Lfoo/Nested;", Collections.singleton(new ImmutableAnnotationElement(
+                "accessFlags", new ImmutableIntEncodedValue(FINAL))))));
+        Set<ImmutableAnnotation> annotations = new LinkedHashSet<>();
+        annotations.add(new ImmutableAnnotation(
+                AnnotationVisibility.RUNTIME, "Lfoo/Annotation;", elements));
+        annotations.add(new ImmutableAnnotation(
+                AnnotationVisibility.SYSTEM, "Ldalvik/annotation/MemberClasses;",
+                Collections.singleton(new ImmutableAnnotationElement(
+                        "value", new ImmutableArrayEncodedValue(Collections.singletonList(
+                        new ImmutableTypeEncodedValue("Lfoo/Bar$Inner;")))))));
+        Set<ImmutableAnnotation> memberAnnotations = Collections.singleton(
+                new ImmutableAnnotation(AnnotationVisibility.RUNTIME, "Lfoo/Member;", null));
+        List<ImmutableField> fields = new ArrayList<>();
+        fields.add(new ImmutableField("Lfoo/Bar;", "i", "I", STATIC | FINAL,
+                                      new ImmutableIntEncodedValue(0x12345678), null, null));
+        fields.add(new ImmutableField("Lfoo/Bar;", "s", "Ljava/lang/String;", STATIC | FINAL,
+                                      new ImmutableStringEncodedValue("s"), memberAnnotations,
+                                      null));
+        fields.add(new ImmutableField("Lfoo/Bar;", "t", "Ljava/lang/Class;", STATIC,
+                                      new ImmutableTypeEncodedValue("Lfoo/Iface;"), null, null));
+        fields.add(new ImmutableField("Lfoo/Bar;", "f", "I", 0, null, null, null));
+        List<ImmutableMethod> methods = new ArrayList<>();
+        methods.add(newMethod("Lfoo/Bar;", "run"));
+        MethodImplementationBuilder builder = new MethodImplementationBuilder(2);
+        builder.addInstruction(new BuilderInstruction10x(Opcode.RETURN_VOID));
+        methods.add(new ImmutableMethod(
+                "Lfoo/Bar;", "g",
+                Collections.singletonList(new ImmutableMethodParameter(
+                        "Ljava/lang/String;", memberAnnotations, "name")),
+                "V", PUBLIC | FINAL, memberAnnotations, null,
+                builder.getMethodImplementation()));
+        classes.add(newClass("Lfoo/Bar;", PUBLIC | FINAL, "Lfoo/Base;",
+                             Collections.singletonList("Lfoo/Iface;"), annotations, fields,
+                             methods));
+        return classes;
+    }
+
+    private static ImmutableClassDef newClass(String type,
+                                              int accessFlags,
+                                              String superclass,
+                                              List<String> interfaces,
+                                              Set<ImmutableAnnotation> annotations,
+                                              List<ImmutableField> fields,
+                                              Iterable<ImmutableMethod> methods) {
+        return new ImmutableClassDef(type, accessFlags, superclass, interfaces,
+                                     type.substring(type.lastIndexOf('/') + 1) + ".java",
+                                     annotations, fields, methods);
+    }
+
+    /**
+     * Returns a final method that has the instructions referring to all kinds of ids, try blocks
+     * and debug info.
+     */
+    private static ImmutableMethod newMethod(String type, String name) {
+        MethodImplementationBuilder builder = new MethodImplementationBuilder(4);
+        Label start = builder.addLabel("start");
+        builder.addLineNumber(1);
+        builder.addStartLocal(0, new ImmutableStringReference("local"),
+                              new ImmutableTypeReference("Ljava/lang/String;"),
+                              new ImmutableStringReference("Ljava/util/List<TT;>;"));
+        builder.addInstruction(new BuilderInstruction21c(
+                Opcode.CONST_STRING, 0, new ImmutableStringReference(name)));
+        builder.addPrologue();
+        builder.addInstruction(new BuilderInstruction31c(
+                Opcode.CONST_STRING_JUMBO, 0, new ImmutableStringReference(name + "Jumbo")));
+        builder.addInstruction(new BuilderInstruction21c(
+                Opcode.CONST_CLASS, 1, new ImmutableTypeReference(type)));
+        builder.addInstruction(new BuilderInstruction22c(
+                Opcode.INSTANCE_OF, 1, 0, new ImmutableTypeReference("Ljava/lang/Runnable;")));
+        builder.addInstruction(new BuilderInstruction21c(
+                Opcode.SGET_OBJECT, 0, new ImmutableFieldReference(
+                type, name + "Field", "Ljava/lang/String;")));
+        builder.addInstruction(new BuilderInstruction22c(
+                Opcode.IGET, 1, 3, new ImmutableFieldReference(type, name + "Int", "I")));
+        builder.addInstruction(new BuilderInstruction35c(
+                Opcode.INVOKE_VIRTUAL, 1, 3, 0, 0, 0, 0, new ImmutableMethodReference(
+                type, name + "Callee", null, "V")));
+        builder.addInstruction(new BuilderInstruction3rc(
+                Opcode.INVOKE_STATIC_RANGE, 0, 2, new ImmutableMethodReference(
+                "Ljava/lang/String;", "valueOf", Arrays.asList("J"), "Ljava/lang/String;")));
+        builder.addInstruction(new BuilderInstruction35c(
+                Opcode.FILLED_NEW_ARRAY, 1, 0, 0, 0, 0, 0, new ImmutableTypeReference("[I")));
+        Label end = builder.addLabel("end");
+        builder.addInstruction(new BuilderInstruction11n(Opcode.CONST_4, 0, 0));
+        builder.addInstruction(new BuilderInstruction31t(
+                Opcode.PACKED_SWITCH, 0, builder.getLabel("packed")));
+        builder.addInstruction(new BuilderInstruction31t(
+                Opcode.SPARSE_SWITCH, 0, builder.getLabel("sparse")));
+        builder.addInstruction(new BuilderInstruction31t(
+                Opcode.FILL_ARRAY_DATA, 1, builder.getLabel("array")));
+        Label exit = builder.addLabel("exit");
+        builder.addInstruction(new BuilderInstruction10x(Opcode.RETURN_VOID));
+        Label handler = builder.addLabel("handler");
+        builder.addEndLocal(0);
+        builder.addInstruction(new BuilderInstruction11x(Opcode.MOVE_EXCEPTION, 0));
+        builder.addInstruction(new BuilderInstruction11x(Opcode.THROW, 0));
+        Label catchAll = builder.addLabel("catchAll");
+        builder.addInstruction(new BuilderInstruction10x(Opcode.RETURN_VOID));
+        builder.addCatch(new ImmutableTypeReference("Ljava/lang/RuntimeException;"),
+                         start, end, handler);
+        builder.addCatch(new ImmutableTypeReference("L" + name + "/Exception;"),
+                         start, end, handler);
+        builder.addCatch(start, end, catchAll);
+        builder.addLabel("packed");
+        builder.addInstruction(new BuilderPackedSwitchPayload(
+                0, Arrays.asList(exit, handler)));
+        builder.addLabel("sparse");
+        builder.addInstruction(new BuilderSparseSwitchPayload(Arrays.asList(
+                new SwitchLabelElement(1, exit), new SwitchLabelElement(100, handler))));
+        builder.addLabel("array");
+        builder.addInstruction(new BuilderArrayPayload(
+                2, Arrays.<Number>asList((short) 1, (short) 2, (short) 3)));
+        return new ImmutableMethod(type, name, null, "V", PUBLIC | FINAL, null, null,
+                                   builder.getMethodImplementation());
+    }
+
+    private static Map<String, Integer> getClassDefIndices(byte[] dex) {
+        Map<String, Integer> indexMap = new HashMap<>();
+        List<? extends ClassDef> classSection =
+                new DexBackedDexFile(Opcodes.getDefault(), dex).getClassSection();
+        for (int i = 0, size = classSection.size(); i < size; i++) {
+            indexMap.put(classSection.get(i).getType(), i);
+        }
+        return indexMap;
+    }
+
+    /**
+     * Opens the given classes in the same way as {@link ClassTransformer} does if
+     * {@link DexSubsetWriter} cannot handle the dex file.
+     */
+    private byte[] rewrite(byte[] dex, int[] classDefIndices) throws IOException {
+        // The transformer is only used as the dex file of the classes.
+        ClassTransformer transformer = new ClassTransformer(
+                dex, classDefIndices, ClassTransformer.WRITE_SUBSET, null, null, null);
+        DexRewriter dexRewriter = new DexRewriter(new FinalModifierRemoverModule());
+        File file = folder.newFile();
+        com.github.tmurakami.dexopener.repackaged.org.jf.dexlib2.writer.pool.DexPool.writeTo(
+                new FileChannelDataStore(file),
+                dexRewriter.getDexFileRewriter().rewrite(transformer));
+        return Files.toByteArray(file);
+    }
+
+    /**
+     * Rewrites the given dex file with DexPool, which writes the same classes into the same
+     * bytes.
+     */
+    private static byte[] normalize(byte[] dex) throws IOException {
+        DexFile dexFile = new DexBackedDexFile(Opcodes.getDefault(), dex);
+        return DexPoolUtils.toBytecode(
+                new ImmutableDexFile(dexFile.getOpcodes(), dexFile.getClasses()));
+    }
+
+    /**
+     * Reads all the sections of the given dex file.
+     */
+    private static void assertValid(byte[] dex) throws IOException {
+        DexBackedDexFile dexFile = new DexBackedDexFile(Opcodes.getDefault(), dex);
+        new DexAnnotator(dexFile, 120).writeAnnotations(new StringWriter());
+    }
+
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2016 Tsuyoshi Murakami
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.tmurakami.dexopener;
+
+import com.github.tmurakami.dexopener.repackaged.org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import com.github.tmurakami.dexopener.repackaged.org.jf.dexlib2.writer.io.DexDataStore;
+import com.github.tmurakami.dexopener.repackaged.org.jf.dexlib2.writer.io.FileDataStore;
+import com.github.tmurakami.dexopener.repackaged.org.jf.dexlib2.writer.pool.DexPool;
+import com.google.common.io.Files;
+
+import org.jf.dexlib2.AccessFlags;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.immutable.ImmutableClassDef;
+import org.jf.dexlib2.immutable.ImmutableDexFile;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class FileChannelDataStoreTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void should_write_the_same_bytes_as_FileDataStore() throws IOException {
+        File expected = folder.newFile();
+        File actual = folder.newFile();
+        write(new FileDataStore(expected));
+        write(new FileChannelDataStore(actual));
+        assertArrayEquals(Files.toByteArray(expected), Files.toByteArray(actual));
+    }
+
+    @Test
+    public void should_write_the_same_dex_file_as_FileDataStore() throws IOException {
+        ImmutableClassDef def = new ImmutableClassDef("Lfoo/Bar;",
+                                                      AccessFlags.FINAL.getValue(),
+                                                      "Ljava/lang/Object;",
+                                                      null, null, null, null, null);
+        byte[] bytes = DexPoolUtils.toBytecode(new ImmutableDexFile(Opcodes.getDefault(),
+                                                                    Collections.singleton(def)));
+        DexBackedDexFile dexFile = new DexBackedDexFile(null, bytes);
+        File expected = folder.newFile();
+        File actual = folder.newFile();
+        DexPool.writeTo(new FileDataStore(expected), dexFile);
+        DexPool.writeTo(new FileChannelDataStore(actual), dexFile);
+        assertArrayEquals(Files.toByteArray(expected), Files.toByteArray(actual));
+    }
+
+    private static void write(DexDataStore store) throws IOException {
+        // Write the sections out of order, as DexWriter does.
+        try (OutputStream out = store.outputAt(0x70)) {
+            for (int i = 0; i < 100000; i++) {
+                out.write(i);
+            }
+        }
+        try (OutputStream out = store.outputAt(0)) {
+            out.write(new byte[0x70]);
+        }
+        try (OutputStream out = store.outputAt(0x10)) {
+            out.write(new byte[]{1, 2, 3, 4}, 1, 2);
+        }
+        store.close();
+    }
+
+}
@@ -39,7 +39,9 @@ import java.io.IOException;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.TreeSet;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotSame;
 
@@ -127,4 +129,46 @@ public class FinalModifierRemoverModuleTest {
         assertFalse(AccessFlags.FINAL.isSet(accessFlags));
     }
 
+    @Test
+    public void should_find_the_classes_that_have_the_final_modifier() throws IOException {
+        int finalFlag = AccessFlags.FINAL.getValue();
+        Set<ImmutableClassDef> classes = new HashSet<>();
+        classes.add(new ImmutableClassDef("Lfoo/FinalClass;", finalFlag, "Ljava/lang/Object;",
+                                          null, null, null, null, null));
+        ImmutableMethod finalMethod = new ImmutableMethod(
+                "Lfoo/FinalMethod;", "f", null, "V", finalFlag, null, null, null);
+        classes.add(new ImmutableClassDef("Lfoo/FinalMethod;", 0, "Ljava/lang/Object;",
+                                          null, null, null, null,
+                                          Collections.singleton(finalMethod)));
+        ImmutableAnnotation finalInnerClass = new ImmutableAnnotation(
+                0, "Ldalvik/annotation/InnerClass;",
+                Collections.singleton(new ImmutableAnnotationElement(
+                        "accessFlags", new ImmutableIntEncodedValue(finalFlag))));
+        classes.add(new ImmutableClassDef("Lfoo/Outer$FinalInner;", 0, "Ljava/lang/Object;",
+                                          null, null, Collections.singleton(finalInnerClass),
+                                          null, null));
+        ImmutableMethod method = new ImmutableMethod(
+                "Lfoo/Open;", "f", null, "V", AccessFlags.PUBLIC.getValue(), null, null, null);
+        ImmutableAnnotation innerClass = new ImmutableAnnotation(
+                0, "Ldalvik/annotation/InnerClass;",
+                Collections.singleton(new ImmutableAnnotationElement(
+                        "accessFlags", new ImmutableIntEncodedValue(0))));
+        classes.add(new ImmutableClassDef("Lfoo/Open;", 0, "Ljava/lang/Object;",
+                                          null, null, Collections.singleton(innerClass),
+                                          null, Collections.singleton(method)));
+        byte[] bytecode =
+                DexPoolUtils.toBytecode(new ImmutableDexFile(Opcodes.getDefault(), classes));
+        Set<String> found = new TreeSet<>();
+        for (ClassDef def : new DexBackedDexFile(null, bytecode).getClasses()) {
+            if (FinalModifierRemoverModule.hasFinalModifier(def)) {
+                found.add(def.getType());
+            }
+        }
+        Set<String> expected = new TreeSet<>();
+        expected.add("Lfoo/FinalClass;");
+        expected.add("Lfoo/FinalMethod;");
+        expected.add("Lfoo/Outer$FinalInner;");
+        assertEquals(expected, found);
+    }
+
 }
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2016 Tsuyoshi Murakami
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.tmurakami.dexopener;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StatsTest {
+
+    @Test
+    public void should_put_each_value_into_the_bucket_the_range_of_which_contains_it() {
+        long previousMax = -1;
+        for (int bucket = 0; bucket < Stats.BUCKET_COUNT; bucket++) {
+            long max = Stats.getBucketMax(bucket);
+            assertEquals(bucket, Stats.getBucket(previousMax + 1));
+            assertEquals(bucket, Stats.getBucket(max));
+            // Each bucket is wider than its minimum by at most 25%.
+            assertTrue(max - previousMax - 1 <= (previousMax + 1) / 4);
+            previousMax = max;
+        }
+        assertEquals(Long.MAX_VALUE, previousMax);
+    }
+
+    @Test
+    public void should_estimate_the_percentile_within_25_percent_of_error() {
+        long[] histogram = new long[Stats.BUCKET_COUNT];
+        for (long value = 1; value <= 1000; value++) {
+            histogram[Stats.getBucket(value * 1000)]++;
+        }
+        for (int percentile : new int[]{1, 50, 90, 99, 100}) {
+            long expected = percentile * 10 * 1000L;
+            long actual = Stats.getPercentile(histogram, percentile);
+            assertTrue(actual >= expected);
+            assertTrue(actual <= expected * 5 / 4);
+        }
+        assertEquals(0, Stats.getPercentile(new long[Stats.BUCKET_COUNT], 50));
+    }
+
+    @Test
+    public void should_take_a_snapshot_of_the_statistics() {
+        Stats stats = new Stats();
+        stats.add(Stats.SCANNED_CLASSES, 10);
+        stats.add(Stats.ACCEPTED_CLASSES, 3);
+        stats.add(Stats.BYTES_READ, 100);
+        stats.add(Stats.BYTES_WRITTEN, 50);
+        stats.add(Stats.CACHE_HITS, 1);
+        long start = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(10);
+        stats.record(Stats.TRANSFORM, start);
+        DexOpener.Statistics statistics = new DexOpener.Statistics(stats, 2);
+        stats.record(Stats.TRANSFORM, start);
+        assertEquals(10, statistics.getScannedClassCount());
+        assertEquals(3, statistics.getAcceptedClassCount());
+        assertEquals(2, statistics.getBatchCount());
+        assertEquals(100, statistics.getBytesRead());
+        assertEquals(50, statistics.getBytesWritten());
+        assertEquals(1, statistics.getCacheHitCount());
+        DexOpener.Statistics.Stage stage = DexOpener.Statistics.Stage.TRANSFORM;
+        assertEquals(1, statistics.getCount(stage));
+        assertEquals(0, statistics.getCount(DexOpener.Statistics.Stage.LOAD));
+        long total = statistics.getTotalTime(stage, TimeUnit.MILLISECONDS);
+        assertTrue(total >= 10);
+        long p50 = statistics.getLatency(stage, 50, TimeUnit.MILLISECONDS);
+        assertTrue(p50 >= total && p50 <= total * 5 / 4 + 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void should_throw_IllegalArgumentException_if_the_percentile_is_out_of_range() {
+        new DexOpener.Statistics(new Stats(), -1)
+                .getLatency(DexOpener.Statistics.Stage.LOAD, 101, TimeUnit.NANOSECONDS);
+    }
+
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2016 Tsuyoshi Murakami
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.tmurakami.dexopener;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TracerTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void should_write_the_stages_as_the_complete_events() throws Exception {
+        Tracer tracer = new Tracer();
+        long start = System.nanoTime();
+        tracer.add(Stats.SCAN, start, "classes.dex", -1);
+        Thread thread = new Thread(
+                () -> tracer.add(Stats.LOAD, System.nanoTime() - 1000, "classes2.dex", 3),
+                "loader");
+        thread.start();
+        thread.join();
+        File file = folder.newFile();
+        tracer.write(file);
+        String json = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        assertTrue(json.startsWith("{\"traceEvents\":["));
+        assertTrue(json.endsWith("],\"displayTimeUnit\":\"ms\"}\n"));
+        assertTrue(json.contains("\"name\":\"scan\",\"cat\":\"dexopener\",\"ph\":\"X\""));
+        assertTrue(json.contains("\"tid\":" + Thread.currentThread().getId()
+                                 + ",\"args\":{\"entry\":\"classes.dex\"}}"));
+        assertTrue(json.contains("\"tid\":" + thread.getId()
+                                 + ",\"args\":{\"entry\":\"classes2.dex\",\"batch\":3}}"));
+        assertTrue(json.contains("\"tid\":" + thread.getId()
+                                 + ",\"args\":{\"name\":\"loader\"}}"));
+        Matcher matcher = Pattern.compile("\"name\":\"load\".*\"dur\":(\\d+)\\.(\\d{3}),")
+                                 .matcher(json);
+        assertTrue(matcher.find());
+        assertTrue(Long.parseLong(matcher.group(1)) >= 1);
+    }
+
+    @Test
+    public void should_escape_the_names_of_the_classes() throws IOException {
+        Tracer tracer = new Tracer();
+        tracer.add(Stats.WAIT, System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(1),
+                   "foo.\"Bar\\\u0001", -1);
+        File file = folder.newFile();
+        tracer.write(file);
+        String json = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        assertTrue(json.contains("\"name\":\"wait\""));
+        assertTrue(json.contains("\"args\":{\"class\":\"foo.\\\"Bar\\\\\\u0001\"}}"));
+    }
+
+    @Test
+    public void should_write_no_event_if_nothing_is_recorded() throws IOException {
+        File file = folder.newFile();
+        new Tracer().write(file);
+        String json = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        assertEquals("{\"traceEvents\":[\n],\"displayTimeUnit\":\"ms\"}\n", json);
+    }
+
+}